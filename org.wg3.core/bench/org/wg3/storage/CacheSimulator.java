@@ -0,0 +1,231 @@
+package org.wg3.storage;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.wg3.storage.LRUCache.LRUCacheListener;
+import org.wg3.storage.LRUCache.LRUCacheSizer;
+
+/**
+ * Replays a tile access trace through an LRUCache with each eviction policy
+ * and budget, and prints the hit ratios. The cache is the real LRUCache,
+ * measured in bytes and trimmed to the same low watermark as the
+ * DataManager, only the tiles are just their sizes.
+ *
+ * Usage: CacheSimulator trace-file|synthetic|synthetic-pinned [budget MB...]
+ *
+ * Record a trace by running with wg3.datamanager.trace set (see
+ * CacheTrace). "synthetic" makes up our worst case instead: a display
+ * touching the same few tiles every frame while a bulk load (a full table
+ * scan, then new tiles) goes through more than the budget in between.
+ * "synthetic-pinned" is the same, but the bulk load pins each tile while it
+ * works on it, the way preloadTilesForRow and Array1DfloatAsNodes.begin do.
+ *
+ * Hits count trace records, so a run of lookups of one tile is one hit or
+ * miss, and a pin is one too. The used bits are set the way the real
+ * lookups would set them. Pins and unpins go through the cache's own
+ * pin/unpin, a pinned miss is put pinned like DataManager.pinTile does.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class CacheSimulator {
+
+    /**
+     * Same as the DataManager
+     */
+    private static final float LOW_WATER_MARK = 0.85f;
+    /**
+     * The trace, one record per index
+     */
+    private int[] myKeys = new int[1024];
+    private int[] myFloats = new int[1024];
+    private int[] myCounts = new int[1024];
+    private int mySize = 0;
+
+    /**
+     * Hits and misses of one run
+     */
+    public static class Result {
+
+        public final LRUCache.Policy policy;
+        public final long budgetBytes;
+        public final long hits;
+        public final long misses;
+
+        Result(LRUCache.Policy p, long budget, long h, long m) {
+            policy = p;
+            budgetBytes = budget;
+            hits = h;
+            misses = m;
+        }
+
+        public double getHitRatio() {
+            long total = hits + misses;
+            return (total > 0) ? (double) hits / total : 0.0;
+        }
+    }
+
+    /**
+     * Add a record to the trace
+     */
+    public void add(int key, int floats, int count) {
+        if (mySize == myKeys.length) {
+            int bigger = mySize * 2;
+            int[] k = new int[bigger];
+            int[] f = new int[bigger];
+            int[] c = new int[bigger];
+            System.arraycopy(myKeys, 0, k, 0, mySize);
+            System.arraycopy(myFloats, 0, f, 0, mySize);
+            System.arraycopy(myCounts, 0, c, 0, mySize);
+            myKeys = k;
+            myFloats = f;
+            myCounts = c;
+        }
+        myKeys[mySize] = key;
+        myFloats[mySize] = floats;
+        myCounts[mySize] = count;
+        mySize++;
+    }
+
+    /**
+     * Load a trace recorded by CacheTrace
+     */
+    public void load(File file) throws IOException {
+        CacheTrace.Reader r = new CacheTrace.Reader(file);
+        try {
+            while (r.next()) {
+                add(r.key, r.floats, r.count);
+            }
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Make up a display plus bulk load trace.
+     *
+     * @param frames frames to run
+     * @param hotTiles tiles the display touches every frame
+     * @param bulkTiles tiles the bulk load goes through between frames
+     * @param tableTiles size of the table the scans go over
+     * @param floats size of each tile
+     */
+    public void synthetic(int frames, int hotTiles, int bulkTiles, int tableTiles, int floats) {
+        synthetic(frames, hotTiles, bulkTiles, tableTiles, floats, false);
+    }
+
+    /**
+     * Make up a display plus bulk load trace, see above.
+     *
+     * @param pinBulk the bulk load pins each tile while it uses it
+     */
+    public void synthetic(int frames, int hotTiles, int bulkTiles, int tableTiles, int floats, boolean pinBulk) {
+        int nextNew = hotTiles + tableTiles;
+        int scan = 0;
+        for (int f = 0; f < frames; f++) {
+            for (int h = 0; h < hotTiles; h++) {
+                add(h, floats, 100);
+            }
+            boolean scanning = ((f / 10) % 2) == 0;
+            for (int b = 0; b < bulkTiles; b++) {
+                int key;
+                if (scanning) {
+                    key = hotTiles + scan;
+                    scan = (scan + 1) % tableTiles;
+                } else {
+                    key = nextNew++;
+                }
+                if (pinBulk) {
+                    add(key, floats, CacheTrace.PIN);
+                    add(key, 0, CacheTrace.UNPIN);
+                } else {
+                    add(key, floats, floats);
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of records in the trace
+     */
+    public int size() {
+        return mySize;
+    }
+
+    /**
+     * Replay the trace through a cache
+     */
+    public Result run(LRUCache.Policy policy, long budgetBytes) {
+        final long[] filled = new long[1];
+        LRUCache<Integer, Integer> cache = new LRUCache<Integer, Integer>(budgetBytes, budgetBytes, budgetBytes,
+                new LRUCacheSizer() {
+                    @Override
+                    public long getFilledSize() {
+                        return filled[0];
+                    }
+                });
+        cache.setLowWaterMark(LOW_WATER_MARK);
+        cache.setPolicy(policy);
+        cache.addListener(new LRUCacheListener<Integer>() {
+            @Override
+            public void trimmed(Integer bytes) {
+                filled[0] -= bytes;
+            }
+        });
+        long hits = 0;
+        long misses = 0;
+        for (int i = 0; i < mySize; i++) {
+            Integer key = myKeys[i];
+            if (myCounts[i] == CacheTrace.UNPIN) {
+                cache.unpin(key);
+                continue;
+            }
+            boolean pin = (myCounts[i] == CacheTrace.PIN);
+            if ((pin ? cache.pin(key) : cache.get(key)) != null) {
+                hits++;
+            } else {
+                misses++;
+                int bytes = myFloats[i] * 4;
+                filled[0] += bytes;
+                cache.putIfAbsent(key, bytes, pin);
+            }
+            if (myCounts[i] > 1) {
+                cache.get(key); // The rest of the run marks it used
+            }
+        }
+        return new Result(policy, budgetBytes, hits, misses);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: CacheSimulator trace-file|synthetic|synthetic-pinned [budget MB...]");
+            System.exit(1);
+        }
+        CacheSimulator sim = new CacheSimulator();
+        if (args[0].equals("synthetic")) {
+            sim.synthetic(200, 32, 200, 1000, 40000);
+        } else if (args[0].equals("synthetic-pinned")) {
+            sim.synthetic(200, 32, 200, 1000, 40000, true);
+        } else {
+            sim.load(new File(args[0]));
+        }
+        long[] budgets;
+        if (args.length > 1) {
+            budgets = new long[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                budgets[i - 1] = Long.parseLong(args[i]) * 1024 * 1024;
+            }
+        } else {
+            budgets = new long[]{16L << 20, 32L << 20, 64L << 20, 128L << 20};
+        }
+        System.out.println(sim.size() + " records");
+        System.out.printf("%-10s %10s %10s %10s %8s%n", "policy", "budget MB", "hits", "misses", "ratio");
+        for (long budget : budgets) {
+            for (LRUCache.Policy p : LRUCache.Policy.values()) {
+                Result r = sim.run(p, budget);
+                System.out.printf("%-10s %10d %10d %10d %8.4f%n", p, budget >> 20, r.hits, r.misses, r.getHitRatio());
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.wg3.storage;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures DataNode.get with threads reading one hot tile at once, and
+ * prints millions of reads a second for each thread count.
+ *
+ * Usage: DataNodeReadBenchmark [millis [threads...]]
+ *
+ * The tile is 40000 floats (a 200x200 tile), popped out of the cache so
+ * it stays loaded.
+ * Each thread count is run four ways: "optimistic" is DataNode.get as it
+ * is, "locked" takes the read lock around each get the way get used to,
+ * and each again "+hold" with a thread holding the tile's write lock for
+ * 1 ms every 3 ms, the way QuadStripRenderer holds its buffers while
+ * drawing. Optimistic readers only wait on the holder if it is changing
+ * the tile, locked ones wait on it and on each other.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class DataNodeReadBenchmark {
+
+    private static final int FLOATS = 40000;
+
+    private final DataNode myNode;
+    private final long myMillis;
+    /**
+     * Sum of everything read, so the reads can't be optimized away
+     */
+    private volatile float mySink;
+
+    public DataNodeReadBenchmark(DataNode node, long millis) {
+        myNode = node;
+        myMillis = millis;
+    }
+
+    /**
+     * Run threads readers for a while
+     *
+     * @return millions of reads a second
+     */
+    public double run(final int threads, final boolean locked, boolean hold) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong reads = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] readers = new Thread[threads];
+        for (int r = 0; r < threads; r++) {
+            final int offset = r * 7919;
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long count = 0;
+                    float sum = 0;
+                    int i = offset % FLOATS;
+                    while (running.get()) {
+                        for (int n = 0; n < 1000; n++) {
+                            if (locked) {
+                                synchronized (myNode.getReadLock()) {
+                                    sum += myNode.get(i);
+                                }
+                            } else {
+                                sum += myNode.get(i);
+                            }
+                            i += 31;
+                            if (i >= FLOATS) {
+                                i -= FLOATS;
+                            }
+                        }
+                        count += 1000;
+                    }
+                    reads.addAndGet(count);
+                    mySink += sum;
+                }
+            }, "readbench-reader-" + r);
+            readers[r].start();
+        }
+
+        Thread holder = null;
+        if (hold) {
+            holder = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (running.get()) {
+                            synchronized (myNode.getWriteLock()) {
+                                Thread.sleep(1);
+                            }
+                            Thread.sleep(2);
+                        }
+                    } catch (InterruptedException e) {
+                        // Done
+                    }
+                }
+            }, "readbench-holder");
+            holder.start();
+        }
+
+        long began = System.nanoTime();
+        start.countDown();
+        Thread.sleep(myMillis);
+        running.set(false);
+        for (Thread t : readers) {
+            t.join();
+        }
+        long elapsed = System.nanoTime() - began;
+        if (holder != null) {
+            holder.join();
+        }
+        return (reads.get() / 1e6) / (elapsed / 1e9);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = 2000;
+        int[] threads = {1, 2, 4, 8};
+        if (args.length > 0) {
+            millis = Long.parseLong(args[0]);
+        }
+        if (args.length > 1) {
+            threads = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                threads[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        DataManager manager = DataManager.getInstance();
+        DataNode node = manager.popTile(manager.getNewTileKey(), FLOATS, 0.0f);
+        for (int i = 0; i < FLOATS; i++) {
+            node.set(i, (i % 100) * 0.5f);
+        }
+        DataNodeReadBenchmark bench = new DataNodeReadBenchmark(node, millis);
+
+        System.out.printf("%d CPUs, %d ms each, M reads/s%n", Runtime.getRuntime().availableProcessors(), millis);
+        System.out.printf("%-16s", "threads");
+        for (int t : threads) {
+            System.out.printf(" %8d", t);
+        }
+        System.out.println();
+        String[] modes = {"locked", "optimistic", "locked+hold", "optimistic+hold"};
+        for (int m = 0; m < modes.length; m++) {
+            boolean locked = (m % 2) == 0;
+            boolean hold = m >= 2;
+            System.out.printf("%-16s", modes[m]);
+            for (int t : threads) {
+                System.out.printf(" %8.1f", bench.run(t, locked, hold));
+            }
+            System.out.println();
+        }
+        System.exit(0);
+    }
+}
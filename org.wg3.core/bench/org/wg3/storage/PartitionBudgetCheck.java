@@ -0,0 +1,107 @@
+package org.wg3.storage;
+
+/**
+ * Makes a few DataManager partitions and checks DataManagerTotals says they
+ * split one RAM budget instead of each taking a whole one. Exits 1 if not.
+ *
+ * Usage: PartitionBudgetCheck
+ *
+ * Sets wg3.datamanager.maxbytes itself and turns off the adaptive budget so
+ * the numbers hold still. The render partition is made before the default
+ * one, as QuadStripRenderer can, and one partition sets its own maxbytes.
+ * After each partition the shares, budgets and budget limits have to add
+ * up to the shared total and the pool limits to an eighth of it. Then a
+ * partition tries to grow past what the others leave, and a few greedy
+ * ones ask for more than is left, and still nothing adds up to more.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class PartitionBudgetCheck {
+
+    private static final long TOTAL = 64L * 1024 * 1024;
+    private static final String OWN = "budgetcheck";
+    private static final long OWN_BYTES = 4L * 1024 * 1024;
+    private static final String GREEDY = "budgetgreedy";
+    private static final int GREEDY_COUNT = 4;
+
+    private int myFailures = 0;
+
+    private void expect(String what, long expected, long got) {
+        if (expected != got) {
+            System.out.printf("FAIL %s: expected %d, got %d%n", what, expected, got);
+            myFailures++;
+        }
+    }
+
+    private void checkTotals(String after) {
+        DataManagerTotals totals = DataManager.getTotals();
+        expect(after + " shares", TOTAL, totals.getBudgetShareBytes());
+        expect(after + " budgets", TOTAL, totals.getCacheBudgetBytes());
+        expect(after + " budget limits", TOTAL, totals.getCacheBudgetLimitBytes());
+        expect(after + " pool limits", TOTAL / 8, totals.getPoolLimitBytes());
+        System.out.printf("after %s: %d partitions, budget %d, limit %d, pools %d%n",
+                after, totals.getPartitionCount(), totals.getCacheBudgetBytes(),
+                totals.getCacheBudgetLimitBytes(), totals.getPoolLimitBytes());
+    }
+
+    public int run() {
+        expect("shared total", TOTAL, DataManager.getTotalMemoryInBytes());
+
+        DataManager render = DataManager.getPartition(DataManager.RENDER_PARTITION);
+        expect("render share", TOTAL / DataManager.PARTITION_SHARE, render.getBudgetShareInBytes());
+        DataManager.getInstance();
+        checkTotals(DataManager.RENDER_PARTITION + " then " + DataManager.DEFAULT_PARTITION);
+
+        DataManager.getPartition(DataManager.GRID_PARTITION);
+        checkTotals(DataManager.GRID_PARTITION);
+
+        DataManager own = DataManager.getPartition(OWN);
+        expect("own share", OWN_BYTES, own.getBudgetShareInBytes());
+        checkTotals(OWN);
+
+        expect("default share", TOTAL - 2 * (TOTAL / DataManager.PARTITION_SHARE) - OWN_BYTES,
+                DataManager.getInstance().getBudgetShareInBytes());
+
+        // Everyone is at their share, so there's no room to grow into
+        long before = render.getMaxMemoryInBytes();
+        expect("render grow", before, render.moveMaxMemoryInBytes(before * 4));
+        render.moveMaxMemoryInBytes(before / 4);
+        expect("render grow into its own", before, render.moveMaxMemoryInBytes(before * 4));
+        render.moveMaxMemoryInBytes(before / 4);
+        DataManager grid = DataManager.getPartition(DataManager.GRID_PARTITION);
+        long gridBefore = grid.getMaxMemoryInBytes();
+        expect("grid grow into render's", gridBefore + before - before / 4,
+                grid.moveMaxMemoryInBytes(gridBefore * 4));
+
+        // The new ones take back what grid borrowed and shrink the old shares
+        for (int i = 0; i < GREEDY_COUNT; i++) {
+            DataManager.getPartition(GREEDY + i);
+            DataManagerTotals totals = DataManager.getTotals();
+            expect(GREEDY + i + " shares", TOTAL, totals.getBudgetShareBytes());
+            expect(GREEDY + i + " budget limits", TOTAL, totals.getCacheBudgetLimitBytes());
+            System.out.printf("after %s: %d partitions, budget %d, default share %d%n",
+                    GREEDY + i, totals.getPartitionCount(), totals.getCacheBudgetBytes(),
+                    DataManager.getInstance().getBudgetShareInBytes());
+            if (totals.getCacheBudgetBytes() > TOTAL) {
+                System.out.printf("FAIL %s budgets over the total%n", GREEDY + i);
+                myFailures++;
+            }
+        }
+        return myFailures;
+    }
+
+    public static void main(String[] args) {
+        System.setProperty(DataManager.MAX_BYTES_PROPERTY, Long.toString(TOTAL));
+        System.setProperty(DataManager.ADAPTIVE_PROPERTY, "false");
+        System.setProperty(DataManager.getPartitionProperty(OWN, DataManager.MAX_BYTES_PROPERTY),
+                Long.toString(OWN_BYTES));
+        for (int i = 0; i < GREEDY_COUNT; i++) {
+            System.setProperty(DataManager.getPartitionProperty(GREEDY + i, DataManager.MAX_BYTES_PROPERTY),
+                    Long.toString(TOTAL / 2));
+        }
+        int failures = new PartitionBudgetCheck().run();
+        System.out.println((failures == 0) ? "OK" : failures + " failed");
+        System.exit((failures == 0) ? 0 : 1);
+    }
+}
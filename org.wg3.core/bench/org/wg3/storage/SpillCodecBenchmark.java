@@ -0,0 +1,278 @@
+package org.wg3.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes and decodes tiles with each SpillCodec and prints the compression
+ * ratio and throughput, with the default level GZIP the spill path used
+ * before the codecs for comparison. Exits 1 if a codec doesn't get a tile
+ * back exactly.
+ *
+ * Usage: SpillCodecBenchmark [side [tiles [millis]]]
+ *
+ * Tiles are side x side floats (200 like Array2DfloatAsTiles), stored the
+ * way DataNode stores them (see DataNode.toBackground). Three kinds of
+ * tile: a smooth reflectivity field quantized to 0.5 dBZ with background
+ * where it's weak, gaussian noise, and all background. Each codec runs each
+ * kind for at least millis after a warm up. MB/s are of raw tile bytes.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class SpillCodecBenchmark {
+
+    private static final float BACKGROUND = -99900.0f;
+
+    /**
+     * The old spill path, GZIP at the default level
+     */
+    private static final String GZIP = "gzip";
+
+    private final int mySide;
+    private final int myTiles;
+    private final long myMillis;
+    private final Random myRandom = new Random(42);
+    private int myFailures = 0;
+
+    public SpillCodecBenchmark(int side, int tiles, long millis) {
+        mySide = side;
+        myTiles = tiles;
+        myMillis = millis;
+    }
+
+    /**
+     * A tile of floats as DataNode stores it, native order direct buffer
+     */
+    private ByteBuffer store(float[] values) {
+        ByteBuffer b = ByteBuffer.allocateDirect(values.length * 4);
+        b.order(ByteOrder.nativeOrder());
+        FloatBuffer f = b.asFloatBuffer();
+        for (int i = 0; i < values.length; i++) {
+            f.put(DataNode.toBackground(values[i], BACKGROUND));
+        }
+        return b;
+    }
+
+    /**
+     * A few storm cells, 0.5 dBZ steps, background under 5 dBZ
+     */
+    private float[] smooth() {
+        float[] v = new float[mySide * mySide];
+        int cells = 2 + myRandom.nextInt(4);
+        float[] cx = new float[cells];
+        float[] cy = new float[cells];
+        float[] r = new float[cells];
+        float[] peak = new float[cells];
+        for (int c = 0; c < cells; c++) {
+            cx[c] = myRandom.nextFloat() * mySide;
+            cy[c] = myRandom.nextFloat() * mySide;
+            r[c] = mySide / 8.0f + myRandom.nextFloat() * mySide / 4.0f;
+            peak[c] = 30.0f + myRandom.nextFloat() * 35.0f;
+        }
+        for (int y = 0; y < mySide; y++) {
+            for (int x = 0; x < mySide; x++) {
+                float dbz = 0;
+                for (int c = 0; c < cells; c++) {
+                    float dx = (x - cx[c]) / r[c];
+                    float dy = (y - cy[c]) / r[c];
+                    dbz = Math.max(dbz, peak[c] * (float) Math.exp(-(dx * dx + dy * dy)));
+                }
+                v[y * mySide + x] = (dbz < 5.0f) ? BACKGROUND : Math.round(dbz * 2.0f) / 2.0f;
+            }
+        }
+        return v;
+    }
+
+    private float[] noise() {
+        float[] v = new float[mySide * mySide];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = (float) (myRandom.nextGaussian() * 20.0);
+        }
+        return v;
+    }
+
+    private float[] background() {
+        float[] v = new float[mySide * mySide];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = BACKGROUND;
+        }
+        return v;
+    }
+
+    private ByteBuffer[] makeTiles(String kind) {
+        ByteBuffer[] tiles = new ByteBuffer[myTiles];
+        for (int t = 0; t < myTiles; t++) {
+            float[] v;
+            if (kind.equals("smooth")) {
+                v = smooth();
+            } else if (kind.equals("noise")) {
+                v = noise();
+            } else {
+                v = background();
+            }
+            tiles[t] = store(v);
+        }
+        return tiles;
+    }
+
+    /**
+     * Encode one tile to its own buffer, the codec's may be reused
+     */
+    private ByteBuffer encode(String codec, ByteBuffer raw) {
+        raw.clear();
+        if (codec.equals(GZIP)) {
+            byte[] in = new byte[raw.capacity()];
+            raw.get(in);
+            Deflater d = new Deflater();
+            d.setInput(in);
+            d.finish();
+            byte[] out = new byte[in.length + (in.length >> 3) + 64];
+            int length = 0;
+            while (!d.finished()) {
+                if (length == out.length) {
+                    byte[] bigger = new byte[out.length * 2];
+                    System.arraycopy(out, 0, bigger, 0, length);
+                    out = bigger;
+                }
+                length += d.deflate(out, length, out.length - length);
+            }
+            d.end();
+            return ByteBuffer.wrap(out, 0, length).slice();
+        }
+        ByteBuffer encoded = SpillCodecs.forName(codec).encode(raw);
+        ByteBuffer copy = ByteBuffer.allocateDirect(encoded.limit());
+        ByteBuffer src = encoded.duplicate();
+        src.position(0);
+        copy.put(src);
+        copy.flip();
+        return copy;
+    }
+
+    private boolean decode(String codec, ByteBuffer encoded, ByteBuffer dst) {
+        encoded.position(0);
+        dst.clear();
+        if (codec.equals(GZIP)) {
+            byte[] in = new byte[encoded.limit()];
+            encoded.get(in);
+            byte[] out = new byte[dst.capacity()];
+            Inflater inflater = new Inflater();
+            inflater.setInput(in);
+            try {
+                int length = inflater.inflate(out);
+                dst.put(out, 0, length);
+                return length == out.length;
+            } catch (DataFormatException e) {
+                return false;
+            } finally {
+                inflater.end();
+            }
+        }
+        return SpillCodecs.forName(codec).decode(encoded, dst, dst.capacity());
+    }
+
+    private static boolean same(ByteBuffer a, ByteBuffer b) {
+        for (int i = 0; i < a.capacity(); i++) {
+            if (a.get(i) != b.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Time one codec on one kind of tile and print its line
+     */
+    private void run(String kind, String codec, ByteBuffer[] tiles) {
+        ByteBuffer[] encoded = new ByteBuffer[tiles.length];
+        ByteBuffer dst = ByteBuffer.allocateDirect(tiles[0].capacity());
+        dst.order(ByteOrder.nativeOrder());
+        long rawBytes = 0;
+        long encodedBytes = 0;
+        for (int t = 0; t < tiles.length; t++) {
+            encoded[t] = encode(codec, tiles[t]);
+            rawBytes += tiles[t].capacity();
+            encodedBytes += encoded[t].limit();
+            if (!decode(codec, encoded[t], dst) || !same(tiles[t], dst)) {
+                System.out.printf("FAIL %s %s tile %d doesn't come back%n", kind, codec, t);
+                myFailures++;
+                return;
+            }
+        }
+
+        // Warm up, then as many passes as fit in the time
+        for (int pass = 0; pass < 3; pass++) {
+            for (int t = 0; t < tiles.length; t++) {
+                encode(codec, tiles[t]);
+                decode(codec, encoded[t], dst);
+            }
+        }
+        long passes = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int t = 0; t < tiles.length; t++) {
+                encode(codec, tiles[t]);
+            }
+            passes++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < myMillis * 1000000L);
+        double encodeMBs = (rawBytes * passes / 1048576.0) / (elapsed / 1e9);
+
+        passes = 0;
+        start = System.nanoTime();
+        do {
+            for (int t = 0; t < tiles.length; t++) {
+                decode(codec, encoded[t], dst);
+            }
+            passes++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < myMillis * 1000000L);
+        double decodeMBs = (rawBytes * passes / 1048576.0) / (elapsed / 1e9);
+
+        System.out.printf("%-12s %-10s %10.2fx %10.0f %10.0f%n", kind, codec,
+                (double) rawBytes / Math.max(1, encodedBytes), encodeMBs, decodeMBs);
+    }
+
+    public int run() {
+        String[] kinds = {"smooth", "noise", "background"};
+        // Every codec we know, then the old path
+        ArrayList<String> codecs = new ArrayList<String>();
+        for (int id = 0; SpillCodecs.forId(id) != null; id++) {
+            codecs.add(SpillCodecs.forId(id).getName());
+        }
+        codecs.add(GZIP);
+        System.out.printf("%d tiles of %dx%d floats, %d ms each%n", myTiles, mySide, mySide, myMillis);
+        System.out.printf("%-12s %-10s %11s %10s %10s%n", "tile", "codec", "ratio", "enc MB/s", "dec MB/s");
+        for (String kind : kinds) {
+            ByteBuffer[] tiles = makeTiles(kind);
+            for (String codec : codecs) {
+                run(kind, codec, tiles);
+            }
+        }
+        return myFailures;
+    }
+
+    public static void main(String[] args) {
+        int side = 200;
+        int tiles = 32;
+        long millis = 500;
+        if (args.length > 0) {
+            side = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            tiles = Integer.parseInt(args[1]);
+        }
+        if (args.length > 2) {
+            millis = Long.parseLong(args[2]);
+        }
+        int failures = new SpillCodecBenchmark(side, tiles, millis).run();
+        System.exit((failures == 0) ? 0 : 1);
+    }
+}
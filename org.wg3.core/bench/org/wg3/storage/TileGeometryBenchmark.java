@@ -0,0 +1,169 @@
+package org.wg3.storage;
+
+import java.util.Random;
+
+/**
+ * Runs the same access patterns over an Array2DfloatAsTiles with each of a
+ * few TileGeometry choices, and prints the time and tile loads (cache
+ * misses) of each. This is what the 200x200 square default is picked from.
+ *
+ * Usage: TileGeometryBenchmark [width height [budget MB]]
+ *
+ * The grid (3000x2000 by default) is filled row by row, then read by a row
+ * scan, a column scan, a 3x3 stencil over every cell, and 4000 random
+ * 40x25 windows like a table paging around. The budget (8 MB by default)
+ * is well under the grid so tiles have to be trimmed and loaded again.
+ *
+ * Uses the shared DataManager with its budget set to the one given.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class TileGeometryBenchmark {
+
+    private static final int WINDOWS = 4000;
+    private static final int WINDOW_X = 40;
+    private static final int WINDOW_Y = 25;
+
+    private final DataManager myManager;
+    private final int myX;
+    private final int myY;
+    /**
+     * Sum of everything read, so the reads can't be optimized away
+     */
+    private volatile float mySink;
+
+    public TileGeometryBenchmark(DataManager manager, int x, int y) {
+        myManager = manager;
+        myX = x;
+        myY = y;
+    }
+
+    private long getLoads() {
+        return myManager.getStats().getCacheMisses();
+    }
+
+    private void fill(Array2DfloatAsTiles a) {
+        for (int y = 0; y < myY; y++) {
+            for (int x = 0; x < myX; x++) {
+                a.setFloat(x, y, (x + y) % 140 * 0.5f);
+            }
+        }
+    }
+
+    private float rowScan(Array2DfloatAsTiles a) {
+        float sum = 0;
+        for (int y = 0; y < myY; y++) {
+            for (int x = 0; x < myX; x++) {
+                sum += a.getFloat(x, y);
+            }
+        }
+        return sum;
+    }
+
+    private float columnScan(Array2DfloatAsTiles a) {
+        float sum = 0;
+        for (int x = 0; x < myX; x++) {
+            for (int y = 0; y < myY; y++) {
+                sum += a.getFloat(x, y);
+            }
+        }
+        return sum;
+    }
+
+    private float stencil(Array2DfloatAsTiles a) {
+        float sum = 0;
+        for (int y = 1; y < myY - 1; y++) {
+            for (int x = 1; x < myX - 1; x++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        sum += a.getFloat(x + dx, y + dy);
+                    }
+                }
+            }
+        }
+        return sum;
+    }
+
+    private float windows(Array2DfloatAsTiles a) {
+        Random random = new Random(42);
+        float sum = 0;
+        for (int w = 0; w < WINDOWS; w++) {
+            int x0 = random.nextInt(myX - WINDOW_X);
+            int y0 = random.nextInt(myY - WINDOW_Y);
+            for (int y = y0; y < y0 + WINDOW_Y; y++) {
+                for (int x = x0; x < x0 + WINDOW_X; x++) {
+                    sum += a.getFloat(x, y);
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Time one pattern
+     *
+     * @return ms/loads
+     */
+    private String time(Array2DfloatAsTiles a, int pattern) {
+        long loads = getLoads();
+        long start = System.nanoTime();
+        float sum;
+        switch (pattern) {
+            case 0:
+                sum = rowScan(a);
+                break;
+            case 1:
+                sum = columnScan(a);
+                break;
+            case 2:
+                sum = stencil(a);
+                break;
+            default:
+                sum = windows(a);
+                break;
+        }
+        long ms = (System.nanoTime() - start) / 1000000L;
+        mySink += sum;
+        return String.format(" %14s", ms + "/" + (getLoads() - loads));
+    }
+
+    public void run(TileGeometry geometry, String label) {
+        Array2DfloatAsTiles a = new Array2DfloatAsTiles(myX, myY, 0.0f, geometry);
+        fill(a);
+        // One line at the end, the DataManager logs in between
+        StringBuilder line = new StringBuilder(String.format("%-16s", label));
+        for (int pattern = 0; pattern < 4; pattern++) {
+            line.append(time(a, pattern));
+        }
+        System.out.println(line);
+        a.release();
+    }
+
+    public static void main(String[] args) {
+        int x = 3000;
+        int y = 2000;
+        long budgetMB = 8;
+        if (args.length > 1) {
+            x = Integer.parseInt(args[0]);
+            y = Integer.parseInt(args[1]);
+        }
+        if (args.length > 2) {
+            budgetMB = Long.parseLong(args[2]);
+        }
+        DataManager manager = DataManager.getInstance();
+        manager.setMaxMemoryInBytes(budgetMB * 1024 * 1024);
+        TileGeometryBenchmark bench = new TileGeometryBenchmark(manager, x, y);
+
+        System.out.printf("%dx%d grid, %d MB budget, ms/loads%n", x, y, manager.getMaxMemoryInBytes() >> 20);
+        System.out.printf("%-16s %14s %14s %14s %14s%n", "geometry", "row scan", "column scan", "3x3 stencil",
+                WINDOWS + " windows");
+        bench.run(TileGeometry.square(200), "200x200");
+        bench.run(TileGeometry.square(100), "100x100");
+        bench.run(TileGeometry.of(400, 100), "400x100");
+        bench.run(TileGeometry.of(100, 400), "100x400");
+        bench.run(TileGeometry.square(128).withMortonElements(), "128x128 morton");
+        bench.run(TileGeometry.square(256).withMortonTiles(), "256x256 z-keys");
+        System.exit(0);
+    }
+}
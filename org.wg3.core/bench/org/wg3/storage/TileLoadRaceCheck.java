@@ -0,0 +1,133 @@
+package org.wg3.storage;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Races tile misses against trims in the DataManager and checks no set is
+ * ever lost. Exits 1 if one was.
+ *
+ * Usage: TileLoadRaceCheck [seconds]
+ *
+ * One writer counts each of a few tiles up, pinning the tile for each set,
+ * and checks the tile still has the count it set last time. Readers keep
+ * missing the same tiles with getTile, and a trimmer keeps squeezing the
+ * budget so the tiles are always being trimmed, written and loaded again.
+ * If a miss could load a tile while its trimmed copy was still on its way
+ * to the pending writes, it would load an old copy (or a blank one) and the
+ * writer would see its count go backwards.
+ *
+ * The adaptive sizer is turned off, the trimmer moves the budget itself.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class TileLoadRaceCheck {
+
+    private static final int TILES = 32;
+    private static final int FLOATS = 1024;
+    private static final int READERS = 4;
+
+    private final DataManager myManager;
+    private final int myBase;
+    private final AtomicBoolean myRunning = new AtomicBoolean(true);
+    private final AtomicLong myLost = new AtomicLong();
+    private final AtomicLong mySets = new AtomicLong();
+    private final AtomicLong myReads = new AtomicLong();
+    private final AtomicLong myTrims = new AtomicLong();
+
+    public TileLoadRaceCheck(DataManager manager) {
+        myManager = manager;
+        myBase = manager.getNewTileKeyRange(TILES);
+    }
+
+    /**
+     * Run the race for a while
+     *
+     * @return number of sets found lost
+     */
+    public long run(long millis) throws InterruptedException {
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                float[] expect = new float[TILES];
+                while (myRunning.get()) {
+                    for (int t = 0; t < TILES; t++) {
+                        int key = myBase + t;
+                        DataNode node = myManager.pinTile(key, FLOATS, 0.0f);
+                        try {
+                            float was = node.get(0);
+                            if (was != expect[t]) {
+                                myLost.incrementAndGet();
+                            }
+                            expect[t] = was + 1;
+                            node.set(0, expect[t]);
+                            mySets.incrementAndGet();
+                        } finally {
+                            myManager.unpinTile(key);
+                        }
+                    }
+                }
+            }
+        }, "racecheck-writer");
+
+        Thread[] readers = new Thread[READERS];
+        for (int r = 0; r < READERS; r++) {
+            final int offset = r * (TILES / READERS);
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int t = offset;
+                    while (myRunning.get()) {
+                        myManager.getTile(myBase + t, FLOATS, 0.0f);
+                        myReads.incrementAndGet();
+                        t = (t + 1) % TILES;
+                    }
+                }
+            }, "racecheck-reader-" + r);
+        }
+
+        Thread trimmer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long small = 2L * FLOATS * 4;
+                long big = (TILES / 2) * FLOATS * 4L;
+                while (myRunning.get()) {
+                    myManager.setMaxMemoryInBytes(small);
+                    myManager.setMaxMemoryInBytes(big);
+                    myTrims.incrementAndGet();
+                    Thread.yield();
+                }
+            }
+        }, "racecheck-trimmer");
+
+        writer.start();
+        trimmer.start();
+        for (Thread t : readers) {
+            t.start();
+        }
+        Thread.sleep(millis);
+        myRunning.set(false);
+        writer.join();
+        trimmer.join();
+        for (Thread t : readers) {
+            t.join();
+        }
+        return myLost.get();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long seconds = 10;
+        if (args.length > 0) {
+            seconds = Long.parseLong(args[0]);
+        }
+        System.setProperty(DataManager.ADAPTIVE_PROPERTY, "false");
+        DataManager manager = DataManager.getInstance();
+        TileLoadRaceCheck check = new TileLoadRaceCheck(manager);
+        long lost = check.run(seconds * 1000);
+        System.out.printf("%d sets, %d reads, %d trim rounds, %d evictions, %d lost%n",
+                check.mySets.get(), check.myReads.get(), check.myTrims.get(),
+                manager.getStats().getEvictions(), lost);
+        System.exit((lost == 0) ? 0 : 1);
+    }
+}
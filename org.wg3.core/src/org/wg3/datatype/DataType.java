@@ -10,6 +10,7 @@ import java.util.Map.Entry;
 import org.wg3.log.Logger;
 import org.wg3.log.LoggerFactory;
 import org.wg3.storage.Location;
+import org.wg3.storage.Quantizer;
 
 /**
  * Base class of all the data types that can be displayed.
@@ -271,6 +272,20 @@ public class DataType {
         return (value > MissingData);
     }
 
+    /**
+     * Create a quantizer for storing values of this kind of data in 8 or 16
+     * bits, with the special values (MissingData, etc.) reserved so they
+     * come back exactly. Add any additional special types here too. For
+     * example 8 bits, 0.5 and -32 covers reflectivity from -32 to 94 dBZ
+     *
+     * @param bits 8 or 16
+     * @param scale the precision of the data, such as 0.5
+     * @param offset the smallest value
+     */
+    public static Quantizer createQuantizer(int bits, float scale, float offset) {
+        return new Quantizer(bits, scale, offset, MissingData, RangeFolded, DataUnavailable);
+    }
+
     /**
      * Return a double used to sort a volume of this DataType. For example, for
      * RadialSets this would be the elevation value.
@@ -112,7 +112,7 @@ public class LatLonGrid extends DataType implements Table2DView {
 		int j = (int) Math.rint((loc.getLongitude() - this.getLocation().getLongitude()) / this.deltaLon);
 		if ((i >= 0) && (i < values.getX())
 				&& (j >= 0) && (j < values.getY())) {
-			return values.get(i, j);
+			return values.getFloat(i, j);
 		}
 		//	} catch (Exception e) {
 		//	}
@@ -149,7 +149,7 @@ public class LatLonGrid extends DataType implements Table2DView {
 
 	@Override
 	public boolean getCellValue(int row, int col, CellQuery output) {
-		output.value = values.get(row, col);
+		output.value = values.getFloat(row, col);
 		return true;
 	}
 
@@ -256,7 +256,7 @@ public class LatLonGrid extends DataType implements Table2DView {
 			if(q.rowInRange && q.colInRange){
 				//if ((i >= 0) && (i < values.getX())
 				//	&& (j >= 0) && (j < values.getY())) {
-				v = values.get(i, j);
+				v = values.getFloat(i, j);
 			} else {
 				v = DataType.MissingData;
 			}
@@ -8,7 +8,8 @@ import org.wg3.storage.Array3D;
  *  LatLonHeightGrid is a 3D grid of data.
  * I'm going to use an Array3DfloatRAM for now, which stores the
  * entire thing in RAM.  The LatLonHeightGrids we currently look at are
- * for single radars.
+ * for single radars.  Mosaics too big for the heap should be built on an
+ * Array3DfloatAsBricks, which keeps them in the DataManager.
  * 
  * @author Robert Toomey
  */
@@ -77,7 +78,7 @@ public class LatLonHeightGrid extends DataType implements Table2DView {
         //x = getX, numHeights
         // x height, y lat, z lon
         //(height, lat, lon)
-        output.value = data.get(heightsMeters.size() / 2, col, row);
+        output.value = data.getFloat(heightsMeters.size() / 2, col, row);
         return true;
     }
 
@@ -172,8 +173,8 @@ public class LatLonHeightGrid extends DataType implements Table2DView {
 
             // interpolate data between heights for now only...
             // Since we have the full grid, we can do tri interpolation 
-            float r2 = data.get(indexAbove, latIndex, lonIndex);
-            float r1 = data.get(indexBelow, latIndex, lonIndex);
+            float r2 = data.getFloat(indexAbove, latIndex, lonIndex);
+            float r1 = data.getFloat(indexBelow, latIndex, lonIndex);
             float weight1 = (float) ((heightAbove - height) / (total));
             float weight2 = (float) ((height - heightBelow) / total);
             double value = weight1 * r1 + weight2 * r2;
@@ -390,7 +390,7 @@ public class PPIRadialSet extends RadialSet implements Table2DView {
                          * }
                          * }else{
                          */
-                        q.outDataValue = gates.get(gateNumber);
+                        q.outDataValue = gates.getFloat(gateNumber);
                         return;
                     }
                 }
@@ -127,7 +127,7 @@ public class Radial {
     }
 
     public float getValue(int index) {
-        return array.get(index);
+        return array.getFloat(index);
     }
 
     public int getNumGates() {
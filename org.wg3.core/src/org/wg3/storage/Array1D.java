@@ -22,6 +22,13 @@ public interface Array1D<T> {
     /** Set a value given an x and y */
     void set(int x, T value);
 
+    /** Get a value from given x as a primitive float.  Use this in hot loops
+     * since it doesn't box a Float for every call */
+    float getFloat(int x);
+
+    /** Set a value given an x as a primitive float, without boxing */
+    void setFloat(int x, float value);
+
     /** Return the full size of the array */
     int size();
 
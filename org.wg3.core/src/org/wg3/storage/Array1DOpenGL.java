@@ -26,14 +26,26 @@ public class Array1DOpenGL extends DataStorage implements Array1D<Float> {
      */
     private final int myKey;
     
-    /** The tile we are holding and working with.  Just easier to hold onto
-     * it temporarily if we are doing lots of set calls
+    /** The tile we have pinned and are working with.  Just easier to hold
+     * onto it temporarily if we are doing lots of set calls
      */
     private DataNode myWorkingTile;
+
+    /** The DataManager partition our tile is kept in */
+    private final DataManager myManager;
   
     public Array1DOpenGL(int aSize, float backgroundValue) {
+        this(DataManager.getInstance(), aSize, backgroundValue);
+    }
+
+    /**
+     * @param manager the DataManager partition to keep the tile in
+     */
+    public Array1DOpenGL(DataManager manager, int aSize, float backgroundValue) {
+        myManager = manager;
         mySize = aSize;
-        myKey = DataManager.getInstance().getNewTileKey();
+        myKey = myManager.getNewTileKey();
+        myManager.trackTileKeyRange(this, myKey, 1);
         myBackground = backgroundValue;
     }
 
@@ -42,7 +54,8 @@ public class Array1DOpenGL extends DataStorage implements Array1D<Float> {
      * GUI to get render buffer for GL data. If in a different thread then
      * DataManager you need to call synchronize(getBufferLock()){ around your
      * access of the FloatBuffer to keep DataManager from swapping/deleting
-     * stuff out from under you
+     * stuff out from under you, and pin() the tile first so it isn't
+     * trimmed between getting the buffer and drawing it
      *
      */
     @Override
@@ -60,12 +73,17 @@ public class Array1DOpenGL extends DataStorage implements Array1D<Float> {
         }
 
         // Grab the cached tile.
-        DataNode tile = DataManager.getInstance().getTile(myKey, mySize, myBackground);
+        DataNode tile = myManager.getTile(myKey, mySize, myBackground);
         return tile.getRawBuffer();
     }
 
     @Override
     public Float get(int x) {
+        return getFloat(x);
+    }
+
+    @Override
+    public float getFloat(int x) {
 
         // Here we have the CPU and IO hit (the speed cost we pay to save RAM)
         // This code duplicates with set "inline"
@@ -73,29 +91,45 @@ public class Array1DOpenGL extends DataStorage implements Array1D<Float> {
             return myWorkingTile.get(x);
         }
         
-        DataNode tile = DataManager.getInstance().getTile(myKey, mySize, myBackground);
+        DataNode tile = myManager.getTile(myKey, mySize, myBackground);
         return tile.get(x);
     }
 
     /**
-     *  Start a mass set of data. We can pop the tile while we work on it thus
-     * avoiding crazy amounts of searching.
+     *  Start a mass set of data. We pin the tile while we work on it thus
+     * avoiding crazy amounts of searching. It stays in the DataManager, so a
+     * draw in another thread still finds it.
      *
      *  You don't have to call begin/end, but it is much faster to do so.
      */
     @Override
     public void begin() {
-        myWorkingTile = DataManager.getInstance().popTile(myKey, mySize, myBackground);
+        myWorkingTile = myManager.pinTile(myKey, mySize, myBackground);
     }
 
     /**
-     *  End a mass set of data. We push the tile into data manage because we're
-     * done with it and want it managed
+     *  End a mass set of data. We unpin the tile because we're done with it
+     * and want it managed
      */
     @Override
     public void end() {
-        DataManager.getInstance().pushTile(myKey, myWorkingTile);
         myWorkingTile = null;
+        myManager.unpinTile(myKey);
+    }
+
+    /**
+     *  Pin our tile so it stays in RAM, such as over a draw. Pins are
+     * counted, call unpin once for each pin.
+     */
+    public void pin() {
+        myManager.pinTile(myKey, mySize, myBackground);
+    }
+
+    /**
+     *  Take back a pin
+     */
+    public void unpin() {
+        myManager.unpinTile(myKey);
     }
 
     /**
@@ -103,6 +137,14 @@ public class Array1DOpenGL extends DataStorage implements Array1D<Float> {
      */
     @Override
     public void set(int x, Float value) {
+        setFloat(x, value);
+    }
+
+    /**
+     *  Set without boxing, the one the other set calls.
+     */
+    @Override
+    public void setFloat(int x, float value) {
 
         // Here we have the CPU and IO hit (the speed cost we pay to save RAM)
         // This code duplicates with get "inline"
@@ -110,7 +152,7 @@ public class Array1DOpenGL extends DataStorage implements Array1D<Float> {
         if (myWorkingTile != null) {
             myWorkingTile.set(x, value);
         } else {
-            DataNode tile = DataManager.getInstance().getTile(myKey, mySize, myBackground);
+            DataNode tile = myManager.getTile(myKey, mySize, myBackground);
             tile.set(x, value);
         }
     }
@@ -134,7 +176,28 @@ public class Array1DOpenGL extends DataStorage implements Array1D<Float> {
         if (myWorkingTile != null) {
             return myWorkingTile.getReadLock();
         }
-        DataNode tile = DataManager.getInstance().getTile(myKey, mySize, myBackground);
+        DataNode tile = myManager.getTile(myKey, mySize, myBackground);
         return tile.getReadLock();
     }
+
+    /**
+     * Drop our tile, including one pinned for a mass set, and give back the
+     * key
+     */
+    @Override
+    public void release() {
+        if (myWorkingTile != null) {
+            myWorkingTile.discard();
+            myWorkingTile = null;
+        }
+        myManager.releaseTileKeyRange(myKey, 1);
+    }
+
+    /**
+     * Set the codec our tiles are written to the spill store with, null
+     * for the DataManager default
+     */
+    public void setSpillCodec(SpillCodec codec) {
+        myManager.setSpillCodec(myKey, 1, codec);
+    }
 }
@@ -1,15 +1,24 @@
 package org.wg3.storage;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /** Stores 1D arrays as nodes for the DataManager.
  * 
- * Currently stores entire array into a 'single' node.  It will have to
- * fit entirely into RAM.
- * We will have to break up a large array into multiple nodes.
+ * The array is broken into chunks of getRecommendedNodeSize floats (or a
+ * size you pick), each its own node, so a long array is loaded, evicted
+ * and spilled a chunk at a time instead of as one giant node.  Chunk n
+ * holds values n * chunkSize up to (n + 1) * chunkSize.
+ * 
+ * Between begin and end the chunk being worked on is pinned in the
+ * DataManager (like Array1DOpenGL pins its tile), so a sequential pass
+ * only goes to the DataManager when it crosses into the next chunk.
+ * Outside a batch each access looks up its chunk, and a TilePrefetcher
+ * loads the chunks ahead of a scan.
  * 
  * The GUI uses this to store a GL draw data...
- * FIXME: need a count of total nodes function for looping in opengl...
  * 
  * @author Robert Toomey
  *
@@ -19,9 +28,37 @@ public class Array1DfloatAsNodes extends DataStorage implements Array1D<Float> {
     private int mySize;
     private float myBackground;
     
-    /** The key for this node */
+    /** The key for our first chunk, the rest follow it */
     private final int myKey;
     
+    /** Floats in a chunk */
+    private final int myChunkSize;
+    
+    /** Number of chunks, also the number of keys we use */
+    private final int myChunkCount;
+    
+    /** The chunk we are holding during a begin/end batch, or null */
+    private DataNode myWorkingChunk;
+    
+    /** The number of the working chunk */
+    private int myWorkingNumber = -1;
+    
+    /** Watches our chunk access and loads the chunks we're about to need */
+    private final TilePrefetcher myPrefetcher;
+    
+    /** The DataManager partition our nodes are kept in */
+    private final DataManager myManager;
+    
+    /** The lock for a contiguous copy, when we have more than one chunk */
+    private final Object myCopyLock = new Object();
+    
+    /** The contiguous copy from allocate, made on the first getRawBuffer.
+     * Guarded by myCopyLock */
+    private ByteBuffer myCopy;
+    
+    /** 1 for each chunk set since it was last copied */
+    private final AtomicIntegerArray myStaleChunks;
+    
     /** The file key for this node */
     private final String myFileKey;
     
@@ -29,17 +66,45 @@ public class Array1DfloatAsNodes extends DataStorage implements Array1D<Float> {
     private static int counter = 1;
 
     public Array1DfloatAsNodes(int aSize, float backgroundValue) {
+        this(DataManager.getInstance(), aSize, backgroundValue);
+    }
+
+    /**
+     * @param chunkSize floats per node
+     */
+    public Array1DfloatAsNodes(int aSize, float backgroundValue, int chunkSize) {
+        this(DataManager.getInstance(), aSize, backgroundValue, chunkSize);
+    }
+
+    /**
+     * @param manager the DataManager partition to keep the nodes in
+     */
+    public Array1DfloatAsNodes(DataManager manager, int aSize, float backgroundValue) {
+        this(manager, aSize, backgroundValue, manager.getRecommendedNodeSize());
+    }
+
+    /**
+     * @param manager the DataManager partition to keep the nodes in
+     * @param chunkSize floats per node
+     */
+    public Array1DfloatAsNodes(DataManager manager, int aSize, float backgroundValue, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Bad chunk size " + chunkSize);
+        }
         counter++;
+        myManager = manager;
         mySize = aSize;
         myFileKey = "Array1D" + "s" + counter;
-        myKey = DataManager.getInstance().getNewTileKey();
         myBackground = backgroundValue;
 
-        // Node size based off DataManager node size.
-        // Currently we just stick it all in a single node. 
-        // FIXME: should probably 'break' up our data into multiple nodes
-        // So if our size = 10*recommended we make 10 nodes...
-        //int tileSize = DataManager.getInstance().getRecommendedNodeSize();
+        // A short array is one node its own size, like before
+        myChunkSize = Math.max(1, Math.min(chunkSize, aSize));
+        myChunkCount = Math.max(1, (int) (((long) aSize + myChunkSize - 1) / myChunkSize));
+        myKey = myManager.getNewTileKeyRange(myChunkCount);
+        myManager.trackTileKeyRange(this, myKey, myChunkCount);
+        myPrefetcher = new TilePrefetcher(myManager, myKey, myChunkCount, myChunkSize, myBackground);
+        myStaleChunks = new AtomicIntegerArray(myChunkCount);
+
         // That's it.  Nodes will be created on demand as needed during set/get...
     }
 
@@ -47,35 +112,110 @@ public class Array1DfloatAsNodes extends DataStorage implements Array1D<Float> {
     	return myFileKey;
     }
     
-    /** Return the raw float buffer for this array.  Currently only one.  Used
-     * by GUI to get render buffer for GL data.  If in a different thread then
+    /** Floats in each chunk, the last may be partly used */
+    public int getChunkSize() {
+        return myChunkSize;
+    }
+    
+    /** Number of chunks (nodes) the array is stored in */
+    public int getChunkCount() {
+        return myChunkCount;
+    }
+    
+    /** Get a chunk, the working one if we're holding it */
+    private DataNode getChunk(int number) {
+        final DataNode working = myWorkingChunk;
+        if ((working != null) && (number == myWorkingNumber)) {
+            return working;
+        }
+        myPrefetcher.access(number);
+        return myManager.getTile(myKey + number, myChunkSize, myBackground);
+    }
+    
+    /** Return the raw float buffer for this array.  Used by GUI to get
+     * render buffer for GL data.  If in a different thread then
      * DataManager you need to call synchronize(getBufferLock()){
      * around your access of the FloatBuffer to keep DataManager from 
      * swapping/deleting stuff out from under you
      *
+     * With more than one chunk there's no one buffer, so this is a
+     * contiguous copy of all the chunks, stored the way the nodes store it
+     * (see DataNode.toBackground).  Changes to it don't go back to the
+     * array.  The copy is made once, from the DataManager so its bytes are
+     * counted, and each call after only copies again the chunks set since.
+     * It is kept until release, which lets it go without pooling it since
+     * a renderer may still hold it.
      */
     @Override
     public FloatBuffer getRawBuffer() {    
-        DataNode tile = DataManager.getInstance().getTile(myKey, mySize, myBackground);
-        return tile.getRawBuffer();
+        if (myChunkCount == 1) {
+            return getChunk(0).getRawBuffer();
+        }
+        synchronized (myCopyLock) {
+            if (myCopy == null) {
+                myCopy = myManager.allocate(mySize * 4, "Array1DfloatAsNodes", false);
+                myCopy.order(ByteOrder.nativeOrder());
+                for (int n = 0; n < myChunkCount; n++) {
+                    myStaleChunks.set(n, 1);
+                }
+            }
+            FloatBuffer copy = myCopy.asFloatBuffer();
+            float[] scratch = null;
+            for (int n = 0; n < myChunkCount; n++) {
+                // Clear before copying, a set during the copy marks it again
+                if (myStaleChunks.getAndSet(n, 0) == 0) {
+                    continue;
+                }
+                if (scratch == null) {
+                    scratch = new float[myChunkSize];
+                }
+                final int count = Math.min(myChunkSize, mySize - (n * myChunkSize));
+                getChunk(n).get(0, 1, count, scratch, 0, 1);
+                for (int i = 0; i < count; i++) {
+                    scratch[i] = DataNode.toBackground(scratch[i], myBackground); // As stored
+                }
+                copy.position(n * myChunkSize);
+                copy.put(scratch, 0, count);
+            }
+            copy.rewind();
+            return copy;
+        }
     }
 
     @Override
     public Float get(int x) {
+        return getFloat(x);
+    }
+
+    @Override
+    public void set(int x, Float value) {
+        setFloat(x, value);
+    }
+
+    @Override
+    public float getFloat(int x) {
 
         // Here we have the CPU and IO hit (the speed cost we pay to save RAM)
         // This code duplicates with set "inline"
-        DataNode tile = DataManager.getInstance().getTile(myKey, mySize, myBackground);
-        return tile.get(x);
+        final int number = x / myChunkSize;
+        DataNode chunk = getChunk(number);
+        return chunk.get(x - (number * myChunkSize));
     }
 
     @Override
-    public void set(int x, Float value) {
+    public void setFloat(int x, float value) {
 
         // Here we have the CPU and IO hit (the speed cost we pay to save RAM)
         // This code duplicates with get "inline"
-        DataNode tile = DataManager.getInstance().getTile(myKey, mySize, myBackground);
-        tile.set(x, value);
+        final int number = x / myChunkSize;
+        if ((myWorkingChunk != null) && (number != myWorkingNumber)) {
+            takeWorkingChunk(number);
+        }
+        DataNode chunk = getChunk(number);
+        chunk.set(x - (number * myChunkSize), value);
+        if (myChunkCount > 1) {
+            myStaleChunks.set(number, 1);
+        }
     }
 
     @Override
@@ -85,15 +225,68 @@ public class Array1DfloatAsNodes extends DataStorage implements Array1D<Float> {
 
     @Override
     public Object getBufferLock() {
-        DataNode tile = DataManager.getInstance().getTile(myKey, mySize, myBackground);
-        return tile.getReadLock();
+        if (myChunkCount > 1) {
+            return myCopyLock;
+        }
+        return getChunk(0).getReadLock();
     }
 
+    /**
+     *  Start a batch of set/get.  We pin the chunk we're in, swapping it
+     * as sets move to another chunk.
+     */
     @Override
     public void begin() {
+        takeWorkingChunk(0);
     }
 
+    /**
+     *  End a batch, unpinning the working chunk
+     */
     @Override
     public void end() {
+        giveWorkingChunk();
+    }
+
+    /** Swap the working chunk for chunk number */
+    private void takeWorkingChunk(int number) {
+        giveWorkingChunk();
+        myWorkingChunk = myManager.pinTile(myKey + number, myChunkSize, myBackground);
+        myWorkingNumber = number;
+    }
+
+    private void giveWorkingChunk() {
+        if (myWorkingChunk != null) {
+            myManager.unpinTile(myKey + myWorkingNumber);
+            myWorkingChunk = null;
+            myWorkingNumber = -1;
+        }
+    }
+
+    /**
+     * Drop our chunks, including one held for a batch, and give back the
+     * keys and our raw buffer copy
+     */
+    @Override
+    public void release() {
+        if (myWorkingChunk != null) {
+            myWorkingChunk.discard();
+            myWorkingChunk = null;
+        }
+        synchronized (myCopyLock) {
+            if (myCopy != null) {
+                myManager.abandon(myCopy, "Array1DfloatAsNodes");
+                myCopy = null;
+            }
+        }
+        myManager.releaseTileKeyRange(myKey, myChunkCount);
+    }
+
+    /**
+     * Set the codec our tiles are written to the spill store with, null
+     * for the DataManager default
+     */
+    public void setSpillCodec(SpillCodec codec) {
+        myManager.setSpillCodec(myKey, myChunkCount, codec);
     }
 }
@@ -0,0 +1,96 @@
+package org.wg3.storage;
+
+import java.nio.FloatBuffer;
+
+import org.wg3.log.Logger;
+import org.wg3.log.LoggerFactory;
+
+/**
+ * 1D float array in RAM stored as 8 or 16 bit codes, see Quantizer. A
+ * quarter or half the RAM of Array1DfloatRAM for data such as a radial of
+ * reflectivity, where the precision isn't there to lose anyway. Values are
+ * rounded to the quantizer's grid on set, values already on it (and the
+ * reserved special values) come back exactly.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class Array1DfloatQuantized implements Array1D<Float> {
+
+    private final static Logger LOG = LoggerFactory.getLogger(Array1DfloatQuantized.class);
+    private int mySize;
+    private float myBackground;
+    private QuantizedCodes myCodes;
+    private final Quantizer myQuantizer;
+    private boolean myValid = false;
+
+    public Array1DfloatQuantized(int aSize, float backgroundValue, Quantizer quantizer) {
+        mySize = aSize;
+        myBackground = backgroundValue;
+        myQuantizer = quantizer;
+        if (!quantizer.isExact(backgroundValue)) {
+            LOG.warn("Background " + backgroundValue + " isn't exact in " + quantizer);
+        }
+
+        try {
+            myCodes = new QuantizedCodes(quantizer, aSize, backgroundValue);
+            myValid = true;
+        } catch (OutOfMemoryError mem) {
+            LOG.warn("Array1D storage not enough heap space for " + quantizer.getBits() + " bit[" + mySize + "]");
+        }
+    }
+
+    /** The quantizer our values are stored with */
+    public Quantizer getQuantizer() {
+        return myQuantizer;
+    }
+
+    @Override
+    public Float get(int x) {
+        return getFloat(x);
+    }
+
+    @Override
+    public void set(int x, Float value) {
+        setFloat(x, value);
+    }
+
+    @Override
+    public float getFloat(int x) {
+        if (myValid) {
+            return myCodes.get(x);
+        }
+        return myBackground;
+    }
+
+    @Override
+    public void setFloat(int x, float value) {
+        if (myValid) {
+            myCodes.set(x, value);
+        }
+    }
+
+    @Override
+    public int size() {
+        return mySize;
+    }
+
+    @Override
+    public FloatBuffer getRawBuffer() {
+        // No floats to hand out
+        return null;
+    }
+
+    @Override
+    public Object getBufferLock() {
+        return null;
+    }
+
+    @Override
+    public void begin() {
+    }
+
+    @Override
+    public void end() {
+    }
+}
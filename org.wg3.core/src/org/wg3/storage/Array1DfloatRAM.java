@@ -35,6 +35,16 @@ public class Array1DfloatRAM implements Array1D<Float> {
 
     @Override
     public Float get(int x) {
+        return getFloat(x);
+    }
+
+    @Override
+    public void set(int x, Float value) {
+        setFloat(x, value);
+    }
+
+    @Override
+    public float getFloat(int x) {
         if (myValid) {
             return myArray[x];
         }
@@ -42,7 +52,7 @@ public class Array1DfloatRAM implements Array1D<Float> {
     }
 
     @Override
-    public void set(int x, Float value) {
+    public void setFloat(int x, float value) {
         if (myValid) {
             myArray[x] = value;
         }
@@ -1,5 +1,7 @@
 package org.wg3.storage;;
 
+import java.nio.FloatBuffer;
+
 /** Array2D hides the internals of storage of a 2D array.
  * This way we can store it sparse, full, off to disk, etc...
  * 
@@ -17,6 +19,13 @@ public interface Array2D<T> {
     /** Set a value given an x and y */
     void set(int x, int y, T value);
 
+    /** Get a value from given x and y as a primitive float.  Use this in
+     * hot loops since it doesn't box a Float for every call */
+    float getFloat(int x, int y);
+
+    /** Set a value given an x and y as a primitive float, without boxing */
+    void setFloat(int x, int y, float value);
+
     /** Get the 'x' dimension of the array */
     int getX();
 
@@ -26,6 +35,25 @@ public interface Array2D<T> {
     /** Return the full size of the array */
     int size();
 
+    /** Copy a width by height block starting at x, y into dest.  Value
+     * (x + i, y + j) goes to dest[offset + (i * stride) + j], so each x is a
+     * run of height values along y, like a float[x][y].  stride is at least
+     * height.  Much faster than a get per value, each tile (or row) of the
+     * storage is only visited once */
+    void getRegion(int x, int y, int width, int height, float[] dest, int offset, int stride);
+
+    /** Copy a width by height block into dest, laid out as getRegion with
+     * float[].  Uses absolute indexes, the position of dest isn't changed */
+    void getRegion(int x, int y, int width, int height, FloatBuffer dest, int offset, int stride);
+
+    /** Set a width by height block starting at x, y from src, laid out as
+     * getRegion */
+    void setRegion(int x, int y, int width, int height, float[] src, int offset, int stride);
+
+    /** Set a width by height block starting at x, y from src, laid out as
+     * getRegion.  Uses absolute indexes, the position of src isn't changed */
+    void setRegion(int x, int y, int width, int height, FloatBuffer src, int offset, int stride);
+
     /** Return an efficient 1D float access to given col of 2Dfloat,
      * this method 'may' copy, but probably shouldn't.  Return null
      * if you can't implement this */
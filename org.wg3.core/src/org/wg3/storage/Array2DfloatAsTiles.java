@@ -8,15 +8,16 @@ import org.wg3.log.Logger;
 import org.wg3.log.LoggerFactory;
 
 /**
- *   Breaks a 2D array down into a grid where each DataManager node is a square
- * with sides ~= sqrt(nodesize). This works well for data such as LatLonGrids
+ *   Breaks a 2D array down into a grid where each DataManager node is a tile,
+ * by default a 200x200 square. This works well for data such as LatLonGrids
  * since the user is usually over a subsection of the LatLonGrid (think graph
  * paper). Well, ok..in the **GUI** they are.
  *
  *   For doing an algorithm, it might be more efficient to store nodes as 'rows'
  * of data instead of squares, since less node swapping will occur. (You're
  * likely to iterate over the grid this way..) In other words, store the data in
- * the way you're most likely to access it to maximize cache hits.
+ * the way you're most likely to access it to maximize cache hits.  Pass a
+ * TileGeometry to pick the tile shape, and Z-order layouts, per array.
  *
  *   @author Robert Toomey
  *
@@ -36,29 +37,31 @@ public class Array2DfloatAsTiles extends DataStorage implements Array2D<Float> {
     private final int myNumberY;
     /** The default background of the array */
     private float myBackground;
-    /**
-     *  The 'side' of a 2D tile, which we will set to sqrt of the DataManager
-     * tile size
-     */
-    private final int mySide;
-    /**
-     *  The 'side' squared
-     */
-    private final int mySideSquared;
+    /** The shape and layout of our tiles */
+    private final TileGeometry myGeometry;
+    /** Values along x in a tile */
+    private final int myTileWidth;
+    /** Values along y in a tile */
+    private final int myTileHeight;
+    /** Floats in a tile */
+    private final int myTileSize;
+    /** Are values in a tile in x order?  Then we can do runs along x */
+    private final boolean myRowLayout;
+    /** Are tile keys in x order? */
+    private final boolean myRowKeys;
+    /** Number of keys our tiles use, more than the tiles for z-order keys */
+    private final int myKeyCount;
     /** A pre-loaded row of tiles for mass 'set' calls.  Speeds up loading */
     private ArrayList<DataNode> myWorkingTiles = null;
     private int myCurrentOrderedRow = 0;
     /** The base key for our tiles */
     private int myKeyBase;
-
-    // Initializer block...Shared by all constructors, called before constructors
-    {
-        // Tile size based off DataManager node size
-        // int tileSize = DataManager.getInstance().getRecommendedNodeSize();
-        // mySide = (int) Math.floor(Math.sqrt(tileSize));
-        mySide = 200; // 256 data values a side...
-        mySideSquared = mySide * mySide;
-    }
+    /** The name our keys were asked for by, null for throwaway keys */
+    private final String myIdentity;
+    /** Watches our tile access and loads the tiles we're about to need */
+    private final TilePrefetcher myPrefetcher;
+    /** The DataManager partition our tiles are kept in */
+    private final DataManager myManager;
 
     @Override
     public void beginRowOrdered() {
@@ -75,13 +78,13 @@ public class Array2DfloatAsTiles extends DataStorage implements Array2D<Float> {
 
     private ArrayList<DataNode> preloadTilesForRow(int tileRow) {
         // So we preload the tiles for a single row...when y increases, we
-        // buffer the next row of tiles and put back the old ones...
-        int tilesPerRow = (myX / mySide) + 1;  // +1 so 375/100 ==> 3 +1 = 4 tiles
+        // pin the next row of tiles and unpin the old ones...
+        int tilesPerRow = myNumberX;
         ArrayList<DataNode> theTiles = new ArrayList<DataNode>();
         for (int x = 0; x < tilesPerRow; x++) {
             // final String key = myTileRoot + "x" + x + "y" + tileRow;
-            final int theKey = myKeyBase + (tileRow * myNumberX) + x;
-            DataNode tile = DataManager.getInstance().popTile(theKey, mySideSquared, myBackground);
+            final int theKey = getTileKey(x, tileRow);
+            DataNode tile = myManager.pinTile(theKey, myTileSize, myBackground);
             theTiles.add(tile);
         }
         return theTiles;
@@ -92,7 +95,7 @@ public class Array2DfloatAsTiles extends DataStorage implements Array2D<Float> {
             Iterator<DataNode> i = myWorkingTiles.iterator();
             while (i.hasNext()) {
                 DataNode tile = i.next();
-                DataManager.getInstance().pushTile((Integer) tile.getCacheKey(), tile);
+                myManager.unpinTile(tile.getCacheKey());
             }
             myWorkingTiles = null;
         }
@@ -120,12 +123,22 @@ public class Array2DfloatAsTiles extends DataStorage implements Array2D<Float> {
 
         @Override
         public Float get(int x) {
-            return my2DArray.get(myColumn, x);
+            return my2DArray.getFloat(myColumn, x);
         }
 
         @Override
         public void set(int x, Float value) {
-            my2DArray.set(myColumn, x, value);
+            my2DArray.setFloat(myColumn, x, value);
+        }
+
+        @Override
+        public float getFloat(int x) {
+            return my2DArray.getFloat(myColumn, x);
+        }
+
+        @Override
+        public void setFloat(int x, float value) {
+            my2DArray.setFloat(myColumn, x, value);
         }
 
         @Override
@@ -170,12 +183,22 @@ public class Array2DfloatAsTiles extends DataStorage implements Array2D<Float> {
 
         @Override
         public Float get(int x) {
-            return my2DArray.get(x, myRow);
+            return my2DArray.getFloat(x, myRow);
         }
 
         @Override
         public void set(int x, Float value) {
-            my2DArray.set(x, myRow, value);
+            my2DArray.setFloat(x, myRow, value);
+        }
+
+        @Override
+        public float getFloat(int x) {
+            return my2DArray.getFloat(x, myRow);
+        }
+
+        @Override
+        public void setFloat(int x, float value) {
+            my2DArray.setFloat(x, myRow, value);
         }
 
         @Override
@@ -205,42 +228,131 @@ public class Array2DfloatAsTiles extends DataStorage implements Array2D<Float> {
     }
 
     public Array2DfloatAsTiles(int x, int y, float backgroundValue) {
+        this(x, y, backgroundValue, TileGeometry.DEFAULT, null);
+    }
+
+    public Array2DfloatAsTiles(int x, int y, float backgroundValue, TileGeometry geometry) {
+        this(x, y, backgroundValue, geometry, null);
+    }
+
+    public Array2DfloatAsTiles(int x, int y, float backgroundValue, String identity) {
+        this(x, y, backgroundValue, TileGeometry.DEFAULT, identity);
+    }
+
+    public Array2DfloatAsTiles(int x, int y, float backgroundValue, TileGeometry geometry, String identity) {
+        this(DataManager.getInstance(), x, y, backgroundValue, geometry, identity);
+    }
+
+    /**
+     * @param manager the DataManager partition to keep the tiles in
+     */
+    public Array2DfloatAsTiles(DataManager manager, int x, int y, float backgroundValue) {
+        this(manager, x, y, backgroundValue, TileGeometry.DEFAULT, null);
+    }
+
+    /**
+     * Make an array whose tiles can outlive the run. With a persistent tile
+     * store, an array made with the same identity and size in a later run
+     * gets the same tiles back, check isRestored before filling it. See
+     * DataManager.getTileKeyRange
+     *
+     * @param manager the DataManager partition to keep the tiles in, each
+     * partition has its own store
+     * @param geometry the tile shape and layout, part of the identity
+     * @param identity names the content across runs, such as the source file
+     * and field
+     */
+    public Array2DfloatAsTiles(DataManager manager, int x, int y, float backgroundValue, TileGeometry geometry, String identity) {
+        myManager = manager;
         myX = x;
         myY = y;
         myBackground = backgroundValue;
+        myGeometry = geometry;
+        myTileWidth = geometry.getWidth();
+        myTileHeight = geometry.getHeight();
+        myTileSize = geometry.getSize();
+        myRowLayout = !geometry.isMortonElements();
+        myRowKeys = !geometry.isMortonTiles();
 
         /** figure out the max number of tiles for 2D grid */
-        myNumberX = (x / mySide) + 1;  // Ex: 375/100 = 3 --> 3+1 = 4 100 width tiles
-        myNumberY = (y / mySide) + 1;
+        myNumberX = (x / myTileWidth) + 1;  // Ex: 375/100 = 3 --> 3+1 = 4 100 width tiles
+        myNumberY = (y / myTileHeight) + 1;
+        myKeyCount = geometry.getKeyCount(myNumberX, myNumberY);
 
         /** ..and reserve keys for them */
-        myKeyBase = DataManager.getInstance().getNewTileKeyRange(myNumberX * myNumberY);
+        myIdentity = (identity == null) ? null : identity + "@" + geometry;
+        myKeyBase = myManager.getTileKeyRange(myIdentity, myKeyCount);
+        // Once we are collected a named range stays in the store, only its
+        // tiles leave RAM (see DataManager.trackTileKeyRange)
+        myManager.trackTileKeyRange(this, myKeyBase, myKeyCount);
+        if (geometry.isMortonTiles()) {
+            myPrefetcher = new TilePrefetcher(myManager, myKeyBase, myNumberX * myNumberY, myTileSize, myBackground) {
+                @Override
+                protected int getKey(int tile) {
+                    return getTileKey(tile % myNumberX, tile / myNumberX);
+                }
+            };
+        } else {
+            myPrefetcher = new TilePrefetcher(myManager, myKeyBase, myNumberX * myNumberY, myTileSize, myBackground);
+        }
 
         // That's it.  Tiles will be created on demand as needed during set/get...
     }
 
+    /** Get the key of a tile */
+    private int getTileKey(int tileX, int tileY) {
+        if (myRowKeys) {
+            return myKeyBase + (tileY * myNumberX) + tileX;
+        }
+        return myKeyBase + myGeometry.tileKey(tileX, tileY, myNumberX, myNumberY);
+    }
+
+    /** Where local x, y is in a tile */
+    private int getTileIndex(int localX, int localY) {
+        if (myRowLayout) {
+            return (localY * myTileWidth) + localX;  // 'x' order
+        }
+        return myGeometry.index(localX, localY);
+    }
+
+    /** The shape and layout of our tiles */
+    public TileGeometry getTileGeometry() {
+        return myGeometry;
+    }
+
     @Override
     public Float get(int x, int y) {
+        return getFloat(x, y);
+    }
+
+    @Override
+    public void set(int x, int y, Float value) {
+        setFloat(x, y, value);
+    }
+
+    @Override
+    public float getFloat(int x, int y) {
 
         // Here we have the CPU and IO hit (the speed cost we pay to save RAM)
         // This code duplicates with set "inline"
         // This is pretty slow since it does math everytime
-        final int tileX = x / mySide;
-        final int tileY = y / mySide;
-        final int theKey = myKeyBase + (tileY * myNumberX) + tileX;
-        DataNode tile = DataManager.getInstance().getTile(theKey, mySideSquared, myBackground);
-
-        final int localX = x - (mySide * tileX);
-        final int localY = y - (mySide * tileY);
-        final int at = (localY * mySide) + localX;  // 'x' order
-        return tile.get(at);
+        final int tileX = x / myTileWidth;
+        final int tileY = y / myTileHeight;
+        final int tileNumber = (tileY * myNumberX) + tileX;
+        myPrefetcher.access(tileNumber);
+        final int theKey = getTileKey(tileX, tileY);
+        DataNode tile = myManager.getTile(theKey, myTileSize, myBackground);
+
+        final int localX = x - (myTileWidth * tileX);
+        final int localY = y - (myTileHeight * tileY);
+        return tile.get(getTileIndex(localX, localY));
     }
 
     @Override
-    public void set(int x, int y, Float value) {
+    public void setFloat(int x, int y, float value) {
 
-        int tileX = x / mySide;
-        int tileY = y / mySide;
+        int tileX = x / myTileWidth;
+        int tileY = y / myTileHeight;
         if (myWorkingTiles != null) {
 
             // Cache a row of tiles...
@@ -259,9 +371,9 @@ public class Array2DfloatAsTiles extends DataStorage implements Array2D<Float> {
             //if (!(tile.getCacheKey().equals(key))) {
             //    LOG.error("KEY FAILURE: " + key + "!= " + tile.getCacheKey());
             //}
-            int localX = x - (mySide * tileX);
-            int localY = y - (mySide * tileY);
-            int at = (localY * mySide) + localX;  // 'x' order
+            int localX = x - (myTileWidth * tileX);
+            int localY = y - (myTileHeight * tileY);
+            int at = getTileIndex(localX, localY);
             //  LOG.debug("SET " + key + " " + at + " == " + value + " " + myX + ", " + myY);
             tile.set(at, value);
         } else {
@@ -270,16 +382,233 @@ public class Array2DfloatAsTiles extends DataStorage implements Array2D<Float> {
 
             // Here we have the CPU and IO hit (the speed cost we pay to save RAM)
             // This code duplicates with get "inline"
-            final int theKey = myKeyBase + (tileY * myNumberX) + tileX;
-            DataNode tile = DataManager.getInstance().getTile(theKey, mySideSquared, myBackground);
-            int localX = x - (mySide * tileX);
-            int localY = y - (mySide * tileY);
-            int at = (localY * mySide) + localX;  // 'x' order
+            final int tileNumber = (tileY * myNumberX) + tileX;
+            myPrefetcher.access(tileNumber);
+            final int theKey = getTileKey(tileX, tileY);
+            DataNode tile = myManager.getTile(theKey, myTileSize, myBackground);
+            int localX = x - (myTileWidth * tileX);
+            int localY = y - (myTileHeight * tileY);
+            int at = getTileIndex(localX, localY);
             //LOG.debug("SET " + key + " " + at + " == " + value + " " + myX + ", " + myY);
             tile.set(at, value);
         }
     }
 
+    /** Throw if a region isn't inside the array */
+    private void checkRegion(int x, int y, int width, int height, int stride) {
+        if ((x < 0) || (y < 0) || (width < 0) || (height < 0)
+                || (x + width > myX) || (y + height > myY) || (stride < height)) {
+            throw new IndexOutOfBoundsException("Region " + x + "," + y + " " + width + "x" + height
+                    + " stride " + stride + " outside " + myX + "x" + myY);
+        }
+    }
+
+    /** Get a tile, using the preloaded row if we're in a row ordered set */
+    private DataNode getRegionTile(int tileX, int tileY) {
+        if ((myWorkingTiles != null) && (tileY == myCurrentOrderedRow)) {
+            return myWorkingTiles.get(tileX);
+        }
+        return myManager.getTile(getTileKey(tileX, tileY), myTileSize, myBackground);
+    }
+
+    /**
+     *  Copy a region to or from values, tile by tile.  Within a tile we go
+     * a tile row (constant y, running along x) at a time, since that's what's
+     * next to each other in the tile, so each run is one call on the tile.
+     * Morton tiles have no runs, so they go value by value
+     */
+    private void copyRegion(int x, int y, int width, int height,
+            float[] values, int offset, int stride, boolean set) {
+        if ((width == 0) || (height == 0)) {
+            return;
+        }
+        final int lastX = x + width - 1;
+        final int lastY = y + height - 1;
+        for (int tileY = y / myTileHeight; tileY <= lastY / myTileHeight; tileY++) {
+            final int startY = tileY * myTileHeight;
+            final int y0 = Math.max(y, startY);
+            final int y1 = Math.min(lastY, startY + myTileHeight - 1);
+            for (int tileX = x / myTileWidth; tileX <= lastX / myTileWidth; tileX++) {
+                final int startX = tileX * myTileWidth;
+                final int x0 = Math.max(x, startX);
+                final int runX = Math.min(lastX, startX + myTileWidth - 1) - x0 + 1;
+                DataNode tile = getRegionTile(tileX, tileY);
+                for (int yy = y0; yy <= y1; yy++) {
+                    final int to = offset + ((x0 - x) * stride) + (yy - y);
+                    if (!myRowLayout) {
+                        for (int i = 0; i < runX; i++) {
+                            final int at = myGeometry.index(x0 - startX + i, yy - startY);
+                            if (set) {
+                                tile.set(at, values[to + (i * stride)]);
+                            } else {
+                                values[to + (i * stride)] = tile.get(at);
+                            }
+                        }
+                        continue;
+                    }
+                    final int at = ((yy - startY) * myTileWidth) + (x0 - startX);  // 'x' order
+                    if (set) {
+                        tile.set(at, 1, runX, values, to, stride);
+                    } else {
+                        tile.get(at, 1, runX, values, to, stride);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     *  Copy a region to or from a FloatBuffer without a backing array.  We
+     * go a tile's worth at a time through a scratch array, so each tile is
+     * still only visited once
+     */
+    private void copyRegion(int x, int y, int width, int height,
+            FloatBuffer values, int offset, int stride, boolean set) {
+        if ((width == 0) || (height == 0)) {
+            return;
+        }
+        FloatBuffer buffer = values.duplicate();
+        buffer.clear();
+        float[] scratch = new float[Math.min(width, myTileWidth) * Math.min(height, myTileHeight)];
+        final int lastX = x + width - 1;
+        final int lastY = y + height - 1;
+        for (int tileY = y / myTileHeight; tileY <= lastY / myTileHeight; tileY++) {
+            final int y0 = Math.max(y, tileY * myTileHeight);
+            final int h = Math.min(lastY, (tileY * myTileHeight) + myTileHeight - 1) - y0 + 1;
+            for (int tileX = x / myTileWidth; tileX <= lastX / myTileWidth; tileX++) {
+                final int x0 = Math.max(x, tileX * myTileWidth);
+                final int w = Math.min(lastX, (tileX * myTileWidth) + myTileWidth - 1) - x0 + 1;
+                if (set) {
+                    for (int i = 0; i < w; i++) {
+                        buffer.position(offset + ((x0 - x + i) * stride) + (y0 - y));
+                        buffer.get(scratch, i * h, h);
+                    }
+                    copyRegion(x0, y0, w, h, scratch, 0, h, true);
+                } else {
+                    copyRegion(x0, y0, w, h, scratch, 0, h, false);
+                    for (int i = 0; i < w; i++) {
+                        buffer.position(offset + ((x0 - x + i) * stride) + (y0 - y));
+                        buffer.put(scratch, i * h, h);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void getRegion(int x, int y, int width, int height, float[] dest, int offset, int stride) {
+        checkRegion(x, y, width, height, stride);
+        copyRegion(x, y, width, height, dest, offset, stride, false);
+    }
+
+    @Override
+    public void getRegion(int x, int y, int width, int height, FloatBuffer dest, int offset, int stride) {
+        checkRegion(x, y, width, height, stride);
+        if (dest.hasArray()) {
+            copyRegion(x, y, width, height, dest.array(), dest.arrayOffset() + offset, stride, false);
+        } else {
+            copyRegion(x, y, width, height, dest, offset, stride, false);
+        }
+    }
+
+    @Override
+    public void setRegion(int x, int y, int width, int height, float[] src, int offset, int stride) {
+        checkRegion(x, y, width, height, stride);
+        copyRegion(x, y, width, height, src, offset, stride, true);
+    }
+
+    @Override
+    public void setRegion(int x, int y, int width, int height, FloatBuffer src, int offset, int stride) {
+        checkRegion(x, y, width, height, stride);
+        if (src.hasArray()) {
+            copyRegion(x, y, width, height, src.array(), src.arrayOffset() + offset, stride, true);
+        } else {
+            copyRegion(x, y, width, height, src, offset, stride, true);
+        }
+    }
+
+    /**
+     *  Run a visitor on every tile of the array, with up to threads threads
+     * (the calling thread is one of them).  Each tile is visited exactly once
+     * and is locked while visited, see ArrayTile.  Tiles past the edge of
+     * the array are skipped.  Returns when every tile is done.
+     */
+    public void forEachTile(final TileVisitor visitor, int threads) {
+        reduceTiles(new TileReducer<Object>() {
+            @Override
+            public Object visit(ArrayTile tile) {
+                visitor.visit(tile);
+                return null;
+            }
+
+            @Override
+            public Object combine(Object a, Object b) {
+                return null;
+            }
+        }, threads);
+    }
+
+    /**
+     *  Run a visitor on every tile using a thread per processor
+     */
+    public void forEachTile(TileVisitor visitor) {
+        forEachTile(visitor, TileTraversal.getDefaultThreads());
+    }
+
+    /**
+     *  Reduce every tile of the array to one result, with up to threads
+     * threads.  Each tile is visited exactly once, see forEachTile.
+     *
+     * @return the combined result, null if no tile gave one
+     */
+    public <R> R reduceTiles(final TileReducer<R> reducer, int threads) {
+        return TileTraversal.reduce(myNumberX * myNumberY, threads, new TileTraversal.IndexReducer<R>() {
+            @Override
+            public R visit(int index) {
+                return visitTile(index, reducer);
+            }
+
+            @Override
+            public R combine(R a, R b) {
+                return reducer.combine(a, b);
+            }
+        });
+    }
+
+    /**
+     *  Reduce every tile using a thread per processor
+     */
+    public <R> R reduceTiles(TileReducer<R> reducer) {
+        return reduceTiles(reducer, TileTraversal.getDefaultThreads());
+    }
+
+    /**
+     * Visit one tile by tile number, pinned and holding its lock. The pin
+     * keeps a trim on another thread from releasing or spilling it out from
+     * under the visitor's sets
+     */
+    private <R> R visitTile(int tileNumber, TileReducer<R> reducer) {
+        final int tileX = tileNumber % myNumberX;
+        final int tileY = tileNumber / myNumberX;
+        final int startX = tileX * myTileWidth;
+        final int startY = tileY * myTileHeight;
+        if ((startX >= myX) || (startY >= myY)) {
+            return null; // The +1 tile when the size is a multiple of the side
+        }
+        final int theKey = getTileKey(tileX, tileY);
+        DataNode node = myManager.pinTile(theKey, myTileSize, myBackground);
+        try {
+            ArrayTile tile = new ArrayTile(node, startX, startY,
+                    Math.min(myTileWidth, myX - startX), Math.min(myTileHeight, myY - startY),
+                    myGeometry, myBackground);
+            synchronized (node.getWriteLock()) {
+                return reducer.visit(tile);
+            }
+        } finally {
+            myManager.unpinTile(theKey);
+        }
+    }
+
     @Override
     public int getX() {
         return myX;
@@ -310,4 +639,44 @@ public class Array2DfloatAsTiles extends DataStorage implements Array2D<Float> {
     public Array1D<Float> getRow(int i) {
         return new Array1DfloatTileRow(this, i);
     }
+
+    /**
+     * Drop our tiles, including a row pinned for row ordered sets, and give
+     * back our keys
+     */
+    @Override
+    public void release() {
+        if (myWorkingTiles != null) {
+            Iterator<DataNode> i = myWorkingTiles.iterator();
+            while (i.hasNext()) {
+                i.next().discard();
+            }
+            myWorkingTiles = null;
+        }
+        myManager.releaseTileKeyRange(myKeyBase, myKeyCount);
+    }
+
+    /**
+     * Did our tiles come back from the persistent store of a past run? If so
+     * the array already holds its data
+     */
+    public boolean isRestored() {
+        return myManager.isTileKeyRangeRestored(myIdentity);
+    }
+
+    /**
+     * Say the array is filled, so a persistent store keeps its tiles for
+     * the next run. Does nothing for an array without an identity
+     */
+    public void setComplete() {
+        myManager.setTileKeyRangeComplete(myIdentity);
+    }
+
+    /**
+     * Set the codec our tiles are written to the spill store with, null
+     * for the DataManager default
+     */
+    public void setSpillCodec(SpillCodec codec) {
+        myManager.setSpillCodec(myKeyBase, myKeyCount, codec);
+    }
 }
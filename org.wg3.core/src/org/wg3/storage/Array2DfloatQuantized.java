@@ -0,0 +1,237 @@
+package org.wg3.storage;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import org.wg3.log.Logger;
+import org.wg3.log.LoggerFactory;
+
+/**
+ * 2D float array in RAM stored as 8 or 16 bit codes, see Quantizer. A
+ * quarter or half the RAM of Array2DfloatRAM. Values are rounded to the
+ * quantizer's grid on set, values already on it (and the reserved special
+ * values) come back exactly.
+ *
+ * Codes are stored x major like a float[x][y], in one array.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class Array2DfloatQuantized implements Array2D<Float> {
+
+    private final static Logger LOG = LoggerFactory.getLogger(Array2DfloatQuantized.class);
+    private int myX;
+    private int myY;
+    private float myBackground;
+    private QuantizedCodes myCodes;
+    private final Quantizer myQuantizer;
+    private boolean myValid = false;
+
+    /** Not to be implemented directly, this class wraps a column (constant
+     * x) or row (constant y) in the 2D array */
+    private static class Array1DfloatQuantizedLine implements Array1D<Float> {
+
+        private final Array2DfloatQuantized my2DArray;
+        private final int myLine;
+        private final boolean myColumn;
+
+        public Array1DfloatQuantizedLine(Array2DfloatQuantized data, int line, boolean column) {
+            my2DArray = data;
+            myLine = line;
+            myColumn = column;
+        }
+
+        @Override
+        public Float get(int x) {
+            return getFloat(x);
+        }
+
+        @Override
+        public void set(int x, Float value) {
+            setFloat(x, value);
+        }
+
+        @Override
+        public float getFloat(int x) {
+            return myColumn ? my2DArray.getFloat(myLine, x) : my2DArray.getFloat(x, myLine);
+        }
+
+        @Override
+        public void setFloat(int x, float value) {
+            if (myColumn) {
+                my2DArray.setFloat(myLine, x, value);
+            } else {
+                my2DArray.setFloat(x, myLine, value);
+            }
+        }
+
+        @Override
+        public int size() {
+            return myColumn ? my2DArray.getY() : my2DArray.getX();
+        }
+
+        @Override
+        public FloatBuffer getRawBuffer() {
+            return null;
+        }
+
+        @Override
+        public Object getBufferLock() {
+            return null;
+        }
+
+        @Override
+        public void begin() {
+        }
+
+        @Override
+        public void end() {
+        }
+    }
+
+    public Array2DfloatQuantized(int x, int y, float backgroundValue, Quantizer quantizer) {
+        myX = x;
+        myY = y;
+        myBackground = backgroundValue;
+        myQuantizer = quantizer;
+        if (!quantizer.isExact(backgroundValue)) {
+            LOG.warn("Background " + backgroundValue + " isn't exact in " + quantizer);
+        }
+        if ((long) x * y > Integer.MAX_VALUE) {
+            LOG.warn("Array2D storage too big for one array " + x + " by " + y);
+            return;
+        }
+
+        try {
+            myCodes = new QuantizedCodes(quantizer, x * y, backgroundValue);
+            myValid = true;
+        } catch (OutOfMemoryError mem) {
+            LOG.warn("Array2D storage not enough heap space for " + quantizer.getBits() + " bit[" + x + "][" + y + "] array");
+        }
+    }
+
+    /** The quantizer our values are stored with */
+    public Quantizer getQuantizer() {
+        return myQuantizer;
+    }
+
+    @Override
+    public void beginRowOrdered() {
+    }
+
+    @Override
+    public void endRowOrdered() {
+    }
+
+    @Override
+    public Float get(int x, int y) {
+        return getFloat(x, y);
+    }
+
+    @Override
+    public void set(int x, int y, Float value) {
+        setFloat(x, y, value);
+    }
+
+    @Override
+    public float getFloat(int x, int y) {
+        if (myValid) {
+            return myCodes.get((x * myY) + y);
+        }
+        return myBackground;
+    }
+
+    @Override
+    public void setFloat(int x, int y, float value) {
+        if (myValid) {
+            myCodes.set((x * myY) + y, value);
+        }
+    }
+
+    @Override
+    public int getX() {
+        return myX;
+    }
+
+    @Override
+    public int getY() {
+        return myY;
+    }
+
+    @Override
+    public int size() {
+        return myX * myY;
+    }
+
+    /** Throw if a region isn't inside the array */
+    private void checkRegion(int x, int y, int width, int height, int stride) {
+        if ((x < 0) || (y < 0) || (width < 0) || (height < 0)
+                || (x + width > myX) || (y + height > myY) || (stride < height)) {
+            throw new IndexOutOfBoundsException("Region " + x + "," + y + " " + width + "x" + height
+                    + " stride " + stride + " outside " + myX + "x" + myY);
+        }
+    }
+
+    @Override
+    public void getRegion(int x, int y, int width, int height, float[] dest, int offset, int stride) {
+        checkRegion(x, y, width, height, stride);
+        for (int i = 0; i < width; i++) {
+            final int at = offset + (i * stride);
+            if (myValid) {
+                myCodes.get(((x + i) * myY) + y, dest, at, height);
+            } else {
+                Arrays.fill(dest, at, at + height, myBackground);
+            }
+        }
+    }
+
+    @Override
+    public void getRegion(int x, int y, int width, int height, FloatBuffer dest, int offset, int stride) {
+        checkRegion(x, y, width, height, stride);
+        FloatBuffer to = dest.duplicate();
+        to.clear();
+        float[] column = new float[height];
+        for (int i = 0; i < width; i++) {
+            getRegion(x + i, y, 1, height, column, 0, height);
+            to.position(offset + (i * stride));
+            to.put(column, 0, height);
+        }
+    }
+
+    @Override
+    public void setRegion(int x, int y, int width, int height, float[] src, int offset, int stride) {
+        checkRegion(x, y, width, height, stride);
+        if (myValid) {
+            for (int i = 0; i < width; i++) {
+                myCodes.set(((x + i) * myY) + y, src, offset + (i * stride), height);
+            }
+        }
+    }
+
+    @Override
+    public void setRegion(int x, int y, int width, int height, FloatBuffer src, int offset, int stride) {
+        checkRegion(x, y, width, height, stride);
+        if (myValid) {
+            FloatBuffer from = src.duplicate();
+            from.clear();
+            float[] column = new float[height];
+            for (int i = 0; i < width; i++) {
+                from.position(offset + (i * stride));
+                from.get(column, 0, height);
+                myCodes.set(((x + i) * myY) + y, column, 0, height);
+            }
+        }
+    }
+
+    @Override
+    public Array1D<Float> getCol(int i) {
+        // Note the only memory here is the object, not the array
+        return new Array1DfloatQuantizedLine(this, i, true);
+    }
+
+    @Override
+    public Array1D<Float> getRow(int i) {
+        // Note the only memory here is the object, not the array
+        return new Array1DfloatQuantizedLine(this, i, false);
+    }
+}
@@ -1,6 +1,7 @@
 package org.wg3.storage;
 
 import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 import org.wg3.log.Logger;
 import org.wg3.log.LoggerFactory;
@@ -48,6 +49,16 @@ public class Array2DfloatRAM implements Array2D<Float> {
 
         @Override
         public Float get(int x) {
+            return getFloat(x);
+        }
+
+        @Override
+        public void set(int x, Float value) {
+            setFloat(x, value);
+        }
+
+        @Override
+        public float getFloat(int x) {
             if (my2DArray.myValid) {
                 return my2DArray.myArray[x][myColumn];
             }
@@ -55,7 +66,7 @@ public class Array2DfloatRAM implements Array2D<Float> {
         }
 
         @Override
-        public void set(int x, Float value) {
+        public void setFloat(int x, float value) {
             if (my2DArray.myValid) {
                 my2DArray.myArray[x][myColumn] = value;
             }
@@ -103,6 +114,16 @@ public class Array2DfloatRAM implements Array2D<Float> {
 
         @Override
         public Float get(int x) {
+            return getFloat(x);
+        }
+
+        @Override
+        public void set(int x, Float value) {
+            setFloat(x, value);
+        }
+
+        @Override
+        public float getFloat(int x) {
             if (my2DArray.myValid) {
                 return my2DArray.myArray[myRow][x];
             }
@@ -110,7 +131,7 @@ public class Array2DfloatRAM implements Array2D<Float> {
         }
 
         @Override
-        public void set(int x, Float value) {
+        public void setFloat(int x, float value) {
             if (my2DArray.myValid) {
                 my2DArray.myArray[myRow][x] = value;
             }
@@ -160,6 +181,16 @@ public class Array2DfloatRAM implements Array2D<Float> {
 
     @Override
     public Float get(int x, int y) {
+        return getFloat(x, y);
+    }
+
+    @Override
+    public void set(int x, int y, Float value) {
+        setFloat(x, y, value);
+    }
+
+    @Override
+    public float getFloat(int x, int y) {
         if (myValid) {
             return myArray[x][y];
         }
@@ -167,7 +198,7 @@ public class Array2DfloatRAM implements Array2D<Float> {
     }
 
     @Override
-    public void set(int x, int y, Float value) {
+    public void setFloat(int x, int y, float value) {
         if (myValid) {
             myArray[x][y] = value;
         }
@@ -188,6 +219,68 @@ public class Array2DfloatRAM implements Array2D<Float> {
         return myX * myY;
     }
 
+    /** Throw if a region isn't inside the array */
+    private void checkRegion(int x, int y, int width, int height, int stride) {
+        if ((x < 0) || (y < 0) || (width < 0) || (height < 0)
+                || (x + width > myX) || (y + height > myY) || (stride < height)) {
+            throw new IndexOutOfBoundsException("Region " + x + "," + y + " " + width + "x" + height
+                    + " stride " + stride + " outside " + myX + "x" + myY);
+        }
+    }
+
+    @Override
+    public void getRegion(int x, int y, int width, int height, float[] dest, int offset, int stride) {
+        checkRegion(x, y, width, height, stride);
+        for (int i = 0; i < width; i++) {
+            final int at = offset + (i * stride);
+            if (myValid) {
+                System.arraycopy(myArray[x + i], y, dest, at, height);
+            } else {
+                Arrays.fill(dest, at, at + height, myBackground);
+            }
+        }
+    }
+
+    @Override
+    public void getRegion(int x, int y, int width, int height, FloatBuffer dest, int offset, int stride) {
+        checkRegion(x, y, width, height, stride);
+        FloatBuffer to = dest.duplicate();
+        to.clear();
+        for (int i = 0; i < width; i++) {
+            to.position(offset + (i * stride));
+            if (myValid) {
+                to.put(myArray[x + i], y, height);
+            } else {
+                for (int j = 0; j < height; j++) {
+                    to.put(myBackground);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setRegion(int x, int y, int width, int height, float[] src, int offset, int stride) {
+        checkRegion(x, y, width, height, stride);
+        if (myValid) {
+            for (int i = 0; i < width; i++) {
+                System.arraycopy(src, offset + (i * stride), myArray[x + i], y, height);
+            }
+        }
+    }
+
+    @Override
+    public void setRegion(int x, int y, int width, int height, FloatBuffer src, int offset, int stride) {
+        checkRegion(x, y, width, height, stride);
+        if (myValid) {
+            FloatBuffer from = src.duplicate();
+            from.clear();
+            for (int i = 0; i < width; i++) {
+                from.position(offset + (i * stride));
+                from.get(myArray[x + i], y, height);
+            }
+        }
+    }
+
     @Override
     public Array1D<Float> getCol(int i) {
         // Note the only memory here is the object, not the array
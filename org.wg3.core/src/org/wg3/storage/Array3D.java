@@ -16,6 +16,13 @@ public interface Array3D<T> {
     /** Set a value given an x and y */
     void set(int x, int y, int z, T value);
 
+    /** Get a value from given x, y and z as a primitive float.  Use this
+     * in hot loops since it doesn't box a Float for every call */
+    float getFloat(int x, int y, int z);
+
+    /** Set a value given an x, y and z as a primitive float, without boxing */
+    void setFloat(int x, int y, int z, float value);
+
     /** Get the 'x' dimension of the array */
     int getX();
 
@@ -27,4 +34,25 @@ public interface Array3D<T> {
 
     /** Return the full size of the array */
     int size();    
+
+    /** Copy a width by height by depth block starting at x, y, z into dest.
+     * Value (x + i, y + j, z + k) goes to
+     * dest[offset + (((i * height) + j) * depth) + k], like a float[x][y][z].
+     * Much faster than a get per value, each brick (or row) of the storage
+     * is only visited once */
+    void getRegion(int x, int y, int z, int width, int height, int depth, float[] dest, int offset);
+
+    /** Set a width by height by depth block starting at x, y, z from src,
+     * laid out as getRegion */
+    void setRegion(int x, int y, int z, int width, int height, int depth, float[] src, int offset);
+
+    /** begin row ordered for a mass get/set of data.  Allows array to
+     * optimize sub-brick loading.  This should expect a looped call with 
+     * row ordered calls.  X, then Y, then Z fastest.
+     */
+    public void beginRowOrdered();
+
+    /** end row ordered for a mass get/set of data
+     */
+    public void endRowOrdered();
 }
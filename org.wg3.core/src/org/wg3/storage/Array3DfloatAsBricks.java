@@ -0,0 +1,346 @@
+package org.wg3.storage;
+
+import java.util.ArrayList;
+
+import org.wg3.log.Logger;
+import org.wg3.log.LoggerFactory;
+
+/**
+ * Breaks a 3D array down into cubic bricks (by default 32x32x32) where each
+ * DataManager node is a brick, so a volume bigger than the heap lives in the
+ * tile cache and spill store like Array2DfloatAsTiles does for grids. Only
+ * the bricks touched take RAM, untouched ones read as background, and the
+ * background is stored as zero (see DataNode.toBackground) so new bricks
+ * don't need filling.
+ *
+ * Inside a brick values are z fastest, then y, then x, like a
+ * float[x][y][z], and bricks are keyed the same way. A run along z is
+ * next to each other in a brick.
+ *
+ * For mass writes either:
+ *
+ * Row order: call beginRowOrdered, then loop x, then y, then z (or set a
+ * run along z at a time with setRegion), then endRowOrdered. The bricks
+ * along z for the current x, y are pinned in the cache while we're in
+ * them. Every x plane passes over a whole slab of bricks (one brick thick
+ * in x), so this stays fast while a slab fits the cache budget.
+ *
+ * Brick order: setRegion one brick aligned block (see getBrickSide) at a
+ * time. Each brick is loaded once and filled with a lock per run, so it
+ * works in a fixed budget however big the volume is.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class Array3DfloatAsBricks extends DataStorage implements Array3D<Float> {
+
+    @SuppressWarnings("unused")
+    private final static Logger LOG = LoggerFactory.getLogger(Array3DfloatAsBricks.class);
+    /**
+     * Side of the default brick, 32768 floats
+     */
+    public static final int DEFAULT_BRICK_SIDE = 32;
+    /** The full number of possible x values in floats */
+    private final int myX;
+    /** The full number of possible y values in floats */
+    private final int myY;
+    /** The full number of possible z values in floats */
+    private final int myZ;
+    /** The number of bricks in the X */
+    private final int myNumberX;
+    /** The number of bricks in the Y */
+    private final int myNumberY;
+    /** The number of bricks in the Z */
+    private final int myNumberZ;
+    /** The default background of the array */
+    private final float myBackground;
+    /** Values along a side of a brick */
+    private final int mySide;
+    /** log2 of the side */
+    private final int myShift;
+    /** side - 1, for the local part of a coordinate */
+    private final int myMask;
+    /** Floats in a brick */
+    private final int myBrickSize;
+    /** The base key for our bricks */
+    private final int myKeyBase;
+    /** Number of bricks, also the number of keys we use */
+    private final int myBrickCount;
+    /** Bricks along z for the current x, y during a row ordered set */
+    private ArrayList<DataNode> myWorkingBricks = null;
+    private int myWorkingX = -1;
+    private int myWorkingY = -1;
+    /** Watches our brick access and loads the bricks we're about to need */
+    private final TilePrefetcher myPrefetcher;
+    /** The DataManager partition our bricks are kept in */
+    private final DataManager myManager;
+
+    public Array3DfloatAsBricks(int x, int y, int z, float backgroundValue) {
+        this(DataManager.getInstance(), x, y, z, backgroundValue, DEFAULT_BRICK_SIDE);
+    }
+
+    /**
+     * @param brickSide values along each side of a brick, a power of two
+     */
+    public Array3DfloatAsBricks(int x, int y, int z, float backgroundValue, int brickSide) {
+        this(DataManager.getInstance(), x, y, z, backgroundValue, brickSide);
+    }
+
+    /**
+     * @param manager the DataManager partition to keep the bricks in
+     */
+    public Array3DfloatAsBricks(DataManager manager, int x, int y, int z, float backgroundValue) {
+        this(manager, x, y, z, backgroundValue, DEFAULT_BRICK_SIDE);
+    }
+
+    /**
+     * @param manager the DataManager partition to keep the bricks in
+     * @param brickSide values along each side of a brick, a power of two
+     */
+    public Array3DfloatAsBricks(DataManager manager, int x, int y, int z, float backgroundValue, int brickSide) {
+        if ((brickSide < 1) || ((brickSide & (brickSide - 1)) != 0)
+                || ((long) brickSide * brickSide * brickSide > Integer.MAX_VALUE / 4)) {
+            throw new IllegalArgumentException("Brick side must be a power of two, not " + brickSide);
+        }
+        if ((x < 0) || (y < 0) || (z < 0) || ((long) x * y * z > Integer.MAX_VALUE)) {
+            throw new IllegalArgumentException("Bad 3D array size " + x + "x" + y + "x" + z);
+        }
+        myManager = manager;
+        myX = x;
+        myY = y;
+        myZ = z;
+        myBackground = backgroundValue;
+        mySide = brickSide;
+        myShift = Integer.numberOfTrailingZeros(brickSide);
+        myMask = brickSide - 1;
+        myBrickSize = brickSide * brickSide * brickSide;
+
+        /** figure out the number of bricks... */
+        myNumberX = Math.max(1, (x + myMask) >> myShift);
+        myNumberY = Math.max(1, (y + myMask) >> myShift);
+        myNumberZ = Math.max(1, (z + myMask) >> myShift);
+        myBrickCount = myNumberX * myNumberY * myNumberZ;
+
+        /** ..and reserve keys for them */
+        myKeyBase = myManager.getTileKeyRange(null, myBrickCount);
+        myManager.trackTileKeyRange(this, myKeyBase, myBrickCount);
+        myPrefetcher = new TilePrefetcher(myManager, myKeyBase, myBrickCount, myBrickSize, myBackground);
+
+        // Bricks will be created on demand as needed during set/get...
+    }
+
+    /** Number of a brick, also its key from the base */
+    private int getBrickNumber(int brickX, int brickY, int brickZ) {
+        return (((brickX * myNumberY) + brickY) * myNumberZ) + brickZ;
+    }
+
+    /** Where local x, y, z is in a brick */
+    private int getBrickIndex(int localX, int localY, int localZ) {
+        return (((localX << myShift) + localY) << myShift) + localZ;  // 'z' order
+    }
+
+    /** Values along each side of a brick.  Blocks aligned to this are
+     * single bricks for brick ordered sets */
+    public int getBrickSide() {
+        return mySide;
+    }
+
+    /** Get a brick, from the working bricks if we're in a row ordered set */
+    private DataNode getBrick(int brickX, int brickY, int brickZ) {
+        final ArrayList<DataNode> working = myWorkingBricks;
+        if ((working != null) && (brickX == myWorkingX) && (brickY == myWorkingY)) {
+            return working.get(brickZ);
+        }
+        final int number = getBrickNumber(brickX, brickY, brickZ);
+        myPrefetcher.access(number);
+        return myManager.getTile(myKeyBase + number, myBrickSize, myBackground);
+    }
+
+    @Override
+    public Float get(int x, int y, int z) {
+        return getFloat(x, y, z);
+    }
+
+    @Override
+    public void set(int x, int y, int z, Float value) {
+        setFloat(x, y, z, value);
+    }
+
+    @Override
+    public float getFloat(int x, int y, int z) {
+        DataNode brick = getBrick(x >> myShift, y >> myShift, z >> myShift);
+        return brick.get(getBrickIndex(x & myMask, y & myMask, z & myMask));
+    }
+
+    @Override
+    public void setFloat(int x, int y, int z, float value) {
+        final int brickX = x >> myShift;
+        final int brickY = y >> myShift;
+        if ((myWorkingBricks != null) && ((brickX != myWorkingX) || (brickY != myWorkingY))) {
+            loadWorkingBricks(brickX, brickY);
+        }
+        DataNode brick = getBrick(brickX, brickY, z >> myShift);
+        brick.set(getBrickIndex(x & myMask, y & myMask, z & myMask), value);
+    }
+
+    /**
+     * Begin a row ordered mass set: x, then y, then z fastest.  Still works
+     * out of order, but it's optimized for a run of bricks along z at a time
+     */
+    @Override
+    public void beginRowOrdered() {
+        loadWorkingBricks(0, 0);
+    }
+
+    /**
+     * End a row ordered mass set, giving the working bricks back to the
+     * DataManager
+     */
+    @Override
+    public void endRowOrdered() {
+        unloadWorkingBricks();
+    }
+
+    /** Swap the working bricks for the ones along z at brick x, y */
+    private void loadWorkingBricks(int brickX, int brickY) {
+        unloadWorkingBricks();
+        ArrayList<DataNode> bricks = new ArrayList<DataNode>(myNumberZ);
+        for (int z = 0; z < myNumberZ; z++) {
+            final int theKey = myKeyBase + getBrickNumber(brickX, brickY, z);
+            bricks.add(myManager.pinTile(theKey, myBrickSize, myBackground));
+        }
+        myWorkingX = brickX;
+        myWorkingY = brickY;
+        myWorkingBricks = bricks;
+    }
+
+    private void unloadWorkingBricks() {
+        if (myWorkingBricks != null) {
+            for (DataNode brick : myWorkingBricks) {
+                myManager.unpinTile(brick.getCacheKey());
+            }
+            myWorkingBricks = null;
+            myWorkingX = -1;
+            myWorkingY = -1;
+        }
+    }
+
+    /** Throw if a block isn't inside the array */
+    private void checkRegion(int x, int y, int z, int width, int height, int depth, int length, int offset) {
+        if ((x < 0) || (y < 0) || (z < 0) || (width < 0) || (height < 0) || (depth < 0)
+                || (x + width > myX) || (y + height > myY) || (z + depth > myZ)
+                || (offset < 0) || ((long) offset + ((long) width * height * depth) > length)) {
+            throw new IndexOutOfBoundsException("Region " + x + "," + y + "," + z + " "
+                    + width + "x" + height + "x" + depth + " outside " + myX + "x" + myY + "x" + myZ
+                    + " or array of " + length + " at " + offset);
+        }
+    }
+
+    /**
+     * Copy a block to or from values, brick by brick.  Within a brick we go
+     * a run along z at a time, since that's what's next to each other in the
+     * brick, so each run is one call on the brick.  In a row ordered set
+     * the working bricks follow the block
+     */
+    private void copyRegion(int x, int y, int z, int width, int height, int depth,
+            float[] values, int offset, boolean set) {
+        if ((width == 0) || (height == 0) || (depth == 0)) {
+            return;
+        }
+        final int lastX = x + width - 1;
+        final int lastY = y + height - 1;
+        final int lastZ = z + depth - 1;
+        for (int brickX = x >> myShift; brickX <= lastX >> myShift; brickX++) {
+            final int x0 = Math.max(x, brickX << myShift);
+            final int x1 = Math.min(lastX, (brickX << myShift) + myMask);
+            for (int brickY = y >> myShift; brickY <= lastY >> myShift; brickY++) {
+                final int y0 = Math.max(y, brickY << myShift);
+                final int y1 = Math.min(lastY, (brickY << myShift) + myMask);
+                if (set && (myWorkingBricks != null) && ((brickX != myWorkingX) || (brickY != myWorkingY))) {
+                    loadWorkingBricks(brickX, brickY);
+                }
+                for (int brickZ = z >> myShift; brickZ <= lastZ >> myShift; brickZ++) {
+                    final int z0 = Math.max(z, brickZ << myShift);
+                    final int runZ = Math.min(lastZ, (brickZ << myShift) + myMask) - z0 + 1;
+                    DataNode brick = getBrick(brickX, brickY, brickZ);
+                    for (int xx = x0; xx <= x1; xx++) {
+                        for (int yy = y0; yy <= y1; yy++) {
+                            final int at = getBrickIndex(xx & myMask, yy & myMask, z0 & myMask);
+                            final int to = offset + (((((xx - x) * height) + (yy - y)) * depth) + (z0 - z));
+                            if (set) {
+                                brick.set(at, 1, runZ, values, to, 1);
+                            } else {
+                                brick.get(at, 1, runZ, values, to, 1);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy a width by height by depth block starting at x, y, z into dest.
+     * Value (x + i, y + j, z + k) goes to
+     * dest[offset + (((i * height) + j) * depth) + k], like a float[x][y][z]
+     */
+    @Override
+    public void getRegion(int x, int y, int z, int width, int height, int depth, float[] dest, int offset) {
+        checkRegion(x, y, z, width, height, depth, dest.length, offset);
+        copyRegion(x, y, z, width, height, depth, dest, offset, false);
+    }
+
+    /**
+     * Set a width by height by depth block starting at x, y, z from src,
+     * laid out as getRegion.  A block that's one brick (aligned to
+     * getBrickSide) loads that brick once
+     */
+    @Override
+    public void setRegion(int x, int y, int z, int width, int height, int depth, float[] src, int offset) {
+        checkRegion(x, y, z, width, height, depth, src.length, offset);
+        copyRegion(x, y, z, width, height, depth, src, offset, true);
+    }
+
+    @Override
+    public int getX() {
+        return myX;
+    }
+
+    @Override
+    public int getY() {
+        return myY;
+    }
+
+    @Override
+    public int getZ() {
+        return myZ;
+    }
+
+    @Override
+    public int size() {
+        return myX * myY * myZ;
+    }
+
+    /**
+     * Drop our bricks, including any held for a row ordered set, and give
+     * back our keys
+     */
+    @Override
+    public void release() {
+        if (myWorkingBricks != null) {
+            for (DataNode brick : myWorkingBricks) {
+                brick.discard();
+            }
+            myWorkingBricks = null;
+        }
+        myManager.releaseTileKeyRange(myKeyBase, myBrickCount);
+    }
+
+    /**
+     * Set the codec our bricks are written to the spill store with, null
+     * for the DataManager default
+     */
+    public void setSpillCodec(SpillCodec codec) {
+        myManager.setSpillCodec(myKeyBase, myBrickCount, codec);
+    }
+}
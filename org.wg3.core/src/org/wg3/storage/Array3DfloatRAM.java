@@ -1,5 +1,7 @@
 package org.wg3.storage;
 
+import java.util.Arrays;
+
 import org.wg3.log.Logger;
 import org.wg3.log.LoggerFactory;
 
@@ -46,6 +48,16 @@ public class Array3DfloatRAM implements Array3D<Float> {
 
     @Override
     public Float get(int x, int y, int z) {
+        return getFloat(x, y, z);
+    }
+
+    @Override
+    public void set(int x, int y, int z, Float value) {
+        setFloat(x, y, z, value);
+    }
+
+    @Override
+    public float getFloat(int x, int y, int z) {
         if (myValid) {
             return myArray[x][y][z];
         }
@@ -53,12 +65,62 @@ public class Array3DfloatRAM implements Array3D<Float> {
     }
 
     @Override
-    public void set(int x, int y, int z, Float value) {
+    public void setFloat(int x, int y, int z, float value) {
         if (myValid) {
             myArray[x][y][z] = value;
         }
     }
 
+    /** Throw if a block isn't inside the array */
+    private void checkRegion(int x, int y, int z, int width, int height, int depth, int length, int offset) {
+        if ((x < 0) || (y < 0) || (z < 0) || (width < 0) || (height < 0) || (depth < 0)
+                || (x + width > myX) || (y + height > myY) || (z + depth > myZ)
+                || (offset < 0) || ((long) offset + ((long) width * height * depth) > length)) {
+            throw new IndexOutOfBoundsException("Region " + x + "," + y + "," + z + " "
+                    + width + "x" + height + "x" + depth + " outside " + myX + "x" + myY + "x" + myZ
+                    + " or array of " + length + " at " + offset);
+        }
+    }
+
+    @Override
+    public void getRegion(int x, int y, int z, int width, int height, int depth, float[] dest, int offset) {
+        checkRegion(x, y, z, width, height, depth, dest.length, offset);
+        int to = offset;
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                if (myValid) {
+                    System.arraycopy(myArray[x + i][y + j], z, dest, to, depth);
+                } else {
+                    Arrays.fill(dest, to, to + depth, myBackground);
+                }
+                to += depth;
+            }
+        }
+    }
+
+    @Override
+    public void setRegion(int x, int y, int z, int width, int height, int depth, float[] src, int offset) {
+        checkRegion(x, y, z, width, height, depth, src.length, offset);
+        if (!myValid) {
+            return;
+        }
+        int from = offset;
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                System.arraycopy(src, from, myArray[x + i][y + j], z, depth);
+                from += depth;
+            }
+        }
+    }
+
+    @Override
+    public void beginRowOrdered() {
+    }
+
+    @Override
+    public void endRowOrdered() {
+    }
+
     @Override
     public int getX() {
         return myX;
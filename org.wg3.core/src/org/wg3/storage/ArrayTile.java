@@ -0,0 +1,141 @@
+package org.wg3.storage;
+
+import java.nio.FloatBuffer;
+
+/**
+ * One tile of a tiled array, handed to a TileVisitor or TileReducer during a
+ * traversal. Coordinates are tile local, 0 to getWidth()-1 across and 0 to
+ * getHeight()-1 down, with getStartX/getStartY giving where the tile sits in
+ * the array. Edge tiles are clipped to the array.
+ *
+ * The tile's DataNode is locked for the whole visit, so it can't be written
+ * out or released under you, and nobody else can set values in it. Only use
+ * an ArrayTile inside the visit it was given to.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class ArrayTile {
+
+    private final DataNode myNode;
+    private final int myStartX;
+    private final int myStartY;
+    private final int myWidth;
+    private final int myHeight;
+    private final TileGeometry myGeometry;
+    private final int myStride;
+    private final boolean myRowLayout;
+    private final float myBackground;
+
+    ArrayTile(DataNode node, int startX, int startY, int width, int height,
+            TileGeometry geometry, float background) {
+        myNode = node;
+        myStartX = startX;
+        myStartY = startY;
+        myWidth = width;
+        myHeight = height;
+        myGeometry = geometry;
+        myStride = geometry.getWidth();
+        myRowLayout = !geometry.isMortonElements();
+        myBackground = background;
+    }
+
+    /** The array x of local x 0 */
+    public int getStartX() {
+        return myStartX;
+    }
+
+    /** The array y of local y 0 */
+    public int getStartY() {
+        return myStartY;
+    }
+
+    /** Number of x values in the tile */
+    public int getWidth() {
+        return myWidth;
+    }
+
+    /** Number of y values in the tile */
+    public int getHeight() {
+        return myHeight;
+    }
+
+    /** The background value of the array */
+    public float getBackground() {
+        return myBackground;
+    }
+
+    /**
+     * Is the whole tile background? Then there's no storage behind it and
+     * reductions can count it in one go instead of value by value.
+     */
+    public boolean isConstant() {
+        return myNode.isConstant();
+    }
+
+    public float getFloat(int x, int y) {
+        return myNode.get(getRawIndex(x, y));
+    }
+
+    public void setFloat(int x, int y, float value) {
+        myNode.set(getRawIndex(x, y), value);
+    }
+
+    /**
+     * Get the tile's values for local row y (constant y, all x) into dest at
+     * offset. Quicker than getFloat per value
+     */
+    public void getRow(int y, float[] dest, int offset) {
+        if (myRowLayout) {
+            myNode.get(y * myStride, 1, myWidth, dest, offset, 1);
+        } else {
+            for (int x = 0; x < myWidth; x++) {
+                dest[offset + x] = myNode.get(myGeometry.index(x, y));
+            }
+        }
+    }
+
+    /**
+     * Set the tile's values for local row y (constant y, all x) from src at
+     * offset
+     */
+    public void setRow(int y, float[] src, int offset) {
+        if (myRowLayout) {
+            myNode.set(y * myStride, 1, myWidth, src, offset, 1);
+        } else {
+            for (int x = 0; x < myWidth; x++) {
+                myNode.set(myGeometry.index(x, y), src[offset + x]);
+            }
+        }
+    }
+
+    /** The layout of the tile */
+    public TileGeometry getGeometry() {
+        return myGeometry;
+    }
+
+    /**
+     * Where local x, y is in the raw buffer. For x order tiles that's y *
+     * getRawStride() + x, Morton tiles are in Z-order
+     */
+    public int getRawIndex(int x, int y) {
+        return myRowLayout ? (y * myStride) + x : myGeometry.index(x, y);
+    }
+
+    /**
+     * Get the raw direct buffer of the tile. Local x, y is at getRawIndex(x,
+     * y). Values are as stored: background is 0 and a real 0
+     * is DataNode.STORED_ZERO, use DataNode.fromBackground/toBackground.
+     * Calling this on a constant tile allocates it. Writing the buffer
+     * directly doesn't mark the tile changed, call setFloat or setRow at
+     * least once if you do.
+     */
+    public FloatBuffer getRawBuffer() {
+        return myNode.getRawBuffer();
+    }
+
+    /** The distance in floats between rows in the raw buffer, for x order tiles */
+    public int getRawStride() {
+        return myStride;
+    }
+}
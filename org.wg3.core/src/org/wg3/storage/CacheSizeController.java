@@ -0,0 +1,357 @@
+package org.wg3.storage;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.wg3.log.Logger;
+import org.wg3.log.LoggerFactory;
+
+/**
+ * Moves the DataManager cache budget between the LRUCache min and max size
+ * as the machine's memory allows. Run every few seconds by the DataManager.
+ *
+ * Each run samples:
+ *
+ * Heap: the old generation after the last collection, as a fraction of its
+ * max (plain heap use if the VM doesn't tell us). Tiles are off heap, but a
+ * full heap means the application needs the memory more than we do.
+ *
+ * Direct memory: bytes in direct buffers, which is where the tiles live, as
+ * a fraction of -XX:MaxDirectMemorySize (the heap max when not set).
+ *
+ * GC pressure: the fraction of wall time spent collecting since last run.
+ *
+ * Miss rate: the misses a bigger cache would have saved, tiles we had to
+ * go back for (restored from the spill store, or taken back from the write
+ * queue) per tile evicted since last run. Near 1 the cache is thrashing,
+ * everything it lets go comes back. Near 0 it's just streaming through new
+ * tiles and more RAM wouldn't help. Lookups are no good to count by, every
+ * get of a value is one.
+ *
+ * Any pressure over its high mark shrinks the budget right away. Growing
+ * needs a miss rate worth it, all pressures low, room in direct memory for
+ * the bigger budget, and two runs in a row agreeing, so we don't flap. A
+ * shrink trims the cache at once, a grow just lets it fill. A grow never
+ * takes the budgets of all the partitions past the shared total.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class CacheSizeController implements Runnable {
+
+    private final static Logger LOG = LoggerFactory.getLogger(CacheSizeController.class);
+    /**
+     * How often the DataManager runs us
+     */
+    public static final long DEFAULT_PERIOD_MILLIS = 5000;
+    /**
+     * Heap or direct use over this fraction shrinks the cache
+     */
+    public static final float HIGH_PRESSURE = 0.85f;
+    /**
+     * Heap and direct use must be under this fraction to grow
+     */
+    public static final float LOW_PRESSURE = 0.60f;
+    /**
+     * Fraction of time in GC that shrinks the cache
+     */
+    public static final float HIGH_GC = 0.10f;
+    /**
+     * Fraction of time in GC we can be at and still grow
+     */
+    public static final float LOW_GC = 0.02f;
+    /**
+     * Miss rate worth growing for
+     */
+    public static final float GROW_MISS_RATE = 0.25f;
+    /**
+     * Fewest misses in a run worth growing for, a handful is just noise
+     */
+    public static final int GROW_MIN_MISSES = 8;
+    public static final float GROW_FACTOR = 1.25f;
+    public static final float SHRINK_FACTOR = 0.75f;
+    /**
+     * Runs in a row that must want to grow before we do
+     */
+    private static final int GROW_VOTES = 2;
+    private final DataManager myManager;
+    private final LRUCache<?, ?> myCache;
+    /**
+     * The JMX name of the direct buffer pool, null if the VM doesn't have
+     * one (before Java 7)
+     */
+    private ObjectName myDirectPool;
+    private final long myMaxDirectBytes;
+    /**
+     * Last sample, to take deltas from
+     */
+    private long myLastNanos;
+    private long myLastGCMillis;
+    private long myLastEvictions;
+    private long myLastMisses;
+    private int myGrowVotes = 0;
+    /**
+     * What the last run saw, for the stats
+     */
+    private volatile float myHeapPressure;
+    private volatile float myDirectPressure;
+    private volatile float myGCPressure;
+    private volatile float myMissRate;
+    private volatile String myDecision = "none yet";
+    private final AtomicLong myGrows = new AtomicLong();
+    private final AtomicLong myShrinks = new AtomicLong();
+
+    CacheSizeController(DataManager manager, LRUCache<?, ?> cache) {
+        myManager = manager;
+        myCache = cache;
+        myMaxDirectBytes = findMaxDirectBytes();
+        try {
+            ObjectName pool = new ObjectName("java.nio:type=BufferPool,name=direct");
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(pool)) {
+                myDirectPool = pool;
+            }
+        } catch (Exception e) {
+            myDirectPool = null;
+        }
+        myLastNanos = System.nanoTime();
+        myLastGCMillis = getGCMillis();
+        myLastEvictions = myManager.getStats().getEvictions();
+        myLastMisses = getMisses();
+    }
+
+    /**
+     * Take a sample and move the cache size if we should
+     */
+    @Override
+    public void run() {
+        try {
+            adjust();
+        } catch (Exception e) {
+            // Keep the schedule going
+            LOG.error("Cache sizing failed " + e);
+        }
+    }
+
+    private void adjust() {
+        long now = System.nanoTime();
+        long gc = getGCMillis();
+        long evictions = myManager.getStats().getEvictions();
+        long misses = getMisses();
+        long wallMillis = Math.max(1, (now - myLastNanos) / 1000000);
+        long newEvictions = evictions - myLastEvictions;
+        long newMisses = misses - myLastMisses;
+        float gcPressure = Math.min(1.0f, (float) (gc - myLastGCMillis) / wallMillis);
+        myLastNanos = now;
+        myLastGCMillis = gc;
+        myLastEvictions = evictions;
+        myLastMisses = misses;
+        if ((newEvictions < 0) || (newMisses < 0)) {
+            return; // Stats were reset, start over from here
+        }
+
+        long directUsed = getDirectBytes();
+        myHeapPressure = sampleHeapPressure();
+        myDirectPressure = (float) directUsed / myMaxDirectBytes;
+        myGCPressure = gcPressure;
+        myMissRate = (newEvictions > 0) ? Math.min(1.0f, (float) newMisses / newEvictions) : 0.0f;
+
+        long size = myCache.getCacheSize();
+        long target = size;
+        String why;
+        if ((myHeapPressure > HIGH_PRESSURE) || (myDirectPressure > HIGH_PRESSURE) || (myGCPressure > HIGH_GC)) {
+            myGrowVotes = 0;
+            target = Math.max(myCache.getMinCacheSize(), (long) (size * SHRINK_FACTOR));
+            why = "shrink";
+        } else if ((myMissRate > GROW_MISS_RATE) && (newMisses >= GROW_MIN_MISSES)
+                && (myHeapPressure < LOW_PRESSURE) && (myGCPressure < LOW_GC)
+                && (directUsed + (long) (size * (GROW_FACTOR - 1.0f)) < (long) (myMaxDirectBytes * LOW_PRESSURE))) {
+            if (++myGrowVotes >= GROW_VOTES) {
+                myGrowVotes = 0;
+                target = Math.min(myCache.getMaxCacheSize(), (long) (size * GROW_FACTOR));
+            }
+            why = "grow";
+        } else {
+            myGrowVotes = 0;
+            why = "hold";
+        }
+        String seen = String.format("heap=%.2f direct=%.2f gc=%.3f miss=%.3f",
+                myHeapPressure, myDirectPressure, myGCPressure, myMissRate);
+        if (target != size) {
+            // The other partitions may have the rest of the shared total
+            target = myManager.moveMaxMemoryInBytes(target);
+        }
+        if (target == size) {
+            // Held, or wanted to move but waiting on a vote or at a limit
+            myDecision = why + " at " + size + " bytes, " + seen;
+            return;
+        }
+        if (target > size) {
+            myGrows.incrementAndGet();
+        } else {
+            myShrinks.incrementAndGet();
+        }
+        myDecision = why + " " + size + " to " + target + " bytes, " + seen;
+        LOG.info("Tile cache " + myDecision);
+    }
+
+    /**
+     * Lookups so far that wanted a tile we had evicted
+     */
+    private long getMisses() {
+        DataManagerStats s = myManager.getStats();
+        return s.getTilesRestored() + s.getPendingWriteHits();
+    }
+
+    private static long getGCMillis() {
+        long total = 0;
+        Iterator<GarbageCollectorMXBean> i = ManagementFactory.getGarbageCollectorMXBeans().iterator();
+        while (i.hasNext()) {
+            long t = i.next().getCollectionTime();
+            if (t > 0) {
+                total += t;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Use of the biggest heap pool after its last collection, that's the
+     * old generation, which is what fills up for real. Plain heap use if
+     * the pools don't say
+     */
+    private static float sampleHeapPressure() {
+        MemoryUsage biggest = null;
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        for (MemoryPoolMXBean p : pools) {
+            if (p.getType() != MemoryType.HEAP) {
+                continue;
+            }
+            MemoryUsage u = p.getCollectionUsage();
+            if ((u != null) && (u.getMax() > 0) && ((biggest == null) || (u.getMax() > biggest.getMax()))) {
+                biggest = u;
+            }
+        }
+        if (biggest == null) {
+            biggest = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        }
+        long max = (biggest.getMax() > 0) ? biggest.getMax() : Runtime.getRuntime().maxMemory();
+        return (float) biggest.getUsed() / max;
+    }
+
+    /**
+     * Bytes in direct buffers. Without the JMX buffer pool we only know
+     * about our own
+     */
+    private long getDirectBytes() {
+        if (myDirectPool != null) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                return ((Number) server.getAttribute(myDirectPool, "MemoryUsed")).longValue();
+            } catch (Exception e) {
+                myDirectPool = null;
+            }
+        }
+        return myManager.getAllocatedBytes() + myManager.getBufferPool().getPooledBytes();
+    }
+
+    /**
+     * The direct memory limit, -XX:MaxDirectMemorySize or else the heap max
+     */
+    private static long findMaxDirectBytes() {
+        final String flag = "-XX:MaxDirectMemorySize=";
+        try {
+            for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                if (arg.startsWith(flag)) {
+                    long bytes = parseSize(arg.substring(flag.length()));
+                    if (bytes > 0) {
+                        return bytes;
+                    }
+                }
+            }
+        } catch (SecurityException e) {
+            // Can't look, go with the default
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    /**
+     * Parse a VM size like 512m, -1 if it isn't one
+     */
+    static long parseSize(String size) {
+        String s = size.trim().toLowerCase();
+        long unit = 1;
+        if (s.endsWith("k")) {
+            unit = 1024L;
+        } else if (s.endsWith("m")) {
+            unit = 1024L * 1024;
+        } else if (s.endsWith("g")) {
+            unit = 1024L * 1024 * 1024;
+        } else if (s.endsWith("t")) {
+            unit = 1024L * 1024 * 1024 * 1024;
+        }
+        if (unit > 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        try {
+            return Long.parseLong(s) * unit;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Heap use fraction seen by the last run
+     */
+    public float getHeapPressure() {
+        return myHeapPressure;
+    }
+
+    /**
+     * Direct memory use fraction seen by the last run
+     */
+    public float getDirectPressure() {
+        return myDirectPressure;
+    }
+
+    /**
+     * Fraction of time in GC seen by the last run
+     */
+    public float getGCPressure() {
+        return myGCPressure;
+    }
+
+    /**
+     * Miss rate seen by the last run
+     */
+    public float getMissRate() {
+        return myMissRate;
+    }
+
+    /**
+     * What the last run decided and why
+     */
+    public String getDecision() {
+        return myDecision;
+    }
+
+    public long getGrows() {
+        return myGrows.get();
+    }
+
+    public long getShrinks() {
+        return myShrinks.get();
+    }
+
+    public long getMaxDirectBytes() {
+        return myMaxDirectBytes;
+    }
+}
@@ -0,0 +1,201 @@
+package org.wg3.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.wg3.log.Logger;
+import org.wg3.log.LoggerFactory;
+
+/**
+ * A recording of the tiles the DataManager was asked for, to replay in
+ * CacheSimulator. Set wg3.datamanager.trace to a file name to record one.
+ *
+ * Every get of a value looks up its tile, so a run of lookups of the same
+ * tile is one record with a count, which keeps the file small and is all a
+ * policy can tell apart anyway (used once, or used again). Prefetches aren't
+ * recorded, they aren't asked for.
+ *
+ * Pins and unpins are recorded too, since a pinned tile can't be trimmed
+ * and where it goes back at the unpin matters to the policy. Their records
+ * have a count of PIN or UNPIN instead of a number of lookups. A pin is
+ * also a lookup.
+ *
+ * The file is a MAGIC, a VERSION, then key, floats, count ints per record.
+ * Version 1 traces, from before pins were recorded, still read.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class CacheTrace {
+
+    private final static Logger LOG = LoggerFactory.getLogger(CacheTrace.class);
+    private static final int MAGIC = 0x57473354;
+    private static final int VERSION = 2;
+    /**
+     * The count of a pin record
+     */
+    public static final int PIN = -1;
+    /**
+     * The count of an unpin record
+     */
+    public static final int UNPIN = -2;
+    private final File myFile;
+    private DataOutputStream myOut;
+    /**
+     * The record being counted, not written yet
+     */
+    private int myKey;
+    private int myFloats;
+    private int myCount = 0;
+    private long myRecords = 0;
+
+    /**
+     * Start recording to a file, replacing it
+     */
+    public CacheTrace(File file) throws IOException {
+        myFile = file;
+        myOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        myOut.writeInt(MAGIC);
+        myOut.writeInt(VERSION);
+    }
+
+    /**
+     * Record a lookup of a tile
+     */
+    public synchronized void access(int key, int floats) {
+        if ((myCount > 0) && (key == myKey)) {
+            if (myCount < Integer.MAX_VALUE) {
+                myCount++;
+            }
+            return;
+        }
+        flushRecord();
+        myKey = key;
+        myFloats = floats;
+        myCount = 1;
+    }
+
+    /**
+     * Record a pin of a tile
+     */
+    public synchronized void pin(int key, int floats) {
+        event(key, floats, PIN);
+    }
+
+    /**
+     * Record an unpin of a tile
+     */
+    public synchronized void unpin(int key) {
+        event(key, 0, UNPIN);
+    }
+
+    /**
+     * Write a pin or unpin record, after the lookups counted so far
+     */
+    private void event(int key, int floats, int what) {
+        flushRecord();
+        if (myOut == null) {
+            return;
+        }
+        try {
+            myOut.writeInt(key);
+            myOut.writeInt(floats);
+            myOut.writeInt(what);
+            myRecords++;
+        } catch (IOException e) {
+            LOG.error("Stopping cache trace " + myFile + ", " + e);
+            closeQuietly();
+        }
+    }
+
+    private void flushRecord() {
+        if ((myCount == 0) || (myOut == null)) {
+            return;
+        }
+        try {
+            myOut.writeInt(myKey);
+            myOut.writeInt(myFloats);
+            myOut.writeInt(myCount);
+            myRecords++;
+        } catch (IOException e) {
+            LOG.error("Stopping cache trace " + myFile + ", " + e);
+            closeQuietly();
+        }
+        myCount = 0;
+    }
+
+    /**
+     * Finish the file. Lookups after this aren't recorded
+     */
+    public synchronized void close() {
+        flushRecord();
+        if (myOut != null) {
+            LOG.info("Cache trace " + myFile + " has " + myRecords + " records");
+        }
+        closeQuietly();
+    }
+
+    private void closeQuietly() {
+        if (myOut != null) {
+            try {
+                myOut.close();
+            } catch (IOException e) {
+                LOG.error("Error closing cache trace " + e);
+            }
+            myOut = null;
+        }
+    }
+
+    /**
+     * Reads a trace back a record at a time
+     */
+    public static class Reader {
+
+        private final DataInputStream myIn;
+        /**
+         * The current record. count is PIN or UNPIN for those
+         */
+        public int key;
+        public int floats;
+        public int count;
+
+        public Reader(File file) throws IOException {
+            myIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            int version = 0;
+            if (myIn.readInt() == MAGIC) {
+                version = myIn.readInt();
+            }
+            if ((version < 1) || (version > VERSION)) {
+                myIn.close();
+                throw new IOException(file + " is not a version 1 to " + VERSION + " cache trace");
+            }
+        }
+
+        /**
+         * Move to the next record
+         *
+         * @return false at the end of the trace
+         */
+        public boolean next() throws IOException {
+            try {
+                key = myIn.readInt();
+                floats = myIn.readInt();
+                count = myIn.readInt();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        public void close() throws IOException {
+            myIn.close();
+        }
+    }
+}
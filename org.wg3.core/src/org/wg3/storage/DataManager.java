@@ -2,13 +2,34 @@ package org.wg3.storage;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.wg3.log.Logger;
 import org.wg3.log.LoggerFactory;
-import org.wg3.storage.LRUCache.LRUCacheListener;
+import org.wg3.storage.LRUCache.LRUCacheEvictionListener;
+import org.wg3.storage.LRUCache.LRUCacheSizer;
 
 /**
  * The data manager will handle: Loading/Offloading data from disk to ram...
@@ -18,21 +39,129 @@ import org.wg3.storage.LRUCache.LRUCacheListener;
  * least for now the purpose is to allow access to massive numbers of floats.
  * DataManager
  *
- * DataManager keeps a key counter of integer for tiles.
+ * DataManager keeps a key counter of integer for tiles. Arrays give their
+ * keys back with releaseTileKeyRange when done, or are tracked with
+ * trackTileKeyRange so their keys come back once the GC finds them
+ * unreachable. Either way their tiles leave the cache and spill store, and
+ * the keys are reused after RECYCLE_DELAY_MILLIS.
+ *
+ * The RAM cache is budgeted in bytes, measured by what has actually been
+ * allocated through allocate/deallocate. When a tile put takes us over the
+ * budget (the high watermark) the cache trims down to the low watermark in
+ * one go. The budget can be set at startup with the system property
+ * wg3.datamanager.maxbytes, and changed later with setMaxMemoryInBytes.
+ * That property is the budget of the whole process, see the partitions
+ * below.
+ *
+ * Tiles are encoded with a SpillCodec on the way to the spill store. There
+ * is a default codec (system property wg3.datamanager.codec, or
+ * setSpillCodec) and arrays can pick their own for their range of keys.
+ *
+ * Tiles trimmed from the RAM cache that need writing are handed to a small
+ * background writer pool (write-behind), so whoever caused the trim doesn't
+ * wait on the spill. The RAM is only released once the write is done, and a
+ * tile asked for again while still waiting on its write is just put back in
+ * the cache. A trimmed tile is handed to the pending writes under the cache
+ * lock, before it leaves the cache (evicting), so a thread that misses it
+ * always finds it there instead of loading an old copy from the spill store.
+ *
+ * Any number of threads can get tiles at once. Only one of them loads a
+ * missing tile, the rest that miss it at the same time (prefetches included)
+ * wait on that load and share the tile it made, so a tile is never read or
+ * allocated twice.
+ *
+ * Tiled arrays can also ask for tiles they expect to need soon with
+ * prefetchTile (see TilePrefetcher). These load on a background thread and
+ * are dropped if the prefetch threads are busy.
+ *
+ * Hits, misses, evictions and spill times are counted in a DataManagerStats
+ * (getStats), which is also registered with JMX as
+ * org.wg3.storage:type=DataManager.
+ *
+ * There can be more than one DataManager, each a named partition with its
+ * own cache, budget, eviction policy, keys and spill files, so one kind of
+ * data can't trim out another (getPartition). getInstance is the default
+ * partition. A partition reads its settings from the same system properties
+ * with its name after wg3.datamanager, such as
+ * wg3.datamanager.render.maxbytes, falling back to the shared ones. Storage
+ * classes take the partition to keep their tiles in, and DataManagerTotals
+ * sums the stats of all of them.
+ *
+ * The partitions split one RAM budget rather than each taking a whole one.
+ * Each partition other than the default carves its share out of
+ * wg3.datamanager.maxbytes (its own maxbytes property, else an eighth) and
+ * the default keeps the rest, never less than a quarter. When the
+ * partitions have taken all they can, the ones made before give up part of
+ * theirs, so the shares always add up to the total. A partition's budget
+ * moves between a quarter and four times its share, but only grows past its
+ * share into what the others leave unused, so the budgets together never
+ * go over the total either. Its buffer pool is an eighth of its share
+ * unless set by its own poolbytes property.
+ * Writer and prefetch threads go away when idle and one sizer thread serves
+ * all the partitions.
+ *
+ * Normally the spill store is thrown away at exit. Set the system property
+ * wg3.datamanager.store to a directory to keep it instead (see
+ * TileStoreIndex). Products that ask for their keys by name with
+ * getTileKeyRange then get their tiles back on the next run, and the tiles
+ * that were in RAM at exit are loaded again in the background at startup.
  *
  * @author Robert Toomey
  *
  */
-public class DataManager implements LRUCacheListener<DataNode> {
+public class DataManager implements LRUCacheEvictionListener<DataNode>, LRUCacheSizer {
 
     /**
      * The subdirectory we use to offload any data nodes from RAM
      */
     public final static String tempNodes = "datanodes";
-    private static DataManager instance = null;
+    private static volatile DataManager instance = null;
+    /**
+     * Held while making the instance or any partition
+     */
+    private final static Object INSTANCE_SYNC = new Object();
+    /**
+     * The partition getInstance returns
+     */
+    public final static String DEFAULT_PARTITION = "default";
+    /**
+     * Partition for buffers drawn by OpenGL, such as QuadStripRenderer's
+     */
+    public final static String RENDER_PARTITION = "render";
+    /**
+     * Partition for radial gate arrays
+     */
+    public final static String RADIAL_PARTITION = "radial";
+    /**
+     * Partition for grids and mosaic tiles
+     */
+    public final static String GRID_PARTITION = "grid";
+    /**
+     * Every partition made so far by name, in the order made. Guarded by
+     * INSTANCE_SYNC
+     */
+    private final static LinkedHashMap<String, DataManager> thePartitions = new LinkedHashMap<String, DataManager>();
+    /**
+     * Sums the stats of all the partitions
+     */
+    private final static DataManagerTotals theTotals = new DataManagerTotals();
+    /**
+     * The OS temp directory and our root temp directory in it, shared by
+     * all the partitions. Set by the first one made
+     */
+    private static String theDiskLocation = null;
+    private static File theTempDir = null;
+    /**
+     * Our partition name
+     */
+    private final String myName;
     private final static Logger LOG = LoggerFactory.getLogger(DataManager.class);
     private String myDiskLocation;
     private File myTempDir = null;
+    /**
+     * Where DataNodes go when trimmed from RAM
+     */
+    private TileSpillStore mySpillStore;
     /**
      * Our counter for returning id values for cache items We start at 'min'
      * value of int and rise....in theory if we roll over it might confuse the
@@ -41,52 +170,592 @@ public class DataManager implements LRUCacheListener<DataNode> {
     private final Object myCounterSync = new Object();
     private int myCounter = Integer.MIN_VALUE;
     /**
-     * Number of nodes we try to hold in RAM (RAM cache size) The LRUCache will
-     * hold this many objects
+     * How long released keys sit before they're reused, so a prefetch or
+     * write that was already on its way for the old owner is long done
+     */
+    public final static long RECYCLE_DELAY_MILLIS = 5000;
+    /**
+     * Released key ranges not reusable yet, by first key. Keys in here are
+     * dead, nothing may bring their tiles back
+     */
+    private final TreeMap<Integer, ReleasedRange> myReleasedKeys = new TreeMap<Integer, ReleasedRange>();
+    /**
+     * Key ranges ready for reuse, first key to count. Neighbors are merged
+     */
+    private final TreeMap<Integer, Integer> myFreeKeys = new TreeMap<Integer, Integer>();
+    /**
+     * Owners of tracked key ranges by first key, see trackTileKeyRange. A
+     * named range can have more than one
+     */
+    private final HashMap<Integer, ArrayList<OwnerReference>> myOwners = new HashMap<Integer, ArrayList<OwnerReference>>();
+    /**
+     * Where the GC tells us a tracked owner is gone
+     */
+    private final ReferenceQueue<Object> myOwnerQueue = new ReferenceQueue<Object>();
+
+    /**
+     * A key range given back, and when
+     */
+    private static class ReleasedRange {
+
+        final int count;
+        final long releasedAt;
+
+        ReleasedRange(int c, long t) {
+            count = c;
+            releasedAt = t;
+        }
+    }
+
+    /**
+     * Watches the owner of a key range, so we hear when it's collected
+     */
+    private static class OwnerReference extends PhantomReference<Object> {
+
+        final int base;
+        final int count;
+
+        OwnerReference(Object owner, int b, int c, ReferenceQueue<Object> q) {
+            super(owner, q);
+            base = b;
+            count = c;
+        }
+    }
+    /**
+     * Start of all our system properties. A partition's own are the same
+     * with its name after this, see getPartitionProperty
+     */
+    public final static String PROPERTY_PREFIX = "wg3.datamanager.";
+    /**
+     * System property for the RAM budget in bytes, shared by all the
+     * partitions. A partition's own (wg3.datamanager.name.maxbytes) is its
+     * share of this
+     */
+    public final static String MAX_BYTES_PROPERTY = "wg3.datamanager.maxbytes";
+    /**
+     * RAM budget in bytes when not set by property
+     */
+    public final static long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    /**
+     * The RAM budget shared by every partition, MAX_BYTES_PROPERTY read when
+     * the first partition is made. -1 until then. Guarded by INSTANCE_SYNC
+     */
+    private static long theTotalBytes = -1;
+    /**
+     * Bytes of theTotalBytes given to partitions other than the default,
+     * which gets the rest. Guarded by INSTANCE_SYNC
+     */
+    private static long theCarvedBytes = 0;
+    /**
+     * A partition other than the default without its own maxbytes property
+     * gets this fraction of the total. The default always keeps at least a
+     * quarter of it
      */
-    private final int myRAMCacheNodeMaxCount = 300;
+    public final static int PARTITION_SHARE = 8;
+    /**
+     * Moves the RAM budget of every adaptive partition, made with the first
+     * one. Guarded by INSTANCE_SYNC
+     */
+    private static ScheduledThreadPoolExecutor theSizer = null;
+    /**
+     * System property for the cache eviction policy, "2q" (scan resistant,
+     * the default) or "clock". See LRUCache.Policy
+     */
+    public final static String EVICTION_PROPERTY = "wg3.datamanager.eviction";
+    /**
+     * System property for a file to record tile lookups to, for
+     * CacheSimulator. Partitions other than the default only record if given
+     * their own file
+     */
+    public final static String TRACE_PROPERTY = "wg3.datamanager.trace";
+    /**
+     * Records tile lookups, null unless asked for
+     */
+    private CacheTrace myTrace = null;
+    /**
+     * System property to turn off moving the RAM budget with memory
+     * pressure, "false" keeps it where it's set
+     */
+    public final static String ADAPTIVE_PROPERTY = "wg3.datamanager.adaptive";
+    /**
+     * Moves the RAM budget between the cache min and max, null if off
+     */
+    private CacheSizeController mySizeController = null;
+    /**
+     * Our share of the total RAM budget, the cache moves between a quarter
+     * and four times this, past it only into what the others leave unused.
+     * Guarded by INSTANCE_SYNC once we're made
+     */
+    private long myBudgetShare;
+    /**
+     * System property for the most bytes of released tile buffers we keep
+     * for reuse, defaults to an eighth of the RAM budget
+     */
+    public final static String POOL_BYTES_PROPERTY = "wg3.datamanager.poolbytes";
+    /**
+     * Released direct buffers kept for the next allocate of the same size
+     */
+    private final DirectBufferPool myBufferPool;
+    /**
+     * Was our pool limit set by property? If not it follows our budget share
+     */
+    private boolean myPoolBytesSet = false;
+    /**
+     * System property for the name of the default SpillCodec
+     */
+    public final static String CODEC_PROPERTY = "wg3.datamanager.codec";
+    /**
+     * System property for the directory of a persistent tile store. Other
+     * partitions keep theirs in a subdirectory named for the partition,
+     * unless given their own
+     */
+    public final static String STORE_PROPERTY = "wg3.datamanager.store";
+    /**
+     * System property for how the spill store does its I/O, "channel"
+     * (positional reads and writes, the default) or "mapped"
+     */
+    public final static String SPILL_IO_PROPERTY = "wg3.datamanager.spillio";
+    /**
+     * Do we map the spill segments instead of using positional I/O?
+     */
+    private boolean myMappedSpill = false;
+    /**
+     * System property for how many days a product can go unused before the
+     * persistent store drops it
+     */
+    public final static String STORE_DAYS_PROPERTY = "wg3.datamanager.store.days";
+    public final static int DEFAULT_STORE_DAYS = 7;
+    /**
+     * The named key ranges of a persistent store, null if the store isn't
+     */
+    private TileStoreIndex myStoreIndex = null;
+    private boolean myShutdown = false;
+    /**
+     * The codec used for tiles that don't have one of their own. The float
+     * codec is several times smaller than raw on radar fields and still fast
+     */
+    private volatile SpillCodec mySpillCodec = SpillCodecs.FLOAT_XOR;
+    /**
+     * Codecs set for a range of keys, by the first key of the range
+     */
+    private final TreeMap<Integer, KeyRangeCodec> myCodecRanges = new TreeMap<Integer, KeyRangeCodec>();
+
+    /**
+     * A codec for a range of tile keys
+     */
+    private static class KeyRangeCodec {
+
+        final int lastKey;
+        final SpillCodec codec;
+
+        KeyRangeCodec(int last, SpillCodec c) {
+            lastKey = last;
+            codec = c;
+        }
+    }
+    /**
+     * Fraction of the budget the cache trims down to when over it
+     */
+    private final float myLowWaterMark = 0.85f;
     private final int mySizePerNode = 10000;  // Size in floats
     /**
-     * The cache for DataNode objects
+     * The cache for DataNode objects, sized in bytes
      */
-    LRUCache<Integer, DataNode> myRAMCache = new LRUCache<Integer, DataNode>(
-            50, myRAMCacheNodeMaxCount, 500);
+    final LRUCache<Integer, DataNode> myRAMCache;
     /**
      * Number of bytes allocated by program
      */
-    private long myAllocatedBytes = 0;
+    private final AtomicLong myAllocatedBytes = new AtomicLong();
     /**
      * Number of bytes deallocated by program
      */
-    private long myDeallocatedBytes = 0;
+    private final AtomicLong myDeallocatedBytes = new AtomicLong();
     /**
      * Number of bytes failed to allocate by program
      */
-    private long myFailedAllocatedBytes = 0;
-    private boolean myAddListener = true;
+    private final AtomicLong myFailedAllocatedBytes = new AtomicLong();
+    /**
+     * Number of threads writing trimmed tiles to the spill store
+     */
+    private final int myWriterThreads = 2;
+    /**
+     * Number of trimmed tiles allowed to queue for a writer. Past this the
+     * trimming thread does its own write, which keeps the RAM held by pending
+     * writes bounded
+     */
+    private final int myWriterQueueSize = 64;
+    /**
+     * Background writers for trimmed tiles
+     */
+    private final ThreadPoolExecutor myWriter;
+    /**
+     * Trimmed tiles waiting on or in the middle of their write, by key
+     */
+    private final HashMap<Integer, PendingWrite> myPendingWrites = new HashMap<Integer, PendingWrite>();
+    /**
+     * RAM bytes held by tiles in myPendingWrites, constant ones hold none
+     */
+    private long myPendingWriteBytes = 0;
+    /**
+     * Pending writes in myPendingWrites whose write failed, waiting on a
+     * retry
+     */
+    private int myFailedWrites = 0;
+    /**
+     * Tiles being loaded right now, by key. A thread missing a tile in here
+     * waits on the load instead of doing its own
+     */
+    private final HashMap<Integer, TileLoad> myLoads = new HashMap<Integer, TileLoad>();
+
+    /**
+     * Number of threads loading prefetched tiles
+     */
+    private final int myPrefetchThreads = 2;
+    /**
+     * Number of prefetch requests allowed to queue. Past this new requests are
+     * dropped, a prefetch is only a guess
+     */
+    private final int myPrefetchQueueSize = 32;
+    /**
+     * Background loaders for prefetched tiles
+     */
+    private final ThreadPoolExecutor myPrefetcher;
+    /**
+     * Hit/miss, eviction and spill counters
+     */
+    private final DataManagerStats myStats = new DataManagerStats(this);
+    /**
+     * The name our stats are registered with in JMX
+     */
+    public final static String MBEAN_NAME = "org.wg3.storage:type=DataManager";
+
+    /**
+     * A load of a tile in progress. Whoever started it finishes it, everyone
+     * else waits for the tile
+     */
+    private static class TileLoad {
+
+        private DataNode node;
+        private boolean done = false;
+
+        synchronized void finish(DataNode n) {
+            node = n;
+            done = true;
+            notifyAll();
+        }
+
+        /**
+         * Wait for the load, interrupts are put back but don't stop the
+         * wait, the caller needs the tile
+         */
+        synchronized DataNode await() {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return node;
+        }
+    }
+
+    /**
+     * A prefetch of a tile. Loads it into the cache if it isn't already
+     */
+    private class PrefetchLoad implements Runnable {
+
+        final int key;
+        final int size;
+        final float background;
+
+        PrefetchLoad(int k, int s, float b) {
+            key = k;
+            size = s;
+            background = b;
+        }
+
+        @Override
+        public void run() {
+            if (myRAMCache.containsKey(key)) {
+                return;
+            }
+            TileLoad load = startLoad(key);
+            if (load == null) {
+                return; // In RAM or on its way
+            }
+            DataNode theTile = null;
+            try {
+                theTile = takePendingWrite(key);
+                if (theTile == null) {
+                    theTile = new DataNode(DataManager.this, key, size, background);
+                    if (!theTile.loadNodeIntoRAM()) {
+                        theTile = null; // Waiters do their own
+                        return;
+                    }
+                }
+                theTile.setPrefetched(true);
+                DataNode already = myRAMCache.putIfAbsent(key, theTile);
+                if (already != null) {
+                    // Pushed back while we were loading
+                    theTile.releaseRAM();
+                    theTile = already;
+                } else if (isReleasedKey(key)) {
+                    // Released while we were loading, and maybe after the
+                    // release cleared the cache. Checking after the put
+                    // means one of us always sees the other
+                    DataNode stale = myRAMCache.pop(key);
+                    if (stale != null) {
+                        stale.discard();
+                    }
+                } else {
+                    myStats.prefetchLoad();
+                }
+            } finally {
+                endLoad(key, load, theTile);
+            }
+        }
+    }
+
+    /**
+     * A trimmed tile handed to the writer pool. A new one is made for each
+     * trim, so a writer can tell if its tile was brought back (and maybe
+     * trimmed again) while it was writing
+     */
+    private class PendingWrite implements Runnable {
 
-    private DataManager() {
+        final DataNode node;
+        /**
+         * The write failed and the tile is waiting on a retry, guarded by
+         * myPendingWrites
+         */
+        boolean failed = false;
+        /**
+         * What we added to myPendingWriteBytes, so we take off the same.
+         * Nothing until trimmed looks at the tile, and nothing for a
+         * constant tile, it has no buffer. Guarded by myPendingWrites
+         */
+        long bytes = 0;
+
+        PendingWrite(DataNode n) {
+            node = n;
+        }
+
+        @Override
+        public void run() {
+            // Hold the node so nothing can be set between the write and
+            // the release
+            synchronized (node.getWriteLock()) {
+                synchronized (myPendingWrites) {
+                    if (myPendingWrites.get(node.getCacheKey()) != this) {
+                        // Taken back (and maybe trimmed and released again)
+                        // since we were queued, the next trim writes it
+                        return;
+                    }
+                }
+                boolean written = node.writeToDisk();
+                boolean release = false;
+                synchronized (myPendingWrites) {
+                    Integer key = node.getCacheKey();
+                    if (myPendingWrites.get(key) == this) {
+                        if (written) {
+                            myPendingWrites.remove(key);
+                            myPendingWriteBytes -= bytes;
+                            release = true;
+                        } else {
+                            // Still dirty and still on the pending writes,
+                            // so a miss takes it back. The next trim or
+                            // flush tries the write again
+                            failed = true;
+                            myFailedWrites++;
+                        }
+                        myPendingWrites.notifyAll();
+                    }
+                }
+                if (release) {
+                    if (node.isPrefetched()) {
+                        myStats.prefetchWasted();
+                    }
+                    node.releaseRAM();
+                } else if (!written) {
+                    myStats.spillFailed();
+                    LOG.error("Couldn't write tile " + node.getCacheKey() + ", keeping it in RAM for a retry");
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes daemon threads for our pools, so a pending write or prefetch
+     * never holds up exit
+     */
+    static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String myName;
+        private int myCount = 0;
+
+        DaemonThreadFactory(String name) {
+            myName = name;
+        }
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, myName + "-" + (++myCount));
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    private DataManager(String name, long maxBytes) {
         // Exists only to defeat instantiation.
-        // FIXME: make GUI able to change this....
-        myDiskLocation = System.getProperty("java.io.tmpdir");
-        LOG.info("OS temporary directory is: " + myDiskLocation);
-        try {
-            myTempDir = createTempDir();
-            LOG.info("Using root temp directory:" + myTempDir.getAbsolutePath());
-            System.setProperty("java.io.tmpdir", myTempDir.getAbsolutePath());
-            LOG.info("DataManager temp is " + myTempDir.getAbsolutePath());
-        } catch (IOException e) {
-             String t = System.getProperty("java.io.tmpdir");
-             LOG.error("Unable to create temp directory...default is "+t);
-             LOG.error("Reason: "+e.toString());
+        myName = name;
+        if (theDiskLocation == null) {
+            // The first partition picks the temp directory for everyone
+            // FIXME: make GUI able to change this....
+            theDiskLocation = System.getProperty("java.io.tmpdir");
+            LOG.info("OS temporary directory is: " + theDiskLocation);
+            try {
+                theTempDir = createTempDir();
+                LOG.info("Using root temp directory:" + theTempDir.getAbsolutePath());
+                System.setProperty("java.io.tmpdir", theTempDir.getAbsolutePath());
+                LOG.info("DataManager temp is " + theTempDir.getAbsolutePath());
+            } catch (IOException e) {
+                 String t = System.getProperty("java.io.tmpdir");
+                 LOG.error("Unable to create temp directory...default is "+t);
+                 LOG.error("Reason: "+e.toString());
+            }
+        }
+        myDiskLocation = theDiskLocation;
+        myTempDir = theTempDir;
+        myBudgetShare = maxBytes;
+        myRAMCache = new LRUCache<Integer, DataNode>(maxBytes / 4, maxBytes, maxBytes * 4, this);
+        myRAMCache.setLowWaterMark(myLowWaterMark);
+        myRAMCache.setPolicy(LRUCache.Policy.TWO_QUEUE);
+        String property = getProperty(EVICTION_PROPERTY);
+        if (property != null) {
+            property = property.trim();
+            if (property.equalsIgnoreCase("clock")) {
+                myRAMCache.setPolicy(LRUCache.Policy.CLOCK);
+            } else if (!property.equalsIgnoreCase("2q")) {
+                LOG.error("Unknown " + EVICTION_PROPERTY + " of '" + property + "', using 2q");
+            }
+        }
+        property = getOwnProperty(TRACE_PROPERTY);
+        if (property != null) {
+            try {
+                myTrace = new CacheTrace(new File(property.trim()));
+            } catch (IOException e) {
+                LOG.error("Can't record " + TRACE_PROPERTY + " to '" + property + "', " + e);
+            }
+        }
+
+        // Only our own, a shared pool limit given to every partition would
+        // multiply it
+        long poolBytes = maxBytes / 8;
+        property = getOwnProperty(POOL_BYTES_PROPERTY);
+        if (property != null) {
+            try {
+                poolBytes = Long.parseLong(property.trim());
+                myPoolBytesSet = true;
+            } catch (NumberFormatException e) {
+                LOG.error("Bad " + POOL_BYTES_PROPERTY + " of '" + property + "', using " + poolBytes);
+            }
+        }
+        myBufferPool = new DirectBufferPool(poolBytes);
+
+        String codecName = getProperty(CODEC_PROPERTY);
+        if (codecName != null) {
+            SpillCodec codec = SpillCodecs.forName(codecName.trim());
+            if (codec != null) {
+                mySpillCodec = codec;
+            } else {
+                LOG.error("Unknown " + CODEC_PROPERTY + " of '" + codecName + "', using " + mySpillCodec.getName());
+            }
+        }
+
+        String spillIO = getProperty(SPILL_IO_PROPERTY);
+        if (spillIO != null) {
+            spillIO = spillIO.trim();
+            if (spillIO.equalsIgnoreCase("mapped")) {
+                myMappedSpill = true;
+            } else if (!spillIO.equalsIgnoreCase("channel")) {
+                LOG.error("Unknown " + SPILL_IO_PROPERTY + " of '" + spillIO + "', using channel");
+            }
         }
 
+        String storeDir = getOwnProperty(STORE_PROPERTY);
+        if (storeDir != null) {
+            openStore(new File(storeDir.trim()));
+        } else if (System.getProperty(STORE_PROPERTY) != null) {
+            openStore(new File(System.getProperty(STORE_PROPERTY).trim(), myName));
+        }
+        if (mySpillStore == null) {
+            String spillName = isDefaultPartition() ? tempNodes : tempNodes + "-" + myName;
+            File spillDir = (myTempDir != null) ? getTempDir(spillName) : new File(myDiskLocation);
+            mySpillStore = new TileSpillStore(spillDir, TileSpillStore.DEFAULT_SEGMENT_BYTES, false, myMappedSpill);
+        }
 
 
+        myWriter = new ThreadPoolExecutor(myWriterThreads, myWriterThreads,
+                30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(myWriterQueueSize),
+                new DaemonThreadFactory(getThreadName("writer")),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        myPrefetcher = new ThreadPoolExecutor(myPrefetchThreads, myPrefetchThreads,
+                30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(myPrefetchQueueSize),
+                new DaemonThreadFactory(getThreadName("prefetch")),
+                new ThreadPoolExecutor.DiscardPolicy());
+        // Every partition has its own, let them go when idle
+        myWriter.allowCoreThreadTimeOut(true);
+        myPrefetcher.allowCoreThreadTimeOut(true);
+
         // We create a 'datacache' array...
 
     }
 
+    /**
+     * Open a persistent tile store and restore what the last run left.
+     * Leaves us with no store on failure, the caller falls back to a temp one
+     */
+    private void openStore(File dir) {
+        int days = DEFAULT_STORE_DAYS;
+        String property = getProperty(STORE_DAYS_PROPERTY);
+        if (property != null) {
+            try {
+                days = Integer.parseInt(property.trim());
+            } catch (NumberFormatException e) {
+                LOG.error("Bad " + STORE_DAYS_PROPERTY + " of '" + property + "', using " + days);
+            }
+        }
+        TileStoreIndex index = new TileStoreIndex(dir, days);
+        if (!index.lock()) {
+            LOG.error("Not using tile store " + dir.getAbsolutePath() + ", tiles won't be kept");
+            return;
+        }
+        TileSpillStore store = new TileSpillStore(dir, TileSpillStore.DEFAULT_SEGMENT_BYTES, true, myMappedSpill);
+        index.load(store);
+        mySpillStore = store;
+        myStoreIndex = index;
+
+        // New keys have to start past the ones we brought back
+        synchronized (myCounterSync) {
+            myCounter = index.getNextKey();
+        }
+        LOG.info("Using tile store " + dir.getAbsolutePath());
+    }
+
+    /**
+     * Is the spill store kept between runs?
+     */
+    public boolean isStorePersistent() {
+        return (myStoreIndex != null);
+    }
+
     /**
      * Get a single new key for our LRU cache
      */
@@ -105,8 +774,24 @@ public class DataManager implements LRUCacheListener<DataNode> {
      * @return
      */
     public int getNewTileKeyRange(int needed) {
+        reclaimUnreachable();
         int base;
         synchronized (myCounterSync) {
+            recycleReleasedKeys(System.currentTimeMillis());
+            Iterator<Map.Entry<Integer, Integer>> i = myFreeKeys.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<Integer, Integer> e = i.next();
+                int count = e.getValue();
+                if (count >= needed) {
+                    // First fit, the rest stays free
+                    base = e.getKey();
+                    i.remove();
+                    if (count > needed) {
+                        myFreeKeys.put(base + needed, count - needed);
+                    }
+                    return base;
+                }
+            }
             base = myCounter;
             myCounter += needed;
             return base;
@@ -114,49 +799,363 @@ public class DataManager implements LRUCacheListener<DataNode> {
     }
 
     /**
-     * Using this function for all creation of ByteBuffers will allow us to
-     * track the memory usage better...caller should call deallocate below when
-     * the ByteBuffer is set to null
-     *
-     * @return new ByteBuffer or null
+     * Move released ranges past their delay to the free keys. Counter lock
+     * held
      */
-    public ByteBuffer allocate(int aSize, String who) {
-        ByteBuffer bb = ByteBuffer.allocateDirect(aSize);
-        if (bb != null) {
-            myAllocatedBytes += aSize;
-        } else {
-            myFailedAllocatedBytes += aSize;
+    private void recycleReleasedKeys(long now) {
+        Iterator<Map.Entry<Integer, ReleasedRange>> i = myReleasedKeys.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<Integer, ReleasedRange> e = i.next();
+            if (now - e.getValue().releasedAt >= RECYCLE_DELAY_MILLIS) {
+                // Read before the remove, TreeMap reuses the entry
+                int base = e.getKey();
+                int count = e.getValue().count;
+                i.remove();
+                freeKeys(base, count);
+            }
         }
-        return bb;
     }
 
     /**
-     * Anyone calling allocate above should call this to let us know it's been
-     * nulled. Doesn't mean JVM or native library has Garbage collected it
-     * though...just counting for debugging purposes.
-     *
-     * @param aSize
-     * @param who
+     * Add a range to the free keys, merging with its neighbors, or give it
+     * back to the counter if it's the last range handed out. Counter lock
+     * held
      */
-    public void deallocate(int aSize, String who) {
-        myAllocatedBytes -= aSize;
-        myDeallocatedBytes += aSize;
+    private void freeKeys(int base, int count) {
+        Map.Entry<Integer, Integer> below = myFreeKeys.lowerEntry(base);
+        if ((below != null) && (below.getKey() + below.getValue() == base)) {
+            myFreeKeys.remove(below.getKey());
+            base = below.getKey();
+            count += below.getValue();
+        }
+        Integer above = myFreeKeys.get(base + count);
+        if (above != null) {
+            myFreeKeys.remove(base + count);
+            count += above;
+        }
+        if (base + count == myCounter) {
+            myCounter = base;
+        } else {
+            myFreeKeys.put(base, count);
+        }
     }
 
-    public long getAllocatedBytes() {
-        return myAllocatedBytes;
+    /**
+     * Has a key been released and not reused yet?
+     */
+    private boolean isReleasedKey(int key) {
+        synchronized (myCounterSync) {
+            Map.Entry<Integer, ReleasedRange> e = myReleasedKeys.floorEntry(key);
+            return (e != null) && (key - e.getKey() < e.getValue().count);
+        }
     }
 
-    public long getDeallocatedBytes() {
-        return myDeallocatedBytes;
+    /**
+     * Watch the owner of a key range, such as an array, and release the
+     * range once the owner (and every other owner tracked for the range) is
+     * unreachable. An explicit releaseTileKeyRange stops the watch. The
+     * owner must not be reachable from its tiles.
+     *
+     * A named range in a persistent store (getTileKeyRange) isn't released,
+     * that would throw away what is kept for the next array or run asking
+     * for the name. Its tiles are only taken out of RAM, see
+     * unloadTileKeyRange.
+     */
+    public void trackTileKeyRange(Object owner, int base, int count) {
+        synchronized (myCounterSync) {
+            ArrayList<OwnerReference> owners = myOwners.get(base);
+            if (owners == null) {
+                owners = new ArrayList<OwnerReference>(1);
+                myOwners.put(base, owners);
+            }
+            owners.add(new OwnerReference(owner, base, count, myOwnerQueue));
+        }
     }
 
-    public long getFailedAllocatedBytes() {
-        return myFailedAllocatedBytes;
+    /**
+     * Release the key ranges of tracked owners the GC has found unreachable.
+     * Called whenever keys are handed out, so a display that keeps making
+     * products keeps cleaning up after the old ones.
+     *
+     * @return number of ranges released
+     */
+    public int reclaimUnreachable() {
+        int reclaimed = 0;
+        Reference<? extends Object> r;
+        while ((r = myOwnerQueue.poll()) != null) {
+            OwnerReference o = (OwnerReference) r;
+            boolean last = false;
+            synchronized (myCounterSync) {
+                ArrayList<OwnerReference> owners = myOwners.get(o.base);
+                if ((owners != null) && owners.remove(o)) {
+                    last = owners.isEmpty();
+                }
+            }
+            if (last) {
+                if (isNamedKeyRange(o.base)) {
+                    unloadTileKeyRange(o.base, o.count);
+                } else {
+                    releaseTileKeyRange(o.base, o.count);
+                }
+                reclaimed++;
+            }
+        }
+        if (reclaimed > 0) {
+            LOG.info("Reclaimed tiles of " + reclaimed + " unreachable arrays");
+        }
+        return reclaimed;
     }
 
-    public int getNumberOfCachedItems() {
-        return myRAMCache.getCacheFilledSize();
+    /**
+     * Is the range starting at base a named one in the persistent store?
+     */
+    private boolean isNamedKeyRange(int base) {
+        if (myStoreIndex == null) {
+            return false;
+        }
+        synchronized (myStoreIndex) {
+            TileStoreIndex.KeyRange r = myStoreIndex.getRange(base);
+            return (r != null) && (r.base == base);
+        }
+    }
+
+    /**
+     * Take the unpinned tiles of a range out of RAM the way a trim does,
+     * dirty ones are written to the spill store first. The keys, the spill
+     * store and the store index are left alone, so the range can be asked
+     * for again by name.
+     */
+    private void unloadTileKeyRange(final int base, final int count) {
+        int unloaded = myRAMCache.trimCacheMatching(new LRUCache.LRUTrimComparator<DataNode>() {
+            @Override
+            public boolean shouldDelete(DataNode test) {
+                int key = test.getCacheKey();
+                return (key >= base) && (key - base < count);
+            }
+        });
+        LOG.debug("Unloaded " + unloaded + " tiles of named key range " + base);
+    }
+
+    /**
+     * Give back a range of tile keys. The tiles are dropped from the cache
+     * and the spill store (without being written), and the keys are reused
+     * after RECYCLE_DELAY_MILLIS. The owner must not touch its tiles after
+     * this.
+     */
+    public void releaseTileKeyRange(int base, int count) {
+        synchronized (myCounterSync) {
+            ArrayList<OwnerReference> owners = myOwners.remove(base);
+            if (owners != null) {
+                for (OwnerReference o : owners) {
+                    o.clear();
+                }
+            }
+            if (isReleasedKey(base)) {
+                return; // Twice
+            }
+            myReleasedKeys.put(base, new ReleasedRange(count, System.currentTimeMillis()));
+        }
+        if (myStoreIndex != null) {
+            synchronized (myStoreIndex) {
+                TileStoreIndex.KeyRange r = myStoreIndex.getRange(base);
+                if ((r != null) && (r.base == base)) {
+                    myStoreIndex.removeRange(r);
+                }
+            }
+        }
+        synchronized (myCodecRanges) {
+            myCodecRanges.remove(base);
+        }
+        for (int i = 0; i < count; i++) {
+            int key = base + i;
+            DataNode node = myRAMCache.pop(key);
+            if (node == null) {
+                node = removePendingWrite(key);
+            }
+            if (node != null) {
+                // Waits out a write in progress, and skips a queued one
+                node.discard();
+            }
+            mySpillStore.remove(key);
+        }
+        mySpillStore.dropEmptyClasses();
+        myStats.released(count);
+    }
+
+    /**
+     * Get the base of a range of tile keys by name. With a persistent store,
+     * asking for the same name and size as a past run gets the same keys,
+     * and so the tiles that were spilled under them. Without one this is just
+     * getNewTileKeyRange.
+     *
+     * The identity has to stand for the content, such as the source file and
+     * field of a product. Everybody asking for a name shares its keys. Call
+     * isTileKeyRangeRestored to see if the tiles came back and don't need
+     * filling, and setTileKeyRangeComplete once filled so the range is kept.
+     *
+     * @param identity the name of the range, null for a throwaway range
+     * @param needed number of tiles needed
+     */
+    public int getTileKeyRange(String identity, int needed) {
+        if ((myStoreIndex == null) || (identity == null)) {
+            return getNewTileKeyRange(needed);
+        }
+        synchronized (myStoreIndex) {
+            TileStoreIndex.KeyRange r = myStoreIndex.getRange(identity);
+            if ((r != null) && (r.count != needed)) {
+                // Same name but a different shape, what was kept is no good
+                dropKeyRange(r);
+                r = null;
+            }
+            if (r == null) {
+                r = new TileStoreIndex.KeyRange(identity, getNewTileKeyRange(needed), needed);
+                myStoreIndex.addRange(r);
+            }
+            r.lastUsed = System.currentTimeMillis();
+            return r.base;
+        }
+    }
+
+    /**
+     * Did the tiles of a named range come back from the last run?
+     */
+    public boolean isTileKeyRangeRestored(String identity) {
+        if ((myStoreIndex == null) || (identity == null)) {
+            return false;
+        }
+        synchronized (myStoreIndex) {
+            TileStoreIndex.KeyRange r = myStoreIndex.getRange(identity);
+            return (r != null) && r.restored;
+        }
+    }
+
+    /**
+     * Mark a named range as filled, so a persistent store keeps it for the
+     * next run
+     */
+    public void setTileKeyRangeComplete(String identity) {
+        if ((myStoreIndex == null) || (identity == null)) {
+            return;
+        }
+        synchronized (myStoreIndex) {
+            TileStoreIndex.KeyRange r = myStoreIndex.getRange(identity);
+            if (r != null) {
+                r.complete = true;
+            }
+        }
+    }
+
+    /**
+     * Forget a named range and everything kept for its keys. Index lock held
+     */
+    private void dropKeyRange(TileStoreIndex.KeyRange r) {
+        releaseTileKeyRange(r.base, r.count);
+    }
+
+    /**
+     * Using this function for all creation of ByteBuffers will allow us to
+     * track the memory usage better...caller should call deallocate below when
+     * the ByteBuffer is set to null
+     *
+     * Buffers come from the buffer pool when it has one the right size, and
+     * are all zero like a new direct buffer.
+     *
+     * @return new ByteBuffer or null
+     */
+    public ByteBuffer allocate(int aSize, String who) {
+        return allocate(aSize, who, true);
+    }
+
+    /**
+     * Allocate, skipping the zero fill of a pooled buffer when the caller is
+     * going to overwrite all of it anyway
+     */
+    public ByteBuffer allocate(int aSize, String who, boolean zeroed) {
+        ByteBuffer bb = myBufferPool.take(aSize, zeroed);
+        if (bb == null) {
+            try {
+                bb = ByteBuffer.allocateDirect(aSize);
+            } catch (OutOfMemoryError e) {
+                // Drop what the pool is holding so the GC can have it, and
+                // try once more
+                myBufferPool.clear();
+                try {
+                    bb = ByteBuffer.allocateDirect(aSize);
+                } catch (OutOfMemoryError e2) {
+                    myFailedAllocatedBytes.addAndGet(aSize);
+                    throw e2;
+                }
+            }
+        }
+        myAllocatedBytes.addAndGet(aSize);
+        return bb;
+    }
+
+    /**
+     * Anyone calling allocate above should call this to let us know it's been
+     * nulled. Doesn't mean JVM or native library has Garbage collected it
+     * though...just counting for debugging purposes.
+     *
+     * @param aSize
+     * @param who
+     */
+    public void deallocate(int aSize, String who) {
+        myAllocatedBytes.addAndGet(-aSize);
+        myDeallocatedBytes.addAndGet(aSize);
+    }
+
+    /**
+     * Give back a buffer from allocate so the next allocate of the same size
+     * can reuse it. The caller must drop every reference to it, it will be
+     * handed to someone else.
+     */
+    public void deallocate(ByteBuffer buffer, String who) {
+        deallocate(buffer.capacity(), who);
+        myBufferPool.give(buffer);
+    }
+
+    /**
+     * Let go of a buffer from allocate that handed out raw views (see
+     * DataNode.getRawBuffer). A renderer may still be reading it through a
+     * view, so it is never pooled, the GC reclaims it once the last view is
+     * gone.
+     */
+    public void abandon(ByteBuffer buffer, String who) {
+        deallocate(buffer.capacity(), who);
+        myBufferPool.abandon(buffer);
+    }
+
+    /**
+     * Get the pool of released buffers
+     */
+    public DirectBufferPool getBufferPool() {
+        return myBufferPool;
+    }
+
+    public long getAllocatedBytes() {
+        return myAllocatedBytes.get();
+    }
+
+    public long getDeallocatedBytes() {
+        return myDeallocatedBytes.get();
+    }
+
+    public long getFailedAllocatedBytes() {
+        return myFailedAllocatedBytes.get();
+    }
+
+    /**
+     * How full the RAM cache is in bytes. This is everything allocated, less
+     * the tiles already trimmed and just waiting on their write to finish.
+     * Called by the LRUCache to decide how much to trim.
+     */
+    @Override
+    public long getFilledSize() {
+        return myAllocatedBytes.get() - getPendingWriteBytes();
+    }
+
+    public int getNumberOfCachedItems() {
+        return myRAMCache.getCacheFilledSize();
     }
 
     public String getTempDirName(String subname) {
@@ -176,6 +1175,59 @@ public class DataManager implements LRUCacheListener<DataNode> {
         return temporaryDir;
     }
 
+    /**
+     * Get the spill store DataNodes are offloaded into
+     */
+    public TileSpillStore getSpillStore() {
+        return mySpillStore;
+    }
+
+    /**
+     * Set the codec for tiles without one of their own
+     */
+    public void setSpillCodec(SpillCodec codec) {
+        if (codec != null) {
+            mySpillCodec = codec;
+        }
+    }
+
+    /**
+     * Get the codec for tiles without one of their own
+     */
+    public SpillCodec getSpillCodec() {
+        return mySpillCodec;
+    }
+
+    /**
+     * Set the codec for a range of tile keys, such as all the tiles of one
+     * array. Null goes back to the default codec. Tiles already spilled keep
+     * the codec they were written with until written again.
+     */
+    public void setSpillCodec(int keyBase, int keyCount, SpillCodec codec) {
+        synchronized (myCodecRanges) {
+            if (codec == null) {
+                myCodecRanges.remove(keyBase);
+            } else {
+                myCodecRanges.put(keyBase, new KeyRangeCodec(keyBase + keyCount - 1, codec));
+            }
+        }
+    }
+
+    /**
+     * Get the codec a tile key should be written with
+     */
+    public SpillCodec getSpillCodec(int key) {
+        synchronized (myCodecRanges) {
+            if (!myCodecRanges.isEmpty()) {
+                Map.Entry<Integer, KeyRangeCodec> e = myCodecRanges.floorEntry(key);
+                if ((e != null) && (key <= e.getValue().lastKey)) {
+                    return e.getValue().codec;
+                }
+            }
+        }
+        return mySpillCodec;
+    }
+
     public String getRootTempDir() {
         return myTempDir.getAbsolutePath();
     }
@@ -237,89 +1289,831 @@ public class DataManager implements LRUCacheListener<DataNode> {
         return mySizePerNode;
     }
 
-    public int getMaxMemoryInBytes() {
-        return (getRecommendedNodeSize() * 4) * myRAMCacheNodeMaxCount;
+    /**
+     * Get the RAM budget of the cache in bytes
+     */
+    public long getMaxMemoryInBytes() {
+        return myRAMCache.getCacheSize();
+    }
+
+    /**
+     * Set the RAM budget of the cache in bytes. If lower than current use
+     * the cache trims right away. Never more than the other partitions
+     * leave of the shared total
+     */
+    public void setMaxMemoryInBytes(long bytes) {
+        synchronized (INSTANCE_SYNC) {
+            long room = getTotalBytes() - getOthersBudget();
+            if (bytes > room) {
+                LOG.warn("DataManager " + myName + " asked for " + bytes + " bytes but only " + room
+                        + " of the shared " + getTotalBytes() + " are free");
+                bytes = room;
+            }
+            if (bytes > myRAMCache.getMaxCacheSize()) {
+                myRAMCache.setMaxCacheSize(bytes);
+            }
+            if (bytes < myRAMCache.getMinCacheSize()) {
+                myRAMCache.setMinCacheSize(bytes);
+            }
+            myRAMCache.setCacheSize(bytes);
+        }
+    }
+
+    /**
+     * Move the RAM budget for the size controller, as far toward bytes as
+     * our limits and the other partitions allow. Shrinking always goes,
+     * growing stops where the budgets of all of us would pass the shared
+     * total
+     *
+     * @return the budget now
+     */
+    long moveMaxMemoryInBytes(long bytes) {
+        synchronized (INSTANCE_SYNC) {
+            long size = myRAMCache.getCacheSize();
+            if (bytes > size) {
+                long room = getTotalBytes() - getOthersBudget();
+                bytes = Math.max(size, Math.min(bytes, Math.min(room, myRAMCache.getMaxCacheSize())));
+            } else {
+                bytes = Math.max(bytes, myRAMCache.getMinCacheSize());
+            }
+            myRAMCache.setCacheSize(bytes);
+            return bytes;
+        }
+    }
+
+    /**
+     * The RAM budgets of every partition but us, with INSTANCE_SYNC held
+     */
+    private long getOthersBudget() {
+        long bytes = 0;
+        Iterator<DataManager> i = thePartitions.values().iterator();
+        while (i.hasNext()) {
+            DataManager partition = i.next();
+            if (partition != this) {
+                bytes += partition.myRAMCache.getCacheSize();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the RAM budget shared by every partition in bytes, what
+     * wg3.datamanager.maxbytes sets. Each partition's budget is carved out
+     * of this
+     */
+    public static long getTotalMemoryInBytes() {
+        synchronized (INSTANCE_SYNC) {
+            return getTotalBytes();
+        }
+    }
+
+    /**
+     * Get our share of the total RAM budget in bytes. The budget moves
+     * between a quarter and four times this
+     */
+    public long getBudgetShareInBytes() {
+        return myBudgetShare;
+    }
+
+    /**
+     * Read the shared budget the first time, with INSTANCE_SYNC held
+     */
+    private static long getTotalBytes() {
+        if (theTotalBytes < 0) {
+            long bytes = DEFAULT_MAX_BYTES;
+            String property = System.getProperty(MAX_BYTES_PROPERTY);
+            if (property != null) {
+                try {
+                    bytes = Long.parseLong(property.trim());
+                } catch (NumberFormatException e) {
+                    LOG.error("Bad " + MAX_BYTES_PROPERTY + " of '" + property + "', using " + bytes);
+                }
+            }
+            theTotalBytes = bytes;
+        }
+        return theTotalBytes;
+    }
+
+    /**
+     * The default partition's share, whatever the others haven't taken
+     * but never under a quarter of the total
+     */
+    private static long getDefaultShare() {
+        long total = getTotalBytes();
+        return Math.max(total - theCarvedBytes, total / 4);
+    }
+
+    /**
+     * Carve the budget share of a new partition out of the total, with
+     * INSTANCE_SYNC held. A partition other than the default gets its own
+     * maxbytes property, else a PARTITION_SHARE of the total, and the
+     * default gives that much up. If the others already have all they can
+     * take, they give up part of theirs, and any partition grown past its
+     * share gives that back first. So adding partitions never adds RAM.
+     */
+    private static long carveBudgetShare(String name) {
+        long total = getTotalBytes();
+        long bytes = DEFAULT_PARTITION.equals(name) ? getDefaultShare() : carveShare(name, total);
+        // Budgets grown past their shares give it back, so the new one fits
+        long used = bytes;
+        Iterator<DataManager> i = thePartitions.values().iterator();
+        while (i.hasNext()) {
+            used += i.next().myRAMCache.getCacheSize();
+        }
+        if (used > total) {
+            i = thePartitions.values().iterator();
+            while (i.hasNext()) {
+                DataManager partition = i.next();
+                if (partition.myRAMCache.getCacheSize() > partition.myBudgetShare) {
+                    partition.myRAMCache.setCacheSize(partition.myBudgetShare);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Take the share of a partition other than the default from the
+     * default's, with INSTANCE_SYNC held
+     */
+    private static long carveShare(String name, long total) {
+        long bytes = total / PARTITION_SHARE;
+        String key = getPartitionProperty(name, MAX_BYTES_PROPERTY);
+        String property = System.getProperty(key);
+        if (property != null) {
+            try {
+                bytes = Long.parseLong(property.trim());
+            } catch (NumberFormatException e) {
+                LOG.error("Bad " + key + " of '" + property + "', using " + bytes);
+            }
+        }
+        long carvable = total - (total / 4);
+        long left = carvable - theCarvedBytes;
+        if (bytes > left) {
+            long floor = total / (PARTITION_SHARE * 8);
+            LOG.warn("DataManager " + name + " wants " + bytes + " bytes but only " + left
+                    + " of the shared " + total + " are left for partitions");
+            if (left < floor) {
+                shrinkCarvedShares(carvable - floor);
+                left = carvable - theCarvedBytes;
+            }
+            bytes = left;
+        }
+        theCarvedBytes += bytes;
+        DataManager current = thePartitions.get(DEFAULT_PARTITION);
+        if (current != null) {
+            current.setBudgetShare(getDefaultShare());
+        }
+        return bytes;
+    }
+
+    /**
+     * Scale the shares of the partitions other than the default down so
+     * they add up to no more than bytes, with INSTANCE_SYNC held
+     */
+    private static void shrinkCarvedShares(long bytes) {
+        long carved = theCarvedBytes;
+        theCarvedBytes = 0;
+        Iterator<DataManager> i = thePartitions.values().iterator();
+        while (i.hasNext()) {
+            DataManager partition = i.next();
+            if (!DEFAULT_PARTITION.equals(partition.myName)) {
+                long share = (long) ((double) partition.myBudgetShare * bytes / carved);
+                LOG.warn("DataManager " + partition.myName + " gives up " + (partition.myBudgetShare - share)
+                        + " bytes of its share for a new partition");
+                partition.setBudgetShare(share);
+                theCarvedBytes += share;
+            }
+        }
+    }
+
+    /**
+     * Move our share of the total budget, with INSTANCE_SYNC held. The
+     * budget keeps where it was between the old limits, and our pool
+     * follows unless set by property
+     */
+    private void setBudgetShare(long bytes) {
+        long size = (long) ((double) myRAMCache.getCacheSize() * bytes / myBudgetShare);
+        size = Math.max(bytes / 4, Math.min(size, bytes * 4));
+        myBudgetShare = bytes;
+        // Open the limits around both the old and new budget, then close
+        // them on the new one
+        myRAMCache.setMinCacheSize(Math.min(myRAMCache.getMinCacheSize(), bytes / 4));
+        myRAMCache.setMaxCacheSize(Math.max(myRAMCache.getMaxCacheSize(), bytes * 4));
+        myRAMCache.setCacheSize(size);
+        myRAMCache.setMaxCacheSize(bytes * 4);
+        myRAMCache.setMinCacheSize(bytes / 4);
+        if (!myPoolBytesSet) {
+            myBufferPool.setMaxPooledBytes(bytes / 8);
+        }
+    }
+
+    /**
+     * Start moving the RAM budget with memory pressure, between a quarter
+     * and four times our budget share, unless turned off by property. All
+     * the partitions share one timer thread
+     */
+    private void startSizeController() {
+        String property = getProperty(ADAPTIVE_PROPERTY);
+        if ((property != null) && property.trim().equalsIgnoreCase("false")) {
+            return;
+        }
+        mySizeController = new CacheSizeController(this, myRAMCache);
+        if (theSizer == null) {
+            theSizer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("DataManager-sizer"));
+        }
+        theSizer.scheduleWithFixedDelay(mySizeController, CacheSizeController.DEFAULT_PERIOD_MILLIS,
+                CacheSizeController.DEFAULT_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get what moves the RAM budget, null if the budget is fixed
+     */
+    public CacheSizeController getSizeController() {
+        return mySizeController;
+    }
+
+    /**
+     * Get the smallest the adaptive RAM budget goes, in bytes
+     */
+    public long getMinMemoryInBytes() {
+        return myRAMCache.getMinCacheSize();
+    }
+
+    /**
+     * Get the largest the adaptive RAM budget goes, in bytes
+     */
+    public long getMaxMemoryLimitInBytes() {
+        return myRAMCache.getMaxCacheSize();
+    }
+
+    /**
+     * Register our stats with the platform MBean server so jconsole and
+     * friends can watch the cache. Not fatal if JMX isn't around
+     */
+    private void registerStats() {
+        registerMBean(getMBeanName(), myStats);
+    }
+
+    /**
+     * The JMX name of our stats, MBEAN_NAME for the default partition and
+     * MBEAN_NAME,partition=name for the others
+     */
+    public String getMBeanName() {
+        return isDefaultPartition() ? MBEAN_NAME : MBEAN_NAME + ",partition=" + myName;
+    }
+
+    private static void registerMBean(String mbeanName, Object bean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(mbeanName);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(bean, name);
+            }
+        } catch (Exception e) {
+            LOG.warn("Couldn't register DataManager stats with JMX: " + e.toString());
+        }
     }
 
+    /**
+     * Get the default partition
+     */
     public static DataManager getInstance() {
-        if (instance == null) {
-            DataManager newOne = new DataManager();
-            
-            // Don't set instance until initialization stuff is complete
-            int RAMsizeBytes = newOne.getMaxMemoryInBytes();
-            float inGB = (RAMsizeBytes / 1024.0f / 1024.0f / 1024.0f);
-            LOG.info("DataManager initialized, max RAM allowed is currently " + inGB + " GB");
-            
+        DataManager current = instance;
+        if (current != null) {
+            return current;
+        }
+        return getPartition(DEFAULT_PARTITION);
+    }
+
+    /**
+     * Get a partition by name, making it the first time. Names are letters,
+     * digits, '-' and '_', they're used in property, file and JMX names.
+     * Look it up once and keep it, this locks.
+     */
+    public static DataManager getPartition(String name) {
+        if (!isPartitionName(name)) {
+            throw new IllegalArgumentException("Bad DataManager partition name '" + name + "'");
+        }
+        synchronized (INSTANCE_SYNC) {
+            DataManager partition = thePartitions.get(name);
+            if (partition == null) {
+                partition = createPartition(name);
+            }
+            return partition;
+        }
+    }
+
+    /**
+     * Get every partition made so far
+     */
+    public static List<DataManager> getPartitions() {
+        synchronized (INSTANCE_SYNC) {
+            return new ArrayList<DataManager>(thePartitions.values());
+        }
+    }
+
+    /**
+     * Get the stats summed over every partition
+     */
+    public static DataManagerTotals getTotals() {
+        return theTotals;
+    }
+
+    private static boolean isPartitionName(String name) {
+        if ((name == null) || (name.length() == 0)) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && (c != '-') && (c != '_')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The name of a property for one partition, such as
+     * wg3.datamanager.render.maxbytes for MAX_BYTES_PROPERTY
+     */
+    public static String getPartitionProperty(String partition, String property) {
+        return PROPERTY_PREFIX + partition + "." + property.substring(PROPERTY_PREFIX.length());
+    }
+
+    /**
+     * A property for this partition, its own if set, else the shared one
+     */
+    private String getProperty(String property) {
+        String value = getOwnProperty(property);
+        return (value != null) ? value : System.getProperty(property);
+    }
+
+    /**
+     * A property only if set for this partition. The shared properties are
+     * the default partition's own
+     */
+    private String getOwnProperty(String property) {
+        String value = System.getProperty(getPartitionProperty(myName, property));
+        if ((value == null) && isDefaultPartition()) {
+            value = System.getProperty(property);
+        }
+        return value;
+    }
+
+    private String getThreadName(String what) {
+        return isDefaultPartition() ? "DataManager-" + what : "DataManager-" + myName + "-" + what;
+    }
+
+    /**
+     * Get our partition name
+     */
+    public String getName() {
+        return myName;
+    }
+
+    public boolean isDefaultPartition() {
+        return DEFAULT_PARTITION.equals(myName);
+    }
+
+    /**
+     * Make and start a partition, called once for each with INSTANCE_SYNC
+     * held
+     */
+    private static DataManager createPartition(String name) {
+        DataManager newOne = new DataManager(name, carveBudgetShare(name));
+
+        // Listen for trims from the start, tiles only ever reached by
+        // getTile have to be spilled too
+        newOne.myRAMCache.addListener(newOne);
+        
+        // Don't set instance until initialization stuff is complete
+        long RAMsizeBytes = newOne.getMaxMemoryInBytes();
+        float inGB = (RAMsizeBytes / 1024.0f / 1024.0f / 1024.0f);
+        LOG.info("DataManager " + name + " initialized, max RAM allowed is currently " + inGB + " GB"
+                + " of the shared " + (getTotalBytes() / 1024.0f / 1024.0f / 1024.0f) + " GB");
+        newOne.registerStats();
+        if (thePartitions.isEmpty()) {
+            registerMBean(DataManagerTotals.MBEAN_NAME, theTotals);
+        }
+        newOne.startSizeController();
+        
+        thePartitions.put(name, newOne);
+        if (newOne.isDefaultPartition()) {
             instance = newOne; // Safe now to set (for reading)
         }
-        return instance;
+
+        if (newOne.myTrace != null) {
+            final CacheTrace trace = newOne.myTrace;
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    trace.close();
+                }
+            }, newOne.getThreadName("trace")));
+        }
+
+        if (newOne.myStoreIndex != null) {
+            final DataManager manager = newOne;
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    manager.shutdown();
+                }
+            }, newOne.getThreadName("shutdown")));
+            newOne.startWarmUp();
+        }
+        return newOne;
     }
+
     /**
-     * Get a tile from the DataManager
-     *
-     * @param key the 'key' of tile...
-     * @return null or the found tile
+     * Load the tiles that were in RAM when the last run stopped, in the
+     * background, most recently used first. Stops short of the low
+     * watermark so the warm up never trims anything. These count as
+     * prefetch loads in the stats.
      */
-    private static long getCount = 0;
-    private static long hitCount = 0;
-    private static long printCount = 0;
+    private void startWarmUp() {
+        final List<TileStoreIndex.HotTile> hot = myStoreIndex.getHotTiles();
+        myStoreIndex.clearHotTiles();
+        if (hot.isEmpty()) {
+            return;
+        }
+        Thread t = new DaemonThreadFactory(getThreadName("warmup")).newThread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                long limit = (long) (getMaxMemoryInBytes() * myLowWaterMark);
+                int loaded = 0;
+                for (TileStoreIndex.HotTile h : hot) {
+                    if (getFilledSize() + (h.size * 4L) > limit) {
+                        break;
+                    }
+                    new PrefetchLoad(h.key, h.size, h.background).run();
+                    loaded++;
+                }
+                LOG.info("Warmed up " + loaded + " of " + hot.size() + " tiles in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            }
+        });
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
 
+    /**
+     * Save a persistent tile store for the next run: write the tiles of
+     * complete named ranges, wait on pending writes and save the index with
+     * the tiles in RAM as the hot list. Called at exit by a shutdown hook,
+     * tiles changed after this aren't kept. Does nothing without a
+     * persistent store.
+     */
+    public void shutdown() {
+        if (myStoreIndex == null) {
+            return;
+        }
+        synchronized (this) {
+            if (myShutdown) {
+                return;
+            }
+            myShutdown = true;
+        }
+        ArrayList<TileStoreIndex.HotTile> hot = new ArrayList<TileStoreIndex.HotTile>();
+        Iterator<DataNode> i = myRAMCache.getStackCopy().iterator();
+        while (i.hasNext()) {
+            DataNode node = i.next();
+            int key = node.getCacheKey();
+            boolean keep;
+            synchronized (myStoreIndex) {
+                TileStoreIndex.KeyRange r = myStoreIndex.getRange(key);
+                keep = (r != null) && r.complete;
+            }
+            if (keep) {
+                node.writeToDisk();
+                hot.add(new TileStoreIndex.HotTile(key, node.getByteSize() / 4, node.getBackground()));
+            }
+        }
+        flushPendingWrites();
+        mySpillStore.force();
+        myStoreIndex.save(mySpillStore, hot);
+        myStoreIndex.unlock();
+    }
+    /**
+     * Get a tile out of the DataManager, it's no longer managed until it's
+     * given back with pushTile. A miss goes through the same single load
+     * guard as getTile, so it never reads a tile somebody else is loading or
+     * that is still on the pending writes.
+     */
     public DataNode popTile(int key, int firstSize, float background) {
         DataNode theTile;
+        if (myTrace != null) {
+            myTrace.access(key, firstSize);
+        }
 
         theTile = myRAMCache.pop(key);
+        if (theTile != null) {
+            myStats.popHit();
+        }
+        while (theTile == null) {
+            TileLoad load = startLoad(key);
+            if (load != null) {
+                // Ours to bring in, from the pending writes or the store.
+                // It doesn't go in the cache, so waiters go around again
+                try {
+                    theTile = takePendingWrite(key);
+                    if (theTile == null) {
+                        theTile = new DataNode(this, key, firstSize, background);
+                        theTile.loadNodeIntoRAM();
+                        myStats.popMiss();
+                    }
+                } finally {
+                    endLoad(key, load, null);
+                }
+                break;
+            }
 
-        // Tile not in cache, create it and add it to cache
-        if (theTile == null) {
-            theTile = new DataNode(key, firstSize, background);
-            theTile.loadNodeIntoRAM();
-        } else {
-            // LOG.debug("Cache hit POP "+theTile);
+            // Being loaded, it goes in the cache, so take it from there
+            TileLoad other;
+            synchronized (myLoads) {
+                other = myLoads.get(key);
+            }
+            if (other != null) {
+                other.await();
+            }
+            theTile = myRAMCache.pop(key);
+            if (theTile != null) {
+                myStats.sharedLoad();
+            }
+        }
+
+        if (theTile.isPrefetched()) {
+            theTile.setPrefetched(false);
+            myStats.prefetchHit();
         }
         return (theTile);
     }
 
     public void pushTile(int key, DataNode tile) {
         if (tile != null) {
-            if (myAddListener) {  // Add listener on first push....
-                myRAMCache.addListener(this);
-                myAddListener = false;
-            }
             myRAMCache.put(key, tile);
             //LOG.debug("PUSH TILE "+tile);
         }
     }
 
+    /**
+     * Get a tile and pin it. A pinned tile stays in RAM and in the cache,
+     * where everyone else can still find it, but isn't trimmed until it's
+     * unpinned. Pins are counted, every pinTile needs an unpinTile. Use it
+     * to hold a tile over a draw or a batch of sets, pinned tiles still count
+     * against the RAM budget.
+     *
+     * @return the pinned tile, or an unpinned one if it couldn't be loaded
+     */
+    public DataNode pinTile(int key, int firstSize, float background) {
+        if (myTrace != null) {
+            myTrace.pin(key, firstSize);
+        }
+        DataNode theTile = myRAMCache.pin(key);
+        if (theTile == null) {
+            // Loaded straight into the cache pinned, a trim can't get at it
+            // in between
+            theTile = loadTile(key, firstSize, background, true);
+        }
+        if (theTile.isPrefetched()) {
+            theTile.setPrefetched(false);
+            myStats.prefetchHit();
+        }
+        myStats.pinned();
+        return theTile;
+    }
+
+    /**
+     * Take back a pin from pinTile. The last one hands the tile back to the
+     * cache as if just used.
+     */
+    public void unpinTile(int key) {
+        if (myTrace != null) {
+            myTrace.unpin(key);
+        }
+        myRAMCache.unpin(key);
+    }
+
+    /**
+     * Get the number of pinned tiles
+     */
+    public int getPinnedTiles() {
+        return myRAMCache.getPinnedCount();
+    }
+
+    /**
+     * Get the RAM in bytes held by pinned tiles. Constant tiles have no
+     * buffer and hold none
+     */
+    public long getPinnedBytes() {
+        long total = 0;
+        Iterator<DataNode> i = myRAMCache.getPinnedCopy().iterator();
+        while (i.hasNext()) {
+            DataNode node = i.next();
+            if (!node.isConstant()) {
+                total += node.getByteSize();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Get a tile from the DataManager
+     *
+     * @param key the 'key' of tile...
+     * @return the found tile. One that couldn't be loaded is unloaded and
+     * not cached, see DataNode.isInvalid, so getting it again tries again
+     */
     public DataNode getTile(int key, int firstSize, float background) {
 
         DataNode theTile;
+        if (myTrace != null) {
+            myTrace.access(key, firstSize);
+        }
         theTile = myRAMCache.get(key);
 
-        // Tile not in cache, create it and add it to cache
         if (theTile == null) {
+            theTile = loadTile(key, firstSize, background, false);
+        } else {
+            myStats.cacheHit();
+            // LOG.debug("Tile RAM HIT: "+theTile.getCacheKey());
+        }
+        if (theTile.isPrefetched()) {
+            theTile.setPrefetched(false);
+            myStats.prefetchHit();
+        }
+        return (theTile);
+    }
 
-            theTile = new DataNode(key, firstSize, background);
-            boolean success = ((theTile != null) && (theTile.loadNodeIntoRAM()));
+    /**
+     * Bring a tile we missed into the cache. If another thread is already
+     * loading it we wait and share its tile instead.
+     *
+     * @param pin pin the tile, it only comes back unpinned if it couldn't
+     * be loaded at all
+     */
+    private DataNode loadTile(int key, int firstSize, float background, boolean pin) {
+        while (true) {
+            TileLoad load = startLoad(key);
+            if (load != null) {
+                return loadClaimedTile(key, firstSize, background, load, pin);
+            }
+            TileLoad other;
+            synchronized (myLoads) {
+                other = myLoads.get(key);
+            }
+            if (other != null) {
+                DataNode shared = other.await();
+                if (pin && (shared != null)) {
+                    shared = myRAMCache.pin(key); // Null if trimmed already
+                }
+                if (shared != null) {
+                    myStats.sharedLoad();
+                    return shared;
+                }
+                // A prefetch that failed, a pop, or trimmed before we could
+                // pin it, try it ourselves
+            } else {
+                DataNode cached = pin ? myRAMCache.pin(key) : myRAMCache.get(key);
+                if (cached != null) {
+                    // Loaded between our miss and startLoad
+                    myStats.sharedLoad();
+                    return cached;
+                }
+                // Trimmed again already, so it's on the pending writes
+                // (see evicting) and startLoad gets it back, go around
+            }
+        }
+    }
+
+    /**
+     * Do a load we own. A trimmed tile is on the pending writes from the
+     * moment it left the cache (evicting), so checking there first under
+     * the load claim means we never read an old copy from the store while
+     * the live one is waiting on its write.
+     */
+    private DataNode loadClaimedTile(int key, int firstSize, float background, TileLoad load, boolean pin) {
+        DataNode theTile = null;
+        try {
+            // Tile trimmed but still waiting to be written, just take it back
+            theTile = takePendingWrite(key);
+            if (theTile != null) {
+                myRAMCache.put(key, theTile, pin);
+                return theTile;
+            }
+
+            // Tile not in cache, create it and add it to cache
+            theTile = new DataNode(this, key, firstSize, background);
+            boolean success = theTile.loadNodeIntoRAM();
             if (success) {
                 // theTile.setCacheKey() constructor
                 LOG.debug("Tile RAM Loaded: " + theTile.getCacheKey() + " read: " + success);
-                myRAMCache.put(key, theTile);
+                myStats.cacheMiss();
+                DataNode already = myRAMCache.putIfAbsent(key, theTile, pin);
+                if (already != null) {
+                    // Pushed back while we were loading, use that one
+                    theTile.releaseRAM();
+                    theTile = pin ? myRAMCache.pin(key) : already;
+                    if (theTile == null) {
+                        theTile = already; // Trimmed already, unpinned
+                        LOG.error("Couldn't pin tile " + key);
+                    }
+                }
                 // CommandManager.getInstance().cacheManagerNotify();
             } else {
-                LOG.error("Wasn't able to create/load a tile");
+                // Not cached, the next get tries again
+                LOG.error("Wasn't able to create/load tile " + key
+                        + (theTile.isInvalid() ? ", its spilled data couldn't be read back" : ""));
             }
-            // Tile already found in cache
-        } else {
-            hitCount++;
-            // LOG.debug("Tile RAM HIT: "+theTile.getCacheKey());
+            return theTile;
+        } finally {
+            endLoad(key, load, theTile);
         }
-        getCount++;
-        // }
-        if (printCount++ > 1000000) {
-            printCount = 0;
-                LOG.debug("Current tile stats: " + getCount + " with " + hitCount + " --> " + hitCount / getCount);
+    }
+
+    /**
+     * Claim the load of a tile for this thread. Checks the cache again with
+     * myLoads held, a finished load puts its tile in the cache before it
+     * leaves myLoads, so we never load a tile somebody just did.
+     *
+     * @return the load, ours to finish with endLoad, or null if the tile is
+     * in RAM or already being loaded
+     */
+    private TileLoad startLoad(int key) {
+        synchronized (myLoads) {
+            if (myLoads.containsKey(key) || myRAMCache.containsKey(key)) {
+                return null;
+            }
+            TileLoad load = new TileLoad();
+            myLoads.put(key, load);
+            return load;
         }
-        return (theTile);
+    }
+
+    /**
+     * Finish a load from startLoad and wake its waiters
+     *
+     * @param node the tile, or null if it failed and waiters should try
+     * themselves
+     */
+    private void endLoad(int key, TileLoad load, DataNode node) {
+        synchronized (myLoads) {
+            myLoads.remove(key);
+        }
+        load.finish(node);
+    }
+
+    /**
+     * Ask for a tile to be loaded into the cache in the background because
+     * it's likely to be wanted soon. Only tiles that are in the spill store
+     * are worth it, a brand new tile is as cheap to make on demand. Does
+     * nothing if the tile is already in RAM or the prefetch threads are busy.
+     */
+    public void prefetchTile(int key, int firstSize, float background) {
+        if (!mySpillStore.contains(key) || myRAMCache.containsKey(key) || isReleasedKey(key)) {
+            return;
+        }
+        myPrefetcher.execute(new PrefetchLoad(key, firstSize, background));
+    }
+
+    /**
+     * Get the number of tiles loaded into the cache by a prefetch
+     */
+    public long getPrefetchLoads() {
+        return myStats.getPrefetchLoads();
+    }
+
+    /**
+     * Get the number of tile gets answered by a prefetched tile. Compare to
+     * getDemandLoads to see if prefetching is paying for itself
+     */
+    public long getPrefetchHits() {
+        return myStats.getPrefetchHits();
+    }
+
+    /**
+     * Get the number of prefetched tiles let go of without ever being used.
+     * One taken back off the pending writes before its RAM went isn't
+     */
+    public long getPrefetchWasted() {
+        return myStats.getPrefetchWasted();
+    }
+
+    /**
+     * Get the number of tile gets that missed the cache and loaded the tile
+     * themselves
+     */
+    public long getDemandLoads() {
+        return myStats.getCacheMisses() + myStats.getPopMisses();
+    }
+
+    /**
+     * Get the cache and spill counters
+     */
+    public DataManagerStats getStats() {
+        return myStats;
     }
 
     public void dataCreated(DataStorage storage, int memoryGuess) {
@@ -333,14 +2127,168 @@ public class DataManager implements LRUCacheListener<DataNode> {
     public void purgeAllTiles() {
         LOG.debug("Tile PURGING ALL FROM RAM ");
         myRAMCache.clear();
+        flushPendingWrites();
+    }
+
+    /**
+     * Wait until every trimmed tile has been written and released. Failed
+     * writes are tried once more, a tile that still can't be written stays
+     * on the pending writes, in RAM
+     */
+    public void flushPendingWrites() {
+        retryFailedWrites();
+        synchronized (myPendingWrites) {
+            while (myPendingWrites.size() > myFailedWrites) {
+                try {
+                    myPendingWrites.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (myFailedWrites > 0) {
+                LOG.error(myFailedWrites + " trimmed tiles couldn't be written, they're still in RAM");
+            }
+        }
+    }
+
+    /**
+     * Queue the failed pending writes for another try
+     */
+    private void retryFailedWrites() {
+        ArrayList<PendingWrite> retry;
+        synchronized (myPendingWrites) {
+            if (myFailedWrites == 0) {
+                return;
+            }
+            retry = new ArrayList<PendingWrite>(myFailedWrites);
+            Iterator<PendingWrite> i = myPendingWrites.values().iterator();
+            while (i.hasNext()) {
+                PendingWrite p = i.next();
+                if (p.failed) {
+                    p.failed = false;
+                    retry.add(p);
+                }
+            }
+            myFailedWrites = 0;
+        }
+        Iterator<PendingWrite> i = retry.iterator();
+        while (i.hasNext()) {
+            myWriter.execute(i.next());
+        }
+    }
+
+    /**
+     * Get the RAM in bytes held by trimmed tiles still waiting to be written
+     */
+    public long getPendingWriteBytes() {
+        synchronized (myPendingWrites) {
+            return myPendingWriteBytes;
+        }
+    }
+
+    /**
+     * Take back a tile trimmed from the cache whose write hasn't finished.
+     * Its RAM hasn't been released, so it's still good to use. If the write
+     * is in progress it just finishes without releasing the tile.
+     *
+     * @return the tile or null
+     */
+    private DataNode takePendingWrite(int key) {
+        DataNode node = removePendingWrite(key);
+        if (node != null) {
+            myStats.pendingWriteHit();
+        }
+        return node;
+    }
+
+    /**
+     * Take a tile off the pending writes, see takePendingWrite
+     */
+    private DataNode removePendingWrite(int key) {
+        synchronized (myPendingWrites) {
+            PendingWrite p = myPendingWrites.remove(key);
+            if (p != null) {
+                if (p.failed) {
+                    myFailedWrites--;
+                }
+                myPendingWriteBytes -= p.bytes;
+                myPendingWrites.notifyAll();
+                return p.node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Called by LRUCache, under its lock, just before a tile leaves the cache.
+     * The tile goes on the pending writes now, so there's no moment where a
+     * miss finds it in neither place. trimmed decides what happens to it,
+     * and counts its bytes, so the tile's lock is never taken under the cache's.
+     */
+    @Override
+    public void evicting(DataNode o) {
+        PendingWrite p = new PendingWrite(o);
+        synchronized (myPendingWrites) {
+            PendingWrite old = myPendingWrites.put(o.getCacheKey(), p);
+            if (old != null) {
+                if (old.failed) {
+                    myFailedWrites--;
+                }
+                myPendingWriteBytes -= old.bytes;
+            }
+        }
     }
 
     /**
      * Called by LRUCache when we are trimmed from the LRU. This DataManager LRU
-     * is for tiles currently in RAM. So we need to purge our stuff to disk
+     * is for tiles currently in RAM. So we need to purge our stuff to disk.
+     * Clean tiles are released right away, dirty ones are queued for a writer.
+     * Either way only while the tile is still on the pending writes from
+     * evicting, if it was taken back it's in use again.
      */
     @Override
     public void trimmed(DataNode o) {
-        o.purgeNodeFromRAM();
+        final Integer key = o.getCacheKey();
+        PendingWrite p;
+        boolean dirty;
+
+        // Check and release in one go, a set in between would be lost
+        synchronized (o.getWriteLock()) {
+            dirty = o.isDirty();
+            synchronized (myPendingWrites) {
+                p = myPendingWrites.get(key);
+                if ((p == null) || (p.node != o)) {
+                    return; // Taken back already
+                }
+                if (!dirty) {
+                    myPendingWrites.remove(key);
+                    myPendingWrites.notifyAll();
+                } else if (!o.isConstant()) {
+                    p.bytes = o.getByteSize();
+                    myPendingWriteBytes += p.bytes;
+                }
+            }
+            if (!dirty) {
+                if (o.isPrefetched()) {
+                    myStats.prefetchWasted();
+                }
+                o.releaseRAM();
+            }
+        }
+        myStats.eviction(dirty);
+        if (!dirty) {
+            return;
+        }
+        myWriter.execute(p);
+        retryFailedWrites();
+
+        // Released while we were trimming it, so the release may have missed
+        // it. Checked after queueing, so one of us always sees the other
+        if (isReleasedKey(key)) {
+            removePendingWrite(key);
+            o.discard();
+            mySpillStore.remove(key);
+        }
     }
 }
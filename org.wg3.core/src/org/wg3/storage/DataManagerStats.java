@@ -0,0 +1,416 @@
+package org.wg3.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the DataManager tile cache and spill store, for sizing the
+ * cache budget and seeing where time goes. Get it with
+ * DataManager.getStats(), it's also registered with JMX (see
+ * DataManagerStatsMBean) so jconsole/VisualVM can watch it live.
+ *
+ * Counters only go up (until reset) and are lock free, so they're cheap
+ * enough to sit in the getTile path. The byte/tile gauges are read from the
+ * DataManager when asked for.
+ *
+ * Cache hits/misses are for getTile, pop hits/misses for popTile, pins
+ * count pinTile calls. Pinned bytes are in the allocated bytes too. A tile
+ * taken back from the write queue (trimmed, but not written yet) is a
+ * pending write hit, not a cache hit or miss.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class DataManagerStats implements DataManagerStatsMBean {
+
+    private final DataManager myManager;
+    private final AtomicLong myCacheHits = new AtomicLong();
+    private final AtomicLong myCacheMisses = new AtomicLong();
+    private final AtomicLong myPopHits = new AtomicLong();
+    private final AtomicLong myPopMisses = new AtomicLong();
+    private final AtomicLong myPins = new AtomicLong();
+    private final AtomicLong myPendingWriteHits = new AtomicLong();
+    private final AtomicLong mySharedLoads = new AtomicLong();
+    private final AtomicLong myCleanEvictions = new AtomicLong();
+    private final AtomicLong myDirtyEvictions = new AtomicLong();
+    private final AtomicLong myBytesSpilled = new AtomicLong();
+    private final AtomicLong myBytesRestored = new AtomicLong();
+    private final AtomicLong myTilesSpilled = new AtomicLong();
+    private final AtomicLong myTilesRestored = new AtomicLong();
+    private final AtomicLong mySpillWriteFailures = new AtomicLong();
+    private final AtomicLong myPrefetchLoads = new AtomicLong();
+    private final AtomicLong myPrefetchHits = new AtomicLong();
+    private final AtomicLong myPrefetchWasted = new AtomicLong();
+    private final AtomicLong myReleasedTiles = new AtomicLong();
+    private final LatencyHistogram mySpillReads = new LatencyHistogram();
+    private final LatencyHistogram mySpillWrites = new LatencyHistogram();
+
+    DataManagerStats(DataManager manager) {
+        myManager = manager;
+    }
+
+    void cacheHit() {
+        myCacheHits.incrementAndGet();
+    }
+
+    void cacheMiss() {
+        myCacheMisses.incrementAndGet();
+    }
+
+    void popHit() {
+        myPopHits.incrementAndGet();
+    }
+
+    void popMiss() {
+        myPopMisses.incrementAndGet();
+    }
+
+    void pinned() {
+        myPins.incrementAndGet();
+    }
+
+    void pendingWriteHit() {
+        myPendingWriteHits.incrementAndGet();
+    }
+
+    void sharedLoad() {
+        mySharedLoads.incrementAndGet();
+    }
+
+    void eviction(boolean dirty) {
+        if (dirty) {
+            myDirtyEvictions.incrementAndGet();
+        } else {
+            myCleanEvictions.incrementAndGet();
+        }
+    }
+
+    void prefetchLoad() {
+        myPrefetchLoads.incrementAndGet();
+    }
+
+    void prefetchHit() {
+        myPrefetchHits.incrementAndGet();
+    }
+
+    void prefetchWasted() {
+        myPrefetchWasted.incrementAndGet();
+    }
+
+    /**
+     * A key range was given back
+     *
+     * @param tiles the number of keys in it
+     */
+    void released(int tiles) {
+        myReleasedTiles.addAndGet(tiles);
+    }
+
+    /**
+     * A tile was written to the spill store
+     *
+     * @param bytes the bytes written, after the codec
+     * @param nanos how long the encode and write took
+     */
+    void spilled(long bytes, long nanos) {
+        myTilesSpilled.incrementAndGet();
+        myBytesSpilled.addAndGet(bytes);
+        mySpillWrites.record(nanos);
+    }
+
+    /**
+     * A trimmed tile couldn't be written to the spill store, it's kept in
+     * RAM for a retry
+     */
+    void spillFailed() {
+        mySpillWriteFailures.incrementAndGet();
+    }
+
+    /**
+     * A tile was read back from the spill store
+     *
+     * @param bytes the bytes read, before the codec
+     * @param nanos how long the read and decode took
+     */
+    void restored(long bytes, long nanos) {
+        myTilesRestored.incrementAndGet();
+        myBytesRestored.addAndGet(bytes);
+        mySpillReads.record(nanos);
+    }
+
+    @Override
+    public long getCacheHits() {
+        return myCacheHits.get();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return myCacheMisses.get();
+    }
+
+    /**
+     * Hits over all getTile calls, 0 to 1
+     */
+    @Override
+    public double getCacheHitRatio() {
+        long hits = myCacheHits.get();
+        long total = hits + myCacheMisses.get();
+        return (total == 0) ? 0.0 : (double) hits / (double) total;
+    }
+
+    @Override
+    public long getPopHits() {
+        return myPopHits.get();
+    }
+
+    @Override
+    public long getPopMisses() {
+        return myPopMisses.get();
+    }
+
+    @Override
+    public long getPins() {
+        return myPins.get();
+    }
+
+    @Override
+    public long getPendingWriteHits() {
+        return myPendingWriteHits.get();
+    }
+
+    @Override
+    public long getSharedLoads() {
+        return mySharedLoads.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return myCleanEvictions.get() + myDirtyEvictions.get();
+    }
+
+    @Override
+    public long getCleanEvictions() {
+        return myCleanEvictions.get();
+    }
+
+    @Override
+    public long getDirtyEvictions() {
+        return myDirtyEvictions.get();
+    }
+
+    @Override
+    public long getBytesSpilled() {
+        return myBytesSpilled.get();
+    }
+
+    @Override
+    public long getBytesRestored() {
+        return myBytesRestored.get();
+    }
+
+    @Override
+    public long getTilesSpilled() {
+        return myTilesSpilled.get();
+    }
+
+    @Override
+    public long getTilesRestored() {
+        return myTilesRestored.get();
+    }
+
+    @Override
+    public long getPrefetchLoads() {
+        return myPrefetchLoads.get();
+    }
+
+    @Override
+    public long getPrefetchHits() {
+        return myPrefetchHits.get();
+    }
+
+    @Override
+    public long getPrefetchWasted() {
+        return myPrefetchWasted.get();
+    }
+
+    @Override
+    public long getReleasedTiles() {
+        return myReleasedTiles.get();
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return myManager.getAllocatedBytes();
+    }
+
+    @Override
+    public long getPendingWriteBytes() {
+        return myManager.getPendingWriteBytes();
+    }
+
+    @Override
+    public long getCacheBudgetBytes() {
+        return myManager.getMaxMemoryInBytes();
+    }
+
+    @Override
+    public long getCacheMinBytes() {
+        return myManager.getMinMemoryInBytes();
+    }
+
+    @Override
+    public long getCacheMaxBytes() {
+        return myManager.getMaxMemoryLimitInBytes();
+    }
+
+    @Override
+    public long getCacheGrows() {
+        CacheSizeController c = myManager.getSizeController();
+        return (c != null) ? c.getGrows() : 0;
+    }
+
+    @Override
+    public long getCacheShrinks() {
+        CacheSizeController c = myManager.getSizeController();
+        return (c != null) ? c.getShrinks() : 0;
+    }
+
+    @Override
+    public String getCacheSizeDecision() {
+        CacheSizeController c = myManager.getSizeController();
+        return (c != null) ? c.getDecision() : "fixed";
+    }
+
+    @Override
+    public int getCachedTiles() {
+        return myManager.getNumberOfCachedItems();
+    }
+
+    @Override
+    public int getPinnedTiles() {
+        return myManager.getPinnedTiles();
+    }
+
+    @Override
+    public long getPinnedBytes() {
+        return myManager.getPinnedBytes();
+    }
+
+    @Override
+    public long getBufferPoolHits() {
+        return myManager.getBufferPool().getHits();
+    }
+
+    @Override
+    public long getBufferPoolMisses() {
+        return myManager.getBufferPool().getMisses();
+    }
+
+    @Override
+    public long getBufferPoolBytes() {
+        return myManager.getBufferPool().getPooledBytes();
+    }
+
+    @Override
+    public long getBufferPoolDroppedBytes() {
+        return myManager.getBufferPool().getDroppedBytes();
+    }
+
+    @Override
+    public long getSpillStoreMappedBytes() {
+        return myManager.getSpillStore().getMappedBytes();
+    }
+
+    @Override
+    public long getSpillCorruptReads() {
+        return myManager.getSpillStore().getCorruptReads();
+    }
+
+    @Override
+    public long getSpillWriteFailures() {
+        return mySpillWriteFailures.get();
+    }
+
+    /**
+     * Get the histogram of spill store read (restore) times
+     */
+    public LatencyHistogram getSpillReadHistogram() {
+        return mySpillReads;
+    }
+
+    /**
+     * Get the histogram of spill store write times
+     */
+    public LatencyHistogram getSpillWriteHistogram() {
+        return mySpillWrites;
+    }
+
+    @Override
+    public String getSpillReadLatency() {
+        return mySpillReads.toString();
+    }
+
+    @Override
+    public String getSpillWriteLatency() {
+        return mySpillWrites.toString();
+    }
+
+    @Override
+    public double getSpillReadMeanMicros() {
+        return mySpillReads.getMeanMicros();
+    }
+
+    @Override
+    public double getSpillWriteMeanMicros() {
+        return mySpillWrites.getMeanMicros();
+    }
+
+    @Override
+    public long getSpillReadP99Micros() {
+        return mySpillReads.getPercentileMicros(99);
+    }
+
+    @Override
+    public long getSpillWriteP99Micros() {
+        return mySpillWrites.getPercentileMicros(99);
+    }
+
+    @Override
+    public void reset() {
+        myCacheHits.set(0);
+        myCacheMisses.set(0);
+        myPopHits.set(0);
+        myPopMisses.set(0);
+        myPins.set(0);
+        myPendingWriteHits.set(0);
+        mySharedLoads.set(0);
+        myCleanEvictions.set(0);
+        myDirtyEvictions.set(0);
+        myBytesSpilled.set(0);
+        myBytesRestored.set(0);
+        myTilesSpilled.set(0);
+        myTilesRestored.set(0);
+        mySpillWriteFailures.set(0);
+        myPrefetchLoads.set(0);
+        myPrefetchHits.set(0);
+        myPrefetchWasted.set(0);
+        myReleasedTiles.set(0);
+        mySpillReads.reset();
+        mySpillWrites.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d misses=%d ratio=%.3f pop=%d/%d pendingHits=%d shared=%d"
+                + " pinned=%d tiles/%d bytes"
+                + " evictions=%d (clean %d, dirty %d) spilled=%d tiles/%d bytes"
+                + " restored=%d tiles/%d bytes allocated=%d pool=%d/%d write[%s] read[%s]",
+                getCacheHits(), getCacheMisses(), getCacheHitRatio(),
+                getPopHits(), getPopMisses(), getPendingWriteHits(), getSharedLoads(),
+                getPinnedTiles(), getPinnedBytes(),
+                getEvictions(), getCleanEvictions(), getDirtyEvictions(),
+                getTilesSpilled(), getBytesSpilled(),
+                getTilesRestored(), getBytesRestored(), getAllocatedBytes(),
+                getBufferPoolHits(), getBufferPoolMisses(),
+                getSpillWriteLatency(), getSpillReadLatency());
+    }
+}
@@ -0,0 +1,106 @@
+package org.wg3.storage;
+
+/**
+ * The JMX view of DataManagerStats, registered as
+ * org.wg3.storage:type=DataManager. Everything is read only except reset.
+ *
+ * @author Robert Toomey
+ *
+ */
+public interface DataManagerStatsMBean {
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRatio();
+
+    long getPopHits();
+
+    long getPopMisses();
+
+    long getPins();
+
+    long getPendingWriteHits();
+
+    /**
+     * Misses that waited on another thread's load of the same tile
+     */
+    long getSharedLoads();
+
+    long getEvictions();
+
+    long getCleanEvictions();
+
+    long getDirtyEvictions();
+
+    long getBytesSpilled();
+
+    long getBytesRestored();
+
+    long getTilesSpilled();
+
+    long getTilesRestored();
+
+    long getPrefetchLoads();
+
+    long getPrefetchHits();
+
+    long getPrefetchWasted();
+
+    long getReleasedTiles();
+
+    long getAllocatedBytes();
+
+    long getPendingWriteBytes();
+
+    long getCacheBudgetBytes();
+
+    long getCacheMinBytes();
+
+    long getCacheMaxBytes();
+
+    long getCacheGrows();
+
+    long getCacheShrinks();
+
+    String getCacheSizeDecision();
+
+    int getCachedTiles();
+
+    int getPinnedTiles();
+
+    long getPinnedBytes();
+
+    long getBufferPoolHits();
+
+    long getBufferPoolMisses();
+
+    long getBufferPoolBytes();
+
+    long getBufferPoolDroppedBytes();
+
+    long getSpillStoreMappedBytes();
+
+    long getSpillCorruptReads();
+
+    long getSpillWriteFailures();
+
+    String getSpillReadLatency();
+
+    String getSpillWriteLatency();
+
+    double getSpillReadMeanMicros();
+
+    double getSpillWriteMeanMicros();
+
+    long getSpillReadP99Micros();
+
+    long getSpillWriteP99Micros();
+
+    /**
+     * Zero the counters and histograms, the gauges (bytes allocated, etc.)
+     * aren't counters and stay as they are
+     */
+    void reset();
+}
@@ -0,0 +1,255 @@
+package org.wg3.storage;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Stats summed over every DataManager partition, for a look at the whole
+ * process. Partitions made later are counted as soon as they exist. Each
+ * partition's own DataManagerStats has the details.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class DataManagerTotals implements DataManagerTotalsMBean {
+
+    /**
+     * The name our totals are registered with in JMX
+     */
+    public final static String MBEAN_NAME = DataManager.MBEAN_NAME + ",name=Totals";
+
+    DataManagerTotals() {
+    }
+
+    private static List<DataManager> getPartitions() {
+        return DataManager.getPartitions();
+    }
+
+    @Override
+    public int getPartitionCount() {
+        return getPartitions().size();
+    }
+
+    @Override
+    public String[] getPartitionNames() {
+        List<DataManager> all = getPartitions();
+        String[] names = new String[all.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = all.get(i).getName();
+        }
+        return names;
+    }
+
+    @Override
+    public long getCacheHits() {
+        long total = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            total += i.next().getStats().getCacheHits();
+        }
+        return total;
+    }
+
+    @Override
+    public long getCacheMisses() {
+        long total = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            total += i.next().getStats().getCacheMisses();
+        }
+        return total;
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = 0;
+        long misses = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            DataManagerStats s = i.next().getStats();
+            hits += s.getCacheHits();
+            misses += s.getCacheMisses();
+        }
+        long total = hits + misses;
+        return (total == 0) ? 0.0 : (double) hits / (double) total;
+    }
+
+    @Override
+    public long getSharedLoads() {
+        long total = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            total += i.next().getStats().getSharedLoads();
+        }
+        return total;
+    }
+
+    @Override
+    public long getEvictions() {
+        long total = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            total += i.next().getStats().getEvictions();
+        }
+        return total;
+    }
+
+    @Override
+    public long getTilesSpilled() {
+        long total = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            total += i.next().getStats().getTilesSpilled();
+        }
+        return total;
+    }
+
+    @Override
+    public long getBytesSpilled() {
+        long total = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            total += i.next().getStats().getBytesSpilled();
+        }
+        return total;
+    }
+
+    @Override
+    public long getTilesRestored() {
+        long total = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            total += i.next().getStats().getTilesRestored();
+        }
+        return total;
+    }
+
+    @Override
+    public long getBytesRestored() {
+        long total = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            total += i.next().getStats().getBytesRestored();
+        }
+        return total;
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        long total = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            total += i.next().getAllocatedBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public long getPendingWriteBytes() {
+        long total = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            total += i.next().getPendingWriteBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public long getCacheBudgetBytes() {
+        long total = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            total += i.next().getMaxMemoryInBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public long getBudgetShareBytes() {
+        long total = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            total += i.next().getBudgetShareInBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public long getCacheBudgetLimitBytes() {
+        long total = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            total += i.next().getMaxMemoryLimitInBytes();
+        }
+        // Each can grow only into what the others leave of the total
+        return Math.min(total, DataManager.getTotalMemoryInBytes());
+    }
+
+    @Override
+    public long getPoolLimitBytes() {
+        long total = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            total += i.next().getBufferPool().getMaxPooledBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public int getCachedTiles() {
+        int total = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            total += i.next().getNumberOfCachedItems();
+        }
+        return total;
+    }
+
+    @Override
+    public long getPinnedBytes() {
+        long total = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            total += i.next().getPinnedBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public long getSpillCorruptReads() {
+        long total = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            total += i.next().getStats().getSpillCorruptReads();
+        }
+        return total;
+    }
+
+    @Override
+    public long getSpillWriteFailures() {
+        long total = 0;
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            total += i.next().getStats().getSpillWriteFailures();
+        }
+        return total;
+    }
+
+    /**
+     * The totals, then a line of stats for each partition
+     */
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append(String.format("partitions=%d hits=%d misses=%d ratio=%.3f evictions=%d"
+                + " allocated=%d budget=%d cached=%d",
+                getPartitionCount(), getCacheHits(), getCacheMisses(), getCacheHitRatio(), getEvictions(),
+                getAllocatedBytes(), getCacheBudgetBytes(), getCachedTiles()));
+        Iterator<DataManager> i = getPartitions().iterator();
+        while (i.hasNext()) {
+            DataManager m = i.next();
+            b.append('\n').append(m.getName()).append(": ").append(m.getStats());
+        }
+        return b.toString();
+    }
+}
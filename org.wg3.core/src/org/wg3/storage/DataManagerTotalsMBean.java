@@ -0,0 +1,54 @@
+package org.wg3.storage;
+
+/**
+ * The JMX view of DataManagerTotals, registered as
+ * org.wg3.storage:type=DataManager,name=Totals. Read only, reset each
+ * partition's own stats to zero these.
+ *
+ * @author Robert Toomey
+ *
+ */
+public interface DataManagerTotalsMBean {
+
+    int getPartitionCount();
+
+    String[] getPartitionNames();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRatio();
+
+    long getSharedLoads();
+
+    long getEvictions();
+
+    long getTilesSpilled();
+
+    long getBytesSpilled();
+
+    long getTilesRestored();
+
+    long getBytesRestored();
+
+    long getAllocatedBytes();
+
+    long getPendingWriteBytes();
+
+    long getCacheBudgetBytes();
+
+    long getBudgetShareBytes();
+
+    long getCacheBudgetLimitBytes();
+
+    long getPoolLimitBytes();
+
+    int getCachedTiles();
+
+    long getPinnedBytes();
+
+    long getSpillCorruptReads();
+
+    long getSpillWriteFailures();
+}
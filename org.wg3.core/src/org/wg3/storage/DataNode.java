@@ -1,14 +1,8 @@
 package org.wg3.storage;
 
-import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.wg3.log.Logger;
 import org.wg3.log.LoggerFactory;
@@ -16,15 +10,19 @@ import org.wg3.log.LoggerFactory;
 /**
  * A data node, a 'small' amount of data, usually representing a part of a
  * larger 2D, 3D array of float data. These nodes are cached to disk/moved in
- * and out of ram on demand in an LRU queue controlled by DataManager. Currently
- * nodes are created/filled when accessed with a set OR a get, which could be
- * improved by only creating empty tiles on a 'set' call that is not background.
+ * and out of ram on demand in an LRU queue controlled by DataManager. Offloaded
+ * nodes are copied into the DataManager's TileSpillStore.
+ *
+ * A node with nothing in the spill store starts out 'constant', all
+ * background, with no buffer at all. Gets just answer the background, and the
+ * buffer is only allocated on the first set of a non background value (or a
+ * getRawBuffer call, since openGL wants the real thing). Constant nodes are
+ * never spilled, and a node that is all background again when written is
+ * removed from the spill store instead, so it comes back constant.
  *
  * Node instances don't correspond with the actual data. Data may be written to
  * disk and the node disposed and then recreated later.
  *
- * FIXME: Add sparse ability?
- *
  */
 public class DataNode {
 
@@ -39,6 +37,20 @@ public class DataNode {
     //private ReadWriteLock lock = new ReentrantReadWriteLock();
     private Object myBufferLock = new Object();
     private ByteBuffer myDataByte;
+    /**
+     * Change count for optimistic reads. Odd while a writer holding the lock
+     * is changing the buffer or its state. A get reads the version, the
+     * value, then the version again and only trusts the value if the version
+     * was even and didn't move, so readers never take the lock unless they
+     * keep racing a writer. (A seqlock, StampedLock would do this but we're
+     * on Java 6, which also has no load fence for the second version read.
+     * We count on the VM not moving the buffer read past it)
+     */
+    private volatile int myVersion = 0;
+    /**
+     * Optimistic read attempts before a get gives up and takes the lock
+     */
+    private static final int OPTIMISTIC_TRIES = 4;
     /**
      * Background data for 'missing' data
      */
@@ -47,6 +59,10 @@ public class DataNode {
      * Is data currently in RAM?
      */
     private boolean myLoaded = false;
+    /**
+     * Is the node loaded but all background, with no buffer allocated?
+     */
+    private boolean myConstant = false;
     /**
      * Have we read in our data from disk
      */
@@ -62,18 +78,45 @@ public class DataNode {
      */
     private boolean mySetChanged = false;
     /**
-     * Do we compress? makes a big difference in file size
+     * Was the node loaded by a prefetch and not asked for since?
+     */
+    private volatile boolean myPrefetched = false;
+    /**
+     * Did our spilled data fail to read back? Then we hold nothing, see
+     * isInvalid
+     */
+    private boolean myInvalid = false;
+    /**
+     * Has the node been let go for good? See discard
+     */
+    private boolean myDiscarded = false;
+    /**
+     * Has getRawBuffer handed out a view of the current buffer? Views can be
+     * kept for any time, so such a buffer is never pooled
      */
-    private static final boolean myCompress = true;
+    private boolean myRawViewOut = false;
     /**
      * The zero we store... FIXME: this value is unusable...humm
      */
     public static final float STORED_ZERO = -500000.0f;
 
     /**
-     * Create a data tile with given key name
+     * The DataManager partition we're kept in
+     */
+    private final DataManager myManager;
+
+    /**
+     * Create a data tile with given key name, in the default DataManager
      */
     public DataNode(int key, int firstSize, float background) {
+        this(DataManager.getInstance(), key, firstSize, background);
+    }
+
+    /**
+     * Create a data tile with given key name, in a DataManager partition
+     */
+    public DataNode(DataManager manager, int key, int firstSize, float background) {
+        myManager = manager;
         myKey = key;
         mySize = firstSize;
         myBackground = background;
@@ -83,6 +126,10 @@ public class DataNode {
         myBackground = b;
     }
 
+    public float getBackground() {
+        return myBackground;
+    }
+
     /**
      * The tile lock, allows synchronized READ access to the raw float buffer of
      * the tile, which in general is required only by openGL since it needs a
@@ -105,15 +152,31 @@ public class DataNode {
      * synchronized(tile.getBufferLock()){ FloatBuffer g = tile.getRawBuffer();
      * ...do something like opengl glDrawArrays(..,..,g); }
      *
+     * Once a view is out the buffer is never pooled when the node lets it
+     * go, see DataManager.abandon.
+     *
      * @return
      */
     public FloatBuffer getRawBuffer() {
 
         //lock.readLock().lock();
         FloatBuffer fb = null;
-        if (myDataByte != null) {
-            myDataByte.rewind();
-            fb = myDataByte.asFloatBuffer();
+        synchronized (getWriteLock()) {
+            if (myConstant) {
+                beginChange();
+                try {
+                    if (!materialize()) {
+                        return null;
+                    }
+                } finally {
+                    endChange();
+                }
+            }
+            if (myDataByte != null) {
+                myDataByte.rewind();
+                fb = myDataByte.asFloatBuffer();
+                myRawViewOut = true;
+            }
         }
         return fb;
 
@@ -167,7 +230,18 @@ public class DataNode {
             if (myLoaded && (index < mySize)) {
                 try {
                     value = toBackground(value, myBackground);
-                    myDataByte.asFloatBuffer().put(index, value);
+                    if (myConstant && (Float.floatToRawIntBits(value) == 0)) {
+                        return; // Background on a constant tile, nothing to do
+                    }
+                    beginChange();
+                    try {
+                        if (myConstant && !materialize()) {
+                            return;
+                        }
+                        myDataByte.putFloat(index << 2, value);
+                    } finally {
+                        endChange();
+                    }
                     mySetChanged = true;
                 } catch (IndexOutOfBoundsException i) {
                     LOG.error("Tried to put v[" + index + "] = " + value);
@@ -190,16 +264,29 @@ public class DataNode {
             //synchronized(myBufferLock){
             if (myLoaded && (index < mySize + data.length)) {
                 try {
+                    boolean allBackground = true;
                     for (int i = 0; i < data.length; i++) {
                         data[i] = toBackground(data[i], myBackground);
+                        allBackground &= (Float.floatToRawIntBits(data[i]) == 0);
                     }
+                    if (myConstant && allBackground) {
+                        return;
+                    }
+                    beginChange();
+                    try {
+                        if (myConstant && !materialize()) {
+                            return;
+                        }
 
-                    // Different object each time, position would reset with
-                    // another call to asFloatBuffer
-                    FloatBuffer fb = myDataByte.asFloatBuffer();
-                    fb.position(index);
-                    fb.put(data, 0, data.length);  // put just calls this anyway
-                    fb.position(0);
+                        // Different object each time, position would reset with
+                        // another call to asFloatBuffer
+                        FloatBuffer fb = myDataByte.asFloatBuffer();
+                        fb.position(index);
+                        fb.put(data, 0, data.length);  // put just calls this anyway
+                        fb.position(0);
+                    } finally {
+                        endChange();
+                    }
                     mySetChanged = true;
                 } catch (IndexOutOfBoundsException i) {
                     LOG.error("Tried to put array v[" + index + "] += array size " + data.length);
@@ -219,43 +306,190 @@ public class DataNode {
     /**
      * Get only value if myInRam. Check skipped here for speed. Caller should
      * call load before using data... Hummmm. Tile auto load?
+     *
+     * Reads are optimistic (see myVersion), so readers don't block each
+     * other or a renderer holding the buffer lock.
      */
     public float get(int index) {
 
+        for (int i = 0; i < OPTIMISTIC_TRIES; i++) {
+            final int version = myVersion;
+            if ((version & 1) == 0) {
+                float value = readValue(index);
+                if (version == myVersion) {
+                    return value;
+                }
+            }
+        }
+
+        // Kept losing to a writer, wait our turn
         synchronized (getReadLock()) {
-            //synchronized(myBufferLock){
-            if ((myLoaded) && (index < mySize)) {
-                myDataByte.rewind();  // Probably not needed
-                FloatBuffer fb = myDataByte.asFloatBuffer();
+            return readValue(index);
+        }
+    }
+
+    /**
+     * Get count values, starting at index and stepping by step, into dest
+     * starting at destOffset and stepping by destStep. Same as count get
+     * calls, but with one version check (or lock) for the lot
+     */
+    public void get(int index, int step, int count, float[] dest, int destOffset, int destStep) {
+
+        for (int i = 0; i < OPTIMISTIC_TRIES; i++) {
+            final int version = myVersion;
+            if ((version & 1) == 0) {
+                readValues(index, step, count, dest, destOffset, destStep);
+                if (version == myVersion) {
+                    return;
+                }
+            }
+        }
+        synchronized (getReadLock()) {
+            readValues(index, step, count, dest, destOffset, destStep);
+        }
+    }
+
+    /**
+     * Read values with no locking, see readValue
+     */
+    private void readValues(int index, int step, int count, float[] dest, int destOffset, int destStep) {
+        final ByteBuffer data = myDataByte;
+        final float background = myBackground;
+        int at = destOffset;
+        if (!myLoaded || myConstant || (data == null)) {
+            for (int i = 0; i < count; i++) {
+                dest[at] = background;
+                at += destStep;
+            }
+            return;
+        }
+        int from = index;
+        for (int i = 0; i < count; i++) {
+            dest[at] = (from < mySize) ? fromBackground(data.getFloat(from << 2), background) : background;
+            at += destStep;
+            from += step;
+        }
+    }
 
-                float value = fb.get(index);
+    /**
+     * Set count values, starting at index and stepping by step, from src
+     * starting at srcOffset and stepping by srcStep. Same as count set calls
+     * with one lock. Unlike set(int, float[]) src is left alone
+     */
+    public void set(int index, int step, int count, float[] src, int srcOffset, int srcStep) {
 
-                value = fromBackground(value, myBackground);
+        synchronized (getWriteLock()) {
+            if (count <= 0) {
+                return;
+            }
+            final int last = index + ((count - 1) * step);
+            if (!myLoaded || (index < 0) || (last < 0) || (index >= mySize) || (last >= mySize)) {
+                if (!myLoaded) {
+                    LOG.error("Can't set value on unloaded tile:" + myKey + ".  Out of memory?");
+                } else {
+                    LOG.error("Out of bounds. " + index + " to " + last + " on tile " + myKey + " of " + mySize);
+                }
+                return;
+            }
+            final float background = myBackground;
+            if (myConstant) {
+                boolean allBackground = true;
+                int from = srcOffset;
+                for (int i = 0; i < count; i++) {
+                    if (Float.floatToRawIntBits(toBackground(src[from], background)) != 0) {
+                        allBackground = false;
+                        break;
+                    }
+                    from += srcStep;
+                }
+                if (allBackground) {
+                    return;
+                }
+            }
+            beginChange();
+            try {
+                if (myConstant && !materialize()) {
+                    return;
+                }
+                int to = index;
+                int from = srcOffset;
+                for (int i = 0; i < count; i++) {
+                    myDataByte.putFloat(to << 2, toBackground(src[from], background));
+                    to += step;
+                    from += srcStep;
+                }
+            } finally {
+                endChange();
+            }
+            mySetChanged = true;
+        }
+    }
 
-                return value;
+    /**
+     * Read a value with no locking. Without the lock the state can change
+     * under us, so work from a local copy of the buffer and let the caller
+     * check the version
+     */
+    private float readValue(int index) {
+        final ByteBuffer data = myDataByte;
+        if ((myLoaded) && (index < mySize)) {
+            if (myConstant || (data == null)) {
+                return myBackground;
             }
-            return myBackground;
+            return fromBackground(data.getFloat(index << 2), myBackground);
         }
+        return myBackground;
+    }
+
+    /**
+     * Start a change optimistic readers must not trust. Caller holds the
+     * write lock and must call endChange after, even on error
+     */
+    private void beginChange() {
+        myVersion++;
+    }
+
+    private void endChange() {
+        myVersion++;
     }
 
     /**
      * Called by the data manager after creating us to load any old data
+     *
+     * @return false if we couldn't get a buffer or our spilled data
+     * couldn't be read back, we're left unloaded then
      */
     public boolean loadNodeIntoRAM() {
         synchronized (getWriteLock()) {
             boolean success = false;
+            beginChange();
             try {
 
+                // Nothing ever spilled, so all background.  Don't allocate
+                // until something real is set
+                if (!myManager.getSpillStore().contains(myKey)) {
+                    myConstant = true;
+                    myLoaded = true;
+                    return true;
+                }
+
                 // LOG.info("Allocation node " + this);
 
-                myDataByte = DataManager.getInstance().allocate(mySize * 4, "DataNode");
+                // Decoding fills the whole buffer, no need to zero it
+                myDataByte = myManager.allocate(mySize * 4, "DataNode", false);
                 // myDataByte = ByteBuffer.allocateDirect(mySize * 4);
                 myDataByte.order(ByteOrder.nativeOrder());
 
+                if (!readFromDisk()) {
+                    // Never hand out zeros for data we had, leave it to
+                    // the caller to get us again
+                    myManager.deallocate(myDataByte, "DataNode");
+                    myDataByte = null;
+                    myInvalid = true;
+                    return false;
+                }
                 myLoaded = true;
                 success = true;
-
-                readFromDisk();
                 mySetChanged = false;
                 // Wow this is crazy slow...I _have_ to believe I'm
                 // doing this wrong.  We'll map 0 to myBackground instead...
@@ -270,43 +504,145 @@ public class DataNode {
             } catch (OutOfMemoryError m) {
                 myLoaded = false;
                 LOG.error("Could not allocate " + mySize + " floats for Tile " + myKey);
+            } finally {
+                endChange();
             }
             return success;
         }
     }
 
+    /**
+     * Give a constant node a real buffer. A new direct buffer is all zero,
+     * which is the stored background, so no fill is needed
+     */
+    private boolean materialize() {
+        try {
+            myDataByte = myManager.allocate(mySize * 4, "DataNode");
+            myDataByte.order(ByteOrder.nativeOrder());
+            myConstant = false;
+            return true;
+        } catch (OutOfMemoryError m) {
+            LOG.error("Could not allocate " + mySize + " floats for Tile " + myKey);
+            return false;
+        }
+    }
+
+    /**
+     * Did our spilled data fail to read back? We're not loaded then, reads
+     * give the background and sets are refused. The data manager doesn't
+     * cache us and the spilled data is kept, so getting the tile again
+     * tries the read again
+     */
+    public boolean isInvalid() {
+        synchronized (getReadLock()) {
+            return myInvalid;
+        }
+    }
+
+    /**
+     * Is the node all background with no buffer?
+     */
+    public boolean isConstant() {
+        synchronized (getReadLock()) {
+            return myConstant;
+        }
+    }
+
     public boolean purgeNodeFromRAM() {
         boolean success;
         success = writeToDisk();
+        releaseRAM();
+        return success;
+    }
+
+    /**
+     * Does the node have data in RAM that the spill store doesn't? Used by
+     * DataManager to decide if an evicted node needs a write at all
+     */
+    public boolean isDirty() {
+        synchronized (getReadLock()) {
+            if (myDataByte == null) {
+                return false;
+            }
+            return (!myWasLoadedFromDisk || mySetChanged);
+        }
+    }
+
+    /**
+     * Drop the RAM of the node without writing it. Callers should have
+     * called writeToDisk first unless they want the data gone
+     */
+    void releaseRAM() {
         synchronized (getWriteLock()) {
+            beginChange();
             if (myDataByte != null) {
-                DataManager.getInstance().deallocate(mySize * 4, "DataNode");
+                if (myRawViewOut) {
+                    // A view may still be read after this, so no reuse,
+                    // the GC gets it when the views are gone
+                    myManager.abandon(myDataByte, "DataNode");
+                } else {
+                    // Recycled, so any optimistic reader of it has to see the
+                    // version change, which it will as we're inside one
+                    myManager.deallocate(myDataByte, "DataNode");
+                }
             }
             myDataByte = null; // Delete from RAM
+            myRawViewOut = false;
             myLoaded = false;  // Mark as unloaded
+            myConstant = false;
+            endChange();
         }
-        return success;
     }
 
     /**
-     * Get the base path for reading/writing this node to disk
+     * Let go of the node for good, its array was released and the key may
+     * go to somebody else. A write still queued for it is skipped, so it
+     * can't land in the spill store under the reused key.
      */
-    private String getBaseFilePath() {
-        String path = DataManager.getInstance().getTempDirName(DataManager.tempNodes);
-        path += "/" + getCacheKey() + ".data";
-        return path;
+    void discard() {
+        synchronized (getWriteLock()) {
+            myDiscarded = true;
+            releaseRAM();
+        }
     }
 
     /**
-     * Offload tile to disk and purge ram usage of tile, called by DataManager
-     * before disposing tile
+     * Mark or clear the node as loaded by a prefetch. DataManager uses this
+     * to count prefetch hits and waste
      */
-    private boolean writeToDisk() {
+    public void setPrefetched(boolean flag) {
+        myPrefetched = flag;
+    }
+
+    /**
+     * Was the node loaded by a prefetch and not used yet?
+     */
+    public boolean isPrefetched() {
+        return myPrefetched;
+    }
+
+    /**
+     * Get the number of bytes the node holds in RAM when loaded
+     */
+    public int getByteSize() {
+        return mySize * 4;
+    }
+
+    /**
+     * Offload tile to the spill store, called by DataManager before disposing
+     * tile. The node stays loaded and usable, and is clean afterwards, so it
+     * can be brought back into the cache while its write is in flight.
+     */
+    boolean writeToDisk() {
 
         // We're _read_ing from the data and writing to disk....
         synchronized (getReadLock()) {
             boolean success = false;
-            if (myDataByte != null) {
+            if (myDiscarded) {
+                success = true; // Nobody wants it
+            } else if (myConstant) {
+                success = true; // Never spilled
+            } else if (myDataByte != null) {
 
                 boolean needUpdateDisk = true;
                 if (myWasLoadedFromDisk) {
@@ -315,37 +651,28 @@ public class DataNode {
                     }
                 }
 
-                if (needUpdateDisk) {
-                    try {
-                        // FIXME: do we need lock for the file (thread2 might be readFromDisk below)
-                        String basepath = getBaseFilePath();
-                        String path = myCompress ? basepath + ".gz" : basepath;
-
-                        //FileOutputStream fout = new FileOutputStream(path);
-                        //FileChannel fc = fout.getChannel();
-                        OutputStream theStream;
-                        try {
-                            theStream = new FileOutputStream(path);
-                            theStream = new GZIPOutputStream(theStream);
-                        } catch (FileNotFoundException e) {
-
-                            // Second try, will exception to the FileNotFound below
-                            path = basepath;
-                            theStream = new FileOutputStream(path);
-                        }
-
-                        WritableByteChannel fc = Channels.newChannel(theStream);
-                        myDataByte.rewind();
-                        fc.write(myDataByte);
-                        fc.close();
-                        success = true;
-                    } catch (FileNotFoundException e) {
-                        LOG.error("Can't offload Tile to disk " + myKey + " " + e);
-                    } catch (IOException e) {
-                        LOG.error("Can't offload Tile to disk " + myKey + " " + e);
+                if (needUpdateDisk && isAllBackground()) {
+                    // Set back to all background, drop any old copy so the
+                    // node comes back constant
+                    myManager.getSpillStore().remove(myKey);
+                    myWasLoadedFromDisk = true;
+                    mySetChanged = false;
+                    success = true;
+                } else if (needUpdateDisk) {
+                    long start = System.nanoTime();
+                    SpillCodec codec = myManager.getSpillCodec(myKey);
+                    ByteBuffer encoded = codec.encode(myDataByte);
+                    success = myManager.getSpillStore().write(myKey, encoded, codec.getId());
+                    if (success) {
+                        myManager.getStats().spilled(encoded.limit(), System.nanoTime() - start);
+                        myWasLoadedFromDisk = true;
+                        mySetChanged = false;
+                    } else {
+                        LOG.error("Can't offload Tile to disk " + myKey);
                     }
                 } else {
                     //  LOG.debug("Skip writing " + getCacheKey() + " to disk because it's the same data");
+                    success = true; // The store has it already
                 }
             } else {
                 LOG.error("offload to disk with null myDataByte? " + myWasLoadedFromDisk);
@@ -356,6 +683,9 @@ public class DataNode {
 
     /**
      * Restore data into RAM if we can
+     *
+     * @return false if something is stored for us but couldn't be read
+     * back, nothing stored is our background
      */
     private boolean readFromDisk() {
 
@@ -363,43 +693,72 @@ public class DataNode {
         synchronized (getWriteLock()) {
             boolean success = false;
             //LOG.info("Restore tile: "+myKey);
-            try {
-                String basepath = getBaseFilePath();
-                String path = basepath + ".gz";
-                InputStream theStream;
-                try {
-                    theStream = new FileInputStream(path);
-                } catch (FileNotFoundException e) {
-
-                    // Second try, will exception to the FileNotFound below
-                    path = basepath;
-                    theStream = new FileInputStream(path);
+            // Not found is 'ok', may never have been written to disk...
+            TileSpillStore store = myManager.getSpillStore();
+            long start = System.nanoTime();
+            int codecId = store.getStoredCodec(myKey);
+            if (codecId == SpillCodecs.NONE.getId()) {
+                // Raw floats read straight into our buffer, no copy
+                int read = store.read(myKey, myDataByte);
+                if (read == mySize * 4) {
+                    success = true;
+                    myWasLoadedFromDisk = true;
+                    myManager.getStats().restored(read, System.nanoTime() - start);
+                } else {
+                    LOG.error("Spilled data for tile " + myKey + " couldn't be read back");
                 }
-                // FileInputStream fout = new FileInputStream(path);
-                // FileChannel fc = fout.getChannel();
-                if (path.endsWith(".gz")) {
-                    theStream = new GZIPInputStream(theStream);
+            } else if (codecId >= 0) {
+                SpillCodec codec = SpillCodecs.forId(codecId);
+                ByteBuffer stored = store.getStored(myKey);
+                if ((codec != null) && (stored != null)
+                        && codec.decode(stored, myDataByte, mySize * 4)) {
+                    success = true;
+                    myWasLoadedFromDisk = true;
+                    myManager.getStats().restored(stored.limit(), System.nanoTime() - start);
+                } else {
+                    LOG.error("Spilled data for tile " + myKey + " won't decode with codec " + codecId);
                 }
-                ReadableByteChannel fc = Channels.newChannel(theStream);
-                myDataByte.rewind();
-                fc.read(myDataByte);
-                myDataByte.rewind();
-                fc.close();
+            } else {
+                clearData(); // Removed since we looked, and the buffer may be a used one
                 success = true;
-                myWasLoadedFromDisk = true;
-
-            } catch (FileNotFoundException e) {
-                // This is 'ok', may never have been written to disk...
-                success = false;
-            } catch (SecurityException s) {
-                success = false;
-            } catch (IOException e) {
-                LOG.error("Disk error restoring tile " + myKey + " " + e);
             }
             return success;
         }
     }
 
+    /**
+     * Is every stored value zero, which is the background?
+     */
+    private boolean isAllBackground() {
+        ByteBuffer b = myDataByte.duplicate();
+        b.clear();
+        while (b.remaining() >= 8) {
+            if (b.getLong() != 0L) {
+                return false;
+            }
+        }
+        while (b.hasRemaining()) {
+            if (b.get() != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Set every stored value back to zero, which is the background
+     */
+    private void clearData() {
+        ByteBuffer b = myDataByte.duplicate();
+        b.clear();
+        while (b.remaining() >= 8) {
+            b.putLong(0L);
+        }
+        while (b.hasRemaining()) {
+            b.put((byte) 0);
+        }
+    }
+
     public int getCacheKey() {
         return myKey;
     }
@@ -8,4 +8,13 @@ package org.wg3.storage;
 public abstract class DataStorage {
 
     public abstract int size();
+
+    /**
+     * Let go of the data now instead of waiting on the GC. Tiled storage
+     * drops its tiles from RAM and the spill store and gives back its keys.
+     * The storage can't be used afterwards. Nothing to do for plain RAM
+     * storage
+     */
+    public void release() {
+    }
 }
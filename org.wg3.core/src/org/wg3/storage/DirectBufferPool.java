@@ -0,0 +1,237 @@
+package org.wg3.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct ByteBuffers by exact size, used by DataManager.allocate.
+ *
+ * allocateDirect is slow (it zeros, and when direct memory is tight it calls
+ * System.gc and sleeps waiting for cleaners), and freed direct memory only
+ * comes back when the GC gets around to it. Tiles are all the same few sizes,
+ * so buffers of released tiles are kept here and handed to the next tile of
+ * the same size.
+ *
+ * The pool holds at most a cap of bytes. Past that the buffers idle the
+ * longest are dropped and left to the GC. Their native memory is never freed
+ * explicitly: optimistic DataNode readers read a buffer without a lock and
+ * only check afterwards that their tile didn't let it go, so freeing it under
+ * them would read freed memory. Reading a pooled buffer given to another tile
+ * is harmless, the reader sees the version change and tries again.
+ *
+ * A buffer that handed out a raw view (DataNode.getRawBuffer, for openGL)
+ * never comes here, since a view can be kept for any time. Those are passed
+ * to abandon, which only counts them, and the GC frees them once the last
+ * view is gone.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class DirectBufferPool {
+
+    /**
+     * A buffer in the pool and when it was given back
+     */
+    private static class Pooled {
+
+        final ByteBuffer buffer;
+        final long givenAt;
+
+        Pooled(ByteBuffer b, long t) {
+            buffer = b;
+            givenAt = t;
+        }
+    }
+    /**
+     * Pooled buffers by size, most recently given first
+     */
+    private final HashMap<Integer, ArrayDeque<Pooled>> myClasses = new HashMap<Integer, ArrayDeque<Pooled>>();
+    /**
+     * Bytes in the pool
+     */
+    private long myPooledBytes = 0;
+    /**
+     * Most bytes we'll pool
+     */
+    private long myMaxPooledBytes;
+    private final AtomicLong myHits = new AtomicLong();
+    private final AtomicLong myMisses = new AtomicLong();
+    private final AtomicLong myDroppedBytes = new AtomicLong();
+
+    public DirectBufferPool(long maxPooledBytes) {
+        myMaxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Take a buffer of exactly size bytes from the pool.
+     *
+     * @param zero fill it with zeros, like a new direct buffer
+     * @return the buffer cleared, or null if we don't have one that size
+     */
+    public ByteBuffer take(int size, boolean zero) {
+        Pooled p = null;
+        synchronized (this) {
+            ArrayDeque<Pooled> c = myClasses.get(size);
+            if (c != null) {
+                p = c.pollFirst();
+                if (p != null) {
+                    myPooledBytes -= size;
+                }
+            }
+        }
+        if (p == null) {
+            myMisses.incrementAndGet();
+            return null;
+        }
+        myHits.incrementAndGet();
+        ByteBuffer b = p.buffer;
+        b.clear();
+        if (zero) {
+            while (b.remaining() >= 8) {
+                b.putLong(0L);
+            }
+            while (b.hasRemaining()) {
+                b.put((byte) 0);
+            }
+            b.clear();
+        }
+        return b;
+    }
+
+    /**
+     * Give a buffer to the pool. The caller must not use it afterwards.
+     */
+    public void give(ByteBuffer b) {
+        if ((b == null) || !b.isDirect()) {
+            return;
+        }
+        final int size = b.capacity();
+        ArrayList<Pooled> dropped = null;
+        synchronized (this) {
+            if (size > myMaxPooledBytes) {
+                dropped = new ArrayList<Pooled>();
+                dropped.add(new Pooled(b, System.currentTimeMillis()));
+            } else {
+                ArrayDeque<Pooled> c = myClasses.get(size);
+                if (c == null) {
+                    c = new ArrayDeque<Pooled>();
+                    myClasses.put(size, c);
+                }
+                c.addFirst(new Pooled(b, System.currentTimeMillis()));
+                myPooledBytes += size;
+                dropped = shrinkLocked(myMaxPooledBytes);
+            }
+        }
+        release(dropped);
+    }
+
+    /**
+     * Count a buffer that can't be pooled or freed because raw views of it
+     * may still be in use. We keep no reference, the GC gets it
+     */
+    public void abandon(ByteBuffer b) {
+        if ((b == null) || !b.isDirect()) {
+            return;
+        }
+        myDroppedBytes.addAndGet(b.capacity());
+    }
+
+    /**
+     * Set the most bytes we'll pool, dropping buffers if over it
+     */
+    public void setMaxPooledBytes(long max) {
+        ArrayList<Pooled> dropped;
+        synchronized (this) {
+            myMaxPooledBytes = Math.max(0, max);
+            dropped = shrinkLocked(myMaxPooledBytes);
+        }
+        release(dropped);
+    }
+
+    public synchronized long getMaxPooledBytes() {
+        return myMaxPooledBytes;
+    }
+
+    /**
+     * Drop everything in the pool
+     */
+    public void clear() {
+        ArrayList<Pooled> dropped;
+        synchronized (this) {
+            dropped = shrinkLocked(0);
+        }
+        release(dropped);
+    }
+
+    /**
+     * Take the longest idle buffers out until we're at or under toBytes.
+     * Sync done elsewhere
+     */
+    private ArrayList<Pooled> shrinkLocked(long toBytes) {
+        ArrayList<Pooled> dropped = null;
+        while (myPooledBytes > toBytes) {
+            // Few sizes, so just look at the oldest of each
+            ArrayDeque<Pooled> oldest = null;
+            Iterator<ArrayDeque<Pooled>> i = myClasses.values().iterator();
+            while (i.hasNext()) {
+                ArrayDeque<Pooled> c = i.next();
+                Pooled last = c.peekLast();
+                if ((last != null) && ((oldest == null) || (last.givenAt < oldest.peekLast().givenAt))) {
+                    oldest = c;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            Pooled p = oldest.pollLast();
+            myPooledBytes -= p.buffer.capacity();
+            if (dropped == null) {
+                dropped = new ArrayList<Pooled>();
+            }
+            dropped.add(p);
+        }
+        return dropped;
+    }
+
+    /**
+     * Let go of dropped buffers, the GC frees them once nobody holds them
+     */
+    private void release(ArrayList<Pooled> dropped) {
+        if (dropped == null) {
+            return;
+        }
+        for (Pooled p : dropped) {
+            myDroppedBytes.addAndGet(p.buffer.capacity());
+        }
+    }
+
+    public synchronized long getPooledBytes() {
+        return myPooledBytes;
+    }
+
+    /**
+     * Takes answered from the pool
+     */
+    public long getHits() {
+        return myHits.get();
+    }
+
+    /**
+     * Takes the pool couldn't answer
+     */
+    public long getMisses() {
+        return myMisses.get();
+    }
+
+    /**
+     * Bytes dropped from the pool, or never pooled because of raw views,
+     * and left to the GC
+     */
+    public long getDroppedBytes() {
+        return myDroppedBytes.get();
+    }
+}
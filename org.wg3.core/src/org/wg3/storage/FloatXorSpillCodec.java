@@ -0,0 +1,190 @@
+package org.wg3.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A float codec for the spill store. Each value's IEEE bits are XORed with
+ * the value before it. On smooth fields the sign, exponent and high mantissa
+ * bits rarely change, and on quantized data (say 0.5 dBZ steps) the low
+ * mantissa bits are always zero, so the XOR is mostly zero bytes at both
+ * ends. We store just the 'window' of bytes that changed.
+ *
+ * Every value gets a 4 bit code, packed two per byte:
+ * 0 the same as the last value
+ * 1-10 a window of changed bytes, see WINDOW_SHIFT/WINDOW_LENGTH
+ * 11-15 a run of 4, 16, 64, 256 or 1024 values the same as the last value
+ *
+ * Layout is value count (int), code count (int), the codes, then the window
+ * bytes. Background values are stored as zero (DataNode.toBackground) so
+ * sparse tiles come down to a handful of run codes.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class FloatXorSpillCodec implements SpillCodec {
+
+    /**
+     * For codes 1-10, how many low zero bytes were dropped
+     */
+    private static final int[] WINDOW_SHIFT = {0, 0, 0, 0, 0, 1, 1, 1, 2, 2, 3};
+    /**
+     * For codes 1-10, how many bytes were kept
+     */
+    private static final int[] WINDOW_LENGTH = {0, 1, 2, 3, 4, 1, 2, 3, 1, 2, 1};
+    /**
+     * Code for a window, by [shift][length]
+     */
+    private static final int[][] WINDOW_CODE = {
+        {0, 1, 2, 3, 4},
+        {0, 5, 6, 7, 0},
+        {0, 8, 9, 0, 0},
+        {0, 10, 0, 0, 0}
+    };
+    /**
+     * First run code, and the run length of each run code
+     */
+    private static final int FIRST_RUN_CODE = 11;
+    private static final int[] RUN_LENGTH = {4, 16, 64, 256, 1024};
+    /**
+     * Bytes before the codes
+     */
+    private static final int HEADER = 8;
+
+    @Override
+    public int getId() {
+        return 2;
+    }
+
+    @Override
+    public String getName() {
+        return "floatxor";
+    }
+
+    @Override
+    public ByteBuffer encode(ByteBuffer src) {
+        ByteBuffer from = SpillCodecs.nativeView(src);
+        final int count = from.limit() / 4;
+
+        // Codes and window bytes are built apart then joined
+        byte[] codes = SpillCodecs.scratch(0, (count / 2) + 1);
+        byte[] out = SpillCodecs.scratch(1, HEADER + (count / 2) + 1 + (count * 4));
+        int codeCount = 0;
+        int dataAt = 0;
+        byte[] data = out; // window bytes go at the end of out, moved later
+        int dataStart = HEADER + (count / 2) + 1;
+
+        int last = 0;
+        int i = 0;
+        while (i < count) {
+            int bits = from.getInt(i * 4);
+            int xor = bits ^ last;
+            last = bits;
+            if (xor == 0) {
+                // Count the run of unchanged values
+                int run = 1;
+                while ((i + run < count) && (from.getInt((i + run) * 4) == bits)) {
+                    run++;
+                }
+                i += run;
+                for (int r = RUN_LENGTH.length - 1; r >= 0; r--) {
+                    while (run >= RUN_LENGTH[r]) {
+                        codeCount = putCode(codes, codeCount, FIRST_RUN_CODE + r);
+                        run -= RUN_LENGTH[r];
+                    }
+                }
+                while (run > 0) {
+                    codeCount = putCode(codes, codeCount, 0);
+                    run--;
+                }
+                continue;
+            }
+            int shift = 0;
+            while ((xor & 0xFF) == 0) {
+                xor >>>= 8;
+                shift++;
+            }
+            int length = 1;
+            while ((length < 4 - shift) && ((xor >>> (8 * length)) != 0)) {
+                length++;
+            }
+            codeCount = putCode(codes, codeCount, WINDOW_CODE[shift][length]);
+            for (int b = 0; b < length; b++) {
+                data[dataStart + dataAt++] = (byte) (xor >>> (8 * b));
+            }
+            i++;
+        }
+
+        // Join: header, codes, then window bytes right after the codes
+        int codeBytes = (codeCount + 1) / 2;
+        SpillCodecs.writeInt(out, 0, count);
+        SpillCodecs.writeInt(out, 4, codeCount);
+        System.arraycopy(codes, 0, out, HEADER, codeBytes);
+        System.arraycopy(out, dataStart, out, HEADER + codeBytes, dataAt);
+        return ByteBuffer.wrap(out, 0, HEADER + codeBytes + dataAt).slice();
+    }
+
+    @Override
+    public boolean decode(ByteBuffer src, ByteBuffer dst, int rawLength) {
+        ByteBuffer from = src.duplicate();
+        from.rewind();
+        final int n = from.remaining();
+        if (n < HEADER) {
+            return false;
+        }
+        byte[] in = SpillCodecs.scratch(0, n);
+        from.get(in, 0, n);
+        final int count = SpillCodecs.readInt(in, 0);
+        final int codeCount = SpillCodecs.readInt(in, 4);
+        final int codeBytes = (codeCount + 1) / 2;
+        if ((count * 4 != rawLength) || (codeCount < 0) || (HEADER + codeBytes > n)) {
+            return false;
+        }
+        ByteBuffer to = SpillCodecs.nativeView(dst);
+        int dataAt = HEADER + codeBytes;
+        int last = 0;
+        int i = 0;
+        for (int c = 0; c < codeCount; c++) {
+            int code = (in[HEADER + (c >>> 1)] >>> ((c & 1) * 4)) & 0x0F;
+            if (code == 0) {
+                if (i >= count) {
+                    return false;
+                }
+                to.putInt(i++ * 4, last);
+            } else if (code >= FIRST_RUN_CODE) {
+                int run = RUN_LENGTH[code - FIRST_RUN_CODE];
+                if (i + run > count) {
+                    return false;
+                }
+                for (int r = 0; r < run; r++) {
+                    to.putInt(i++ * 4, last);
+                }
+            } else {
+                int shift = WINDOW_SHIFT[code];
+                int length = WINDOW_LENGTH[code];
+                if ((i >= count) || (dataAt + length > n)) {
+                    return false;
+                }
+                int xor = 0;
+                for (int b = 0; b < length; b++) {
+                    xor |= (in[dataAt++] & 0xFF) << (8 * b);
+                }
+                last ^= xor << (8 * shift);
+                to.putInt(i++ * 4, last);
+            }
+        }
+        return (i == count) && (dataAt == n);
+    }
+
+    /**
+     * Add a 4 bit code, low nibble first
+     */
+    private static int putCode(byte[] codes, int at, int code) {
+        int b = at >>> 1;
+        if ((at & 1) == 0) {
+            codes[b] = (byte) code;
+        } else {
+            codes[b] |= (byte) (code << 4);
+        }
+        return at + 1;
+    }
+}
@@ -1,8 +1,11 @@
 package org.wg3.storage;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.TreeMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.wg3.log.Logger;
 import org.wg3.log.LoggerFactory;
@@ -22,13 +25,48 @@ import org.wg3.log.LoggerFactory;
  * 
  * The LRUCache uses a unique key to reference each item.
  * *
- * For key to item lookup, we use a TreeMap for O(logN) search time. For stack,
- * we use a double linked list, for O(1) operations.  Originally had 
- * an ArrayList, but 'raising' an item requires an O(N) search, then 2*O(N)
- * memory movement to gap and un-gap the item in the array.  The circular
- * linked list is much quicker here.
- * Note that having integer keys would be quicker than string keys since
- * TreeMap will use a Comparator.
+ * For key to item lookup, we use a ConcurrentHashMap, so lookups are O(1) and
+ * take no lock. For stack, we use a double linked list, for O(1) operations.
+ * Originally had an ArrayList, but 'raising' an item requires an O(N) search,
+ * then 2*O(N) memory movement to gap and un-gap the item in the array.  The
+ * circular linked list is much quicker here.
+ *
+ * Raising on every get meant every hit from every thread fought over the one
+ * stack lock. So get doesn't touch the stack anymore, it just marks the item
+ * as used (CLOCK/second chance). When trimming, a used item at the bottom is
+ * cleared and raised to the top instead of being trimmed. Items that keep
+ * getting used stay, same as before, but hits scale across threads. Only
+ * put, pop, trims and clear take the stack lock. The stack order is the
+ * order of puts and raises, so it's close to, not exactly, the LRU order.
+ *
+ * By default the cache sizes are a number of items. Set an LRUCacheSizer to
+ * measure the cache some other way, such as bytes of RAM in use. The cache
+ * trims when a put takes it over the cache size (the high watermark), and
+ * then trims down to the low watermark, a fraction of the cache size. With a
+ * low watermark below 1 trims come in batches instead of one item per put.
+ *
+ * The policy picks what goes. CLOCK is the stack above. A scan through more
+ * items than fit (a bulk load, a full table pass) pushes everything out,
+ * including the few items that are used all the time. TWO_QUEUE resists
+ * that (2Q, Johnson and Shasha). New items go on a FIFO probation queue,
+ * and being used there doesn't count, since a scan uses each item lots of
+ * times in a row. Items leaving probation are trimmed, but their keys are
+ * remembered for a while as ghosts. An item put again while its ghost is
+ * still around has proved itself, it goes on the main stack (CLOCK as
+ * above). A scan only ever churns probation, the main stack keeps the
+ * items that come back. See CacheSimulator to compare policies on a trace.
+ *
+ * An item can be pinned (counted, so nested pins are fine). A pinned item
+ * stays in the key lookup but comes off the stack, so trims never see it.
+ * The last unpin puts it back on top of where it came from, the stack or
+ * probation, so a scan that pins each tile it reads still only churns
+ * probation. An item put pinned goes where a plain put would have put it.
+ * Popping a pinned item still takes it out, pins and all.
+ *
+ * Listeners get a trimmed message for each item trimmed, outside the lock.
+ * An LRUCacheEvictionListener is also told under the lock, before the item
+ * leaves the key lookup, for anything that has to be in place before another
+ * thread can miss the key.
  * 
  * @author Robert Toomey
  * 
@@ -52,6 +90,22 @@ public class LRUCache<K, V> {
         public void trimmed(V2 o);
     }
 
+    /**
+     * A listener that also hears about a trim before the item leaves the key
+     * lookup. evicting is called with the cache lock held, so anyone who
+     * misses the key afterwards sees whatever the listener set up for it.
+     * Keep it short and don't call back into the cache. The trimmed message
+     * follows outside the lock as usual.
+     */
+    @SuppressWarnings("hiding")
+    public static interface LRUCacheEvictionListener<V2> extends LRUCacheListener<V2> {
+
+        /**
+         * Sent, lock held, just before a trimmed item leaves the cache
+         */
+        public void evicting(V2 o);
+    }
+
     /**
      * LRUCacheItems are holders for the real item. We create a double linked
      * list. This allows us to raise in O(1) time vs a slow ArrayList that has
@@ -60,12 +114,67 @@ public class LRUCache<K, V> {
     @SuppressWarnings("hiding")
     private static class LRUCacheItem<K3, V3> {
 
-        public K3 key;
+        public final K3 key;
         public LRUCacheItem<K3, V3> previous;
-        public V3 item;
+        public final V3 item;
         public LRUCacheItem<K3, V3> next;
+        /**
+         * Set by get, cleared when the item gets its second chance
+         */
+        public volatile boolean used;
+        /**
+         * Number of pins, off the stack while more than zero. Lock held
+         */
+        public int pins;
+        /**
+         * On the probation queue instead of the stack. Lock held
+         */
+        public boolean probation;
+        /**
+         * Pinned, and goes back on probation at the last unpin. Lock held
+         */
+        public boolean pinnedFromProbation;
+
+        LRUCacheItem(K3 k, V3 i) {
+            key = k;
+            item = i;
+        }
     }
 
+    /**
+     * Measures how full the cache is, in the same units as the cache sizes.
+     * The cache trims items until this drops, so trimmed listeners are
+     * expected to make it go down.
+     */
+    public static interface LRUCacheSizer {
+
+        public long getFilledSize();
+    }
+
+    /**
+     * How the cache picks items to trim
+     */
+    public static enum Policy {
+
+        /**
+         * One stack, second chance for used items. Close to LRU
+         */
+        CLOCK,
+        /**
+         * Probation FIFO, ghosts and a CLOCK main stack. Scan resistant
+         */
+        TWO_QUEUE
+    }
+
+    /**
+     * Share of the items TWO_QUEUE keeps on probation
+     */
+    public static final float PROBATION_SHARE = 0.1f;
+    /**
+     * Ghosts TWO_QUEUE keeps, as a share of the items
+     */
+    public static final float GHOST_SHARE = 2.0f;
+
     /**
      * Interface to return true for all objects in cache wanting to be deleted
      */
@@ -76,16 +185,15 @@ public class LRUCache<K, V> {
     /**
      * The listeners to changes in the LRUCache
      */
-    private ArrayList<LRUCacheListener<V>> myListeners;
+    private final CopyOnWriteArrayList<LRUCacheListener<V>> myListeners = new CopyOnWriteArrayList<LRUCacheListener<V>>();
     /**
-     * The lock for dealing with myLRUCache and myLRUStack
+     * The lock for changing myLRUCache and the stack. Lookups don't need it
      */
     private final Object myLRULock = new Object();
     /**
-     * The lookup map from a 'key' to the object wanted O(logN) binary search
-     * here
+     * The lookup map from a 'key' to the object wanted, O(1) with no lock
      */
-    private TreeMap<K, LRUCacheItem<K, V>> myLRUCache = new TreeMap<K, LRUCacheItem<K, V>>();
+    private final ConcurrentHashMap<K, LRUCacheItem<K, V>> myLRUCache = new ConcurrentHashMap<K, LRUCacheItem<K, V>>();
     /*
      * The 'top' item in our LRU Stack
      */
@@ -94,68 +202,148 @@ public class LRUCache<K, V> {
      * The 'bottom' item in our LRU Stack
      */
     private LRUCacheItem<K, V> myBottomItem = null;
+    /*
+     * Top (newest) and bottom of the TWO_QUEUE probation queue
+     */
+    private LRUCacheItem<K, V> myProbationTop = null;
+    private LRUCacheItem<K, V> myProbationBottom = null;
+    private int myProbationSize = 0;
+    /**
+     * Keys trimmed from probation lately, oldest first
+     */
+    private final LinkedHashMap<K, Boolean> myGhosts = new LinkedHashMap<K, Boolean>();
+    private Policy myPolicy = Policy.CLOCK;
+    /**
+     * The item put last, a trim never takes it
+     */
+    private LRUCacheItem<K, V> myNewest = null;
+    /**
+     * The pinned items, which are in the key lookup but not the stack
+     */
+    private final HashMap<K, LRUCacheItem<K, V>> myPinned = new HashMap<K, LRUCacheItem<K, V>>();
     /**
-     * A convenience counter of the stack size
+     * A convenience counter of the items, pinned ones too
      */
     private int myStackSize = 0;
     /**
      * The smallest setting for the cache size
      */
-    private int myMinCacheSize;
+    private long myMinCacheSize;
     /**
      * The largest setting for the cache size
      */
-    private int myMaxCacheSize;
+    private long myMaxCacheSize;
     /**
      * The current full size of the cache. Could have fewer than this many items
-     * in the cache
+     * in the cache. This is the high watermark
      */
-    private int myCacheSize;
+    private volatile long myCacheSize;
+    /**
+     * Fraction of the cache size we trim down to once over it
+     */
+    private float myLowWaterMark = 1.0f;
+    /**
+     * How we measure the cache, null to count items
+     */
+    private LRUCacheSizer mySizer;
 
     /** Create an LRUCache with a min, max and current cache size. */
-    public LRUCache(int min, int current, int max) {
+    public LRUCache(long min, long current, long max) {
         myMinCacheSize = min;
         myMaxCacheSize = max;
         myCacheSize = current;
     }
 
+    /**
+     * Create an LRUCache measured by a sizer, with a min, max and current
+     * cache size in the sizer's units
+     */
+    public LRUCache(long min, long current, long max, LRUCacheSizer sizer) {
+        this(min, current, max);
+        mySizer = sizer;
+    }
+
+    /**
+     * Set the policy that picks items to trim. Items on probation go to the
+     * main stack when switching to CLOCK
+     */
+    public void setPolicy(Policy policy) {
+        synchronized (myLRULock) {
+            if ((policy == Policy.CLOCK) && (myPolicy != Policy.CLOCK)) {
+                while (myProbationBottom != null) {
+                    LRUCacheItem<K, V> item = myProbationBottom;
+                    removeFromStack(item);
+                    pushToStack(item);
+                }
+                myGhosts.clear();
+            }
+            myPolicy = policy;
+        }
+    }
+
+    public Policy getPolicy() {
+        synchronized (myLRULock) {
+            return myPolicy;
+        }
+    }
+
+    /**
+     * Set the low watermark as a fraction (0 to 1] of the cache size.
+     */
+    public void setLowWaterMark(float fraction) {
+        if ((fraction > 0.0f) && (fraction <= 1.0f)) {
+            myLowWaterMark = fraction;
+        }
+    }
+
+    /**
+     * Get the low watermark as a fraction of the cache size
+     */
+    public float getLowWaterMark() {
+        return myLowWaterMark;
+    }
+
     /** Add a listener that can respond to certain cache events */
     public void addListener(LRUCacheListener<V> l) {
-        if (myListeners == null) {
-            myListeners = new ArrayList<LRUCacheListener<V>>();
-        }
         myListeners.add(l);
     }
 
     /** Fire a trimmed message to any listeners */
     private void trimmed(V o) {
-        if (myListeners != null) {
-            Iterator<LRUCacheListener<V>> i = myListeners.iterator();
-            while (i.hasNext()) {
-                i.next().trimmed(o);
+        Iterator<LRUCacheListener<V>> i = myListeners.iterator();
+        while (i.hasNext()) {
+            i.next().trimmed(o);
+        }
+    }
+
+    /**
+     * Fire an evicting message to any eviction listeners. Lock held
+     */
+    @SuppressWarnings("unchecked")
+    private void evicting(V o) {
+        Iterator<LRUCacheListener<V>> i = myListeners.iterator();
+        while (i.hasNext()) {
+            LRUCacheListener<V> l = i.next();
+            if (l instanceof LRUCacheEvictionListener) {
+                ((LRUCacheEvictionListener<V>) l).evicting(o);
             }
         }
     }
 
     /**
-     * Get an item given a key. Getting an item MOVES it up in the LRU stack, as
-     * it has been referenced and is now more important than older entries
+     * Get an item given a key. Getting an item marks it as used, so a trim
+     * raises it in the LRU stack instead of dropping it, as it has been
+     * referenced and is now more important than older entries. No lock.
      */
     public V get(K key) {
-        V theThing;
-        synchronized (myLRULock) {
-            LRUCacheItem<K, V> item = myLRUCache.get(key);
-            if (item != null) {
-                theThing = item.item;
-                if (item != myTopItem) {
-                    removeFromStack(item);
-                    pushToStack(item);
-                }
-            } else {
-                theThing = null;
-            }
+        LRUCacheItem<K, V> item = myLRUCache.get(key);
+        if (item == null) {
+            return null;
         }
-        return theThing;
+        if (!item.used) {
+            item.used = true; // Skip the write when already set, keeps the line shared
+        }
+        return item.item;
     }
 
     /**
@@ -174,9 +362,14 @@ public class LRUCache<K, V> {
     }
 
     /**
-     * Remove an item from stack, but leave it in the key lookup
+     * Remove an item from stack (or probation), but leave it in the key
+     * lookup
      */
     private void removeFromStack(LRUCacheItem<K, V> item) {
+        if (item.probation) {
+            removeFromProbation(item);
+            return;
+        }
         // Have to remove from the circular linked list....
         LRUCacheItem<K, V> prevItem = item.previous;
         LRUCacheItem<K, V> nextItem = item.next;
@@ -210,17 +403,92 @@ public class LRUCache<K, V> {
         }
     }
 
+    private void removeFromProbation(LRUCacheItem<K, V> item) {
+        LRUCacheItem<K, V> prevItem = item.previous;
+        LRUCacheItem<K, V> nextItem = item.next;
+        if (prevItem != null) {
+            prevItem.next = nextItem;
+        } else {
+            myProbationTop = nextItem;
+        }
+        if (nextItem != null) {
+            nextItem.previous = prevItem;
+        } else {
+            myProbationBottom = prevItem;
+        }
+        item.next = item.previous = null;
+        item.probation = false;
+        myProbationSize--;
+    }
+
+    private void pushToProbation(LRUCacheItem<K, V> item) {
+        LRUCacheItem<K, V> oldTop = myProbationTop;
+        item.next = oldTop;
+        item.previous = null;
+        if (oldTop != null) {
+            oldTop.previous = item;
+        }
+        myProbationTop = item;
+        if (myProbationBottom == null) {
+            myProbationBottom = item;
+        }
+        item.probation = true;
+        myProbationSize++;
+    }
+
+    /**
+     * Does a new item for the key start on probation? TWO_QUEUE puts it
+     * there unless its ghost is around, and uses up the ghost. Sync done
+     * elsewhere
+     */
+    private boolean isProbationPut(K key) {
+        return (myPolicy == Policy.TWO_QUEUE) && (myGhosts.remove(key) == null);
+    }
+
+    /**
+     * Place a newly put item, see isProbationPut. Sync done elsewhere
+     */
+    private void insert(LRUCacheItem<K, V> item) {
+        if (isProbationPut(item.key)) {
+            pushToProbation(item);
+        } else {
+            pushToStack(item);
+        }
+        myNewest = item;
+    }
+
+    /**
+     * Remember the key of an item trimmed from probation, forgetting the
+     * oldest ghosts past our share
+     */
+    private void addGhost(K key) {
+        myGhosts.put(key, Boolean.TRUE);
+        int limit = Math.max(16, (int) (myStackSize * GHOST_SHARE));
+        Iterator<K> i = myGhosts.keySet().iterator();
+        while ((myGhosts.size() > limit) && i.hasNext()) {
+            i.next();
+            i.remove();
+        }
+    }
+
     /**
      * Private routine to remove an item. Sync done elsewhere
      */
     private void remove(LRUCacheItem<K, V> item) {
 
         // Remove from stack first....
-        removeFromStack(item);
+        if (item.pins > 0) {
+            myPinned.remove(item.key);
+        } else {
+            removeFromStack(item);
+        }
 
         // Remove from key lookup...
-        myLRUCache.remove(item.key);
+        myLRUCache.remove(item.key, item);
         myStackSize--;
+        if (myNewest == item) {
+            myNewest = null;
+        }
     }
 
     /**
@@ -273,7 +541,8 @@ public class LRUCache<K, V> {
 */
     
     /**
-     * Make a copy of the current stack. Used by GUI for synchronized access to
+     * Make a copy of the current stack, with any pinned items first. Used by
+     * GUI for synchronized access to
      * our T objects. Note that the individual T objects if modified will cause
      * sync issues, but the whole point of a cache to to keep sets of repeated
      * non-modified objects
@@ -284,34 +553,191 @@ public class LRUCache<K, V> {
     public ArrayList<V> getStackCopy() {
         ArrayList<V> aList;
         synchronized (myLRULock) {  // Make sure not changing while copied
-            aList = new ArrayList<V>();
+            aList = getPinnedCopy();
             LRUCacheItem<K, V> current = myTopItem;
             while (current != null) {  // O(N)
                 aList.add(current.item);
                 current = current.next;
             }
+            current = myProbationTop;
+            while (current != null) {
+                aList.add(current.item);
+                current = current.next;
+            }
         }
         return aList;
     }
 
-    /** Put a new item on top of the stack */
+    /**
+     * Make a copy of the pinned items
+     */
+    public ArrayList<V> getPinnedCopy() {
+        synchronized (myLRULock) {
+            ArrayList<V> aList = new ArrayList<V>(myPinned.size());
+            Iterator<LRUCacheItem<K, V>> i = myPinned.values().iterator();
+            while (i.hasNext()) {
+                aList.add(i.next().item);
+            }
+            return aList;
+        }
+    }
+
+    /**
+     * Put a new item on top of the stack. Replacing a pinned item keeps the
+     * pins, the new item is pinned instead
+     */
     public void put(K key, V putMe) {
+        put(key, putMe, false);
+    }
+
+    /**
+     * Put a new item, pinned if asked. A pinned put is in the cache and
+     * pinned in one go, so a trim can't take it before the pin (see pin).
+     */
+    public void put(K key, V putMe, boolean pinned) {
 
-        // Make room for the item if needed..
-        trimCache(myCacheSize - 1);
         synchronized (myLRULock) {
 
             // Create new item
-            LRUCacheItem<K, V> newTop = new LRUCacheItem<K, V>();
-            newTop.key = (K) key;
-            newTop.item = putMe;
+            LRUCacheItem<K, V> newTop = new LRUCacheItem<K, V>(key, putMe);
+
+            // Add to key lookup, replacing any old item for the key
+            LRUCacheItem<K, V> old = myLRUCache.put(key, newTop);
+            if (pinned) {
+                if (old == null) {
+                    myStackSize++;
+                    newTop.pinnedFromProbation = isProbationPut(key);
+                } else if (old.pins == 0) {
+                    newTop.pinnedFromProbation = old.probation;
+                    removeFromStack(old);
+                } else {
+                    newTop.pinnedFromProbation = old.pinnedFromProbation;
+                }
+                newTop.pins = ((old != null) ? old.pins : 0) + 1;
+                myPinned.put(key, newTop);
+            } else if (old == null) {
+                myStackSize++;
+                insert(newTop);
+            } else if (old.pins > 0) {
+                newTop.pins = old.pins;
+                newTop.pinnedFromProbation = old.pinnedFromProbation;
+                myPinned.put(key, newTop);
+            } else {
+                // Takes the old one's place, stack or probation
+                boolean probation = old.probation;
+                removeFromStack(old);
+                if (probation) {
+                    pushToProbation(newTop);
+                } else {
+                    pushToStack(newTop);
+                }
+                myNewest = newTop;
+            }
+        }
+
+        // Make room if the item took us over the top
+        trimToLowWaterMark();
+    }
 
-            // Push to top of stack
-            pushToStack(newTop);
+    /**
+     * Put a new item on top of the stack, unless the key is already in the
+     * cache. Use this when another thread might have put the same key since
+     * you checked for it.
+     *
+     * @return the item already in the cache for the key, or null if putMe was
+     * added
+     */
+    public V putIfAbsent(K key, V putMe) {
+        return putIfAbsent(key, putMe, false);
+    }
 
-            // Add to key lookup
+    /**
+     * putIfAbsent, pinning putMe if it goes in. An item already in the cache
+     * is left as it is, not pinned.
+     */
+    public V putIfAbsent(K key, V putMe, boolean pinned) {
+
+        synchronized (myLRULock) {
+            LRUCacheItem<K, V> item = myLRUCache.get(key);
+            if (item != null) {
+                return item.item;
+            }
+            LRUCacheItem<K, V> newTop = new LRUCacheItem<K, V>(key, putMe);
             myLRUCache.put(key, newTop);
             myStackSize++;
+            if (pinned) {
+                newTop.pins = 1;
+                newTop.pinnedFromProbation = isProbationPut(key);
+                myPinned.put(key, newTop);
+            } else {
+                insert(newTop);
+            }
+        }
+
+        // Make room if the item took us over the top
+        trimToLowWaterMark();
+        return null;
+    }
+
+    /**
+     * Pin the item for a key, taking it off the stack so trims leave it alone
+     * until the matching unpin. Pins are counted.
+     *
+     * @return the item pinned, or null if the key isn't in the cache
+     */
+    public V pin(K key) {
+        synchronized (myLRULock) {
+            LRUCacheItem<K, V> item = myLRUCache.get(key);
+            if (item == null) {
+                return null;
+            }
+            if (item.pins == 0) {
+                item.pinnedFromProbation = item.probation;
+                removeFromStack(item);
+                myPinned.put(key, item);
+            }
+            item.pins++;
+            return item.item;
+        }
+    }
+
+    /**
+     * Take back a pin. The last one puts the item back on top of the stack,
+     * as if just used, or back on probation if it was there, and may trim if
+     * we're over size.
+     *
+     * @return the pins left, or -1 if the key isn't pinned
+     */
+    public int unpin(K key) {
+        int left;
+        synchronized (myLRULock) {
+            LRUCacheItem<K, V> item = myLRUCache.get(key);
+            if ((item == null) || (item.pins == 0)) {
+                return -1;
+            }
+            left = --item.pins;
+            if (left == 0) {
+                myPinned.remove(key);
+                if (item.pinnedFromProbation && (myPolicy == Policy.TWO_QUEUE)) {
+                    pushToProbation(item);
+                } else {
+                    pushToStack(item);
+                }
+                item.pinnedFromProbation = false;
+            }
+        }
+        if (left == 0) {
+            trimToLowWaterMark();
+        }
+        return left;
+    }
+
+    /**
+     * Get the number of pinned items
+     */
+    public int getPinnedCount() {
+        synchronized (myLRULock) {
+            return myPinned.size();
         }
     }
 
@@ -324,42 +750,49 @@ public class LRUCache<K, V> {
      */
     public V getWithoutRaising(K key) {
         LRUCacheItem<K, V> item = myLRUCache.get(key);
-        V theThing;
-        if (item != null) {
-            theThing = (V) item.item;
-        } else {
-            theThing = null;
-        }
-        return theThing;
+        return (item != null) ? item.item : null;
     }
 
     /**
-     * Clear all entries from the cache
+     * Is the key in the cache? Doesn't raise the item
+     */
+    public boolean containsKey(K key) {
+        return myLRUCache.containsKey(key);
+    }
+
+    /**
+     * Clear all entries from the cache, except pinned ones
      */
     public void clear() {
         ArrayList<V> purged = new ArrayList<V>();
 
         synchronized (myLRULock) {
-            myLRUCache.clear();
-
             LRUCacheItem<K, V> current = myTopItem;
 
             while (current != null) {  // O(N)
                 LRUCacheItem<K, V> worker = current;
                 current = current.next;
+                evicting(worker.item);
+                myLRUCache.remove(worker.key, worker);
 
                 // Extra 'cleanup' wipe out the links...just doing this
                 // to help garbage collection out.
                 worker.previous = null;
                 worker.next = null;
                 purged.add((V) worker.item);
-
-                worker.item = null;
-
             }
             myTopItem = null;
             myBottomItem = null;
-            myStackSize = 0;
+            while (myProbationBottom != null) {
+                LRUCacheItem<K, V> worker = myProbationBottom;
+                removeFromProbation(worker);
+                evicting(worker.item);
+                myLRUCache.remove(worker.key, worker);
+                purged.add(worker.item);
+            }
+            myGhosts.clear();
+            myNewest = null;
+            myStackSize = myPinned.size();
         }
 
         // Notify on purged items outside of sync loop..
@@ -372,7 +805,7 @@ public class LRUCache<K, V> {
     /**
      * Set the minimum size of the cache. This is the size we trim too
      */
-    public void setMinCacheSize(int min) {
+    public void setMinCacheSize(long min) {
         myMinCacheSize = min;
         if (myMaxCacheSize < myMinCacheSize) {
             myMaxCacheSize = myMinCacheSize;
@@ -386,7 +819,7 @@ public class LRUCache<K, V> {
      * Set the maximum size of the cache.
      * @param max 
      */
-    public void setMaxCacheSize(int max) {
+    public void setMaxCacheSize(long max) {
         myMaxCacheSize = max;
         if (myMinCacheSize > myMaxCacheSize) {
             myMinCacheSize = myMaxCacheSize;
@@ -399,7 +832,7 @@ public class LRUCache<K, V> {
     /**
      * Set the current size of the cache
      */
-    public void setCacheSize(int size) {
+    public void setCacheSize(long size) {
         if ((size >= myMinCacheSize) && (size <= myMaxCacheSize)) {
             myCacheSize = size;
             trimCache(myCacheSize);
@@ -409,10 +842,34 @@ public class LRUCache<K, V> {
     /**
      * Get the current cache size
      */
-    public int getCacheSize() {
+    public long getCacheSize() {
         return myCacheSize;
     }
 
+    /**
+     * Get the smallest setting for the cache size
+     */
+    public long getMinCacheSize() {
+        return myMinCacheSize;
+    }
+
+    /**
+     * Get the largest setting for the cache size
+     */
+    public long getMaxCacheSize() {
+        return myMaxCacheSize;
+    }
+
+    /**
+     * Get how full the cache is, in the same units as the cache size
+     */
+    public long getFilledSize() {
+        if (mySizer != null) {
+            return mySizer.getFilledSize();
+        }
+        return getCacheFilledSize();
+    }
+
     /**
      * Get the current filled cache size
      */
@@ -424,36 +881,138 @@ public class LRUCache<K, V> {
     }
 
     /**
-     * Trim cache down to the MIN_CACHE_SIZE
+     * If we're over the cache size, trim down to the low watermark
+     */
+    private void trimToLowWaterMark() {
+        long size = myCacheSize;
+        if (getFilledSize() > size) {
+            trimCache((long) (size * myLowWaterMark));
+        }
+    }
+
+    /**
+     * Find the item to trim next. For TWO_QUEUE that's the oldest item on
+     * probation while probation is over its share, otherwise the stack's
+     * (see findStackVictim). Sync done elsewhere
+     *
+     * @param keep an item we won't trim, the one put last when the trim
+     * started
+     * @param chances how many raises we have left, shared over the trim
+     * @return the item to trim, or null if there's nothing we can trim
+     */
+    private LRUCacheItem<K, V> findVictim(LRUCacheItem<K, V> keep, int[] chances) {
+        if (myPolicy != Policy.TWO_QUEUE) {
+            return findStackVictim(keep, chances);
+        }
+        int share = Math.max(1, (int) ((myStackSize - myPinned.size()) * PROBATION_SHARE));
+        LRUCacheItem<K, V> worker = null;
+        if (myProbationSize > share) {
+            worker = findProbationVictim(keep);
+        }
+        if (worker == null) {
+            worker = findStackVictim(keep, chances);
+        }
+        if (worker == null) {
+            worker = findProbationVictim(keep); // Stack's empty
+        }
+        return worker;
+    }
+
+    /**
+     * The oldest item on probation, which leaves a ghost. Uses don't count
+     * here. Sync done elsewhere
      */
-    public void trimCache(int toSize) {
+    private LRUCacheItem<K, V> findProbationVictim(LRUCacheItem<K, V> keep) {
+        LRUCacheItem<K, V> worker = myProbationBottom;
+        if (worker == keep) {
+            worker = (worker != null) ? worker.previous : null;
+        }
+        if (worker != null) {
+            addGhost(worker.key);
+        }
+        return worker;
+    }
+
+    /**
+     * Find the item to trim next from the stack. Used items at the bottom
+     * get their second chance, cleared and raised to the top. Each item can
+     * only be raised once per trim so a stream of gets can't keep us here.
+     * Sync done elsewhere
+     */
+    private LRUCacheItem<K, V> findStackVictim(LRUCacheItem<K, V> keep, int[] chances) {
+        LRUCacheItem<K, V> worker = myBottomItem;
+        while ((worker != null) && (worker != keep)
+                && worker.used && (chances[0] > 0)) {
+            worker.used = false;
+            chances[0]--;
+            removeFromStack(worker);
+            pushToStack(worker);
+            worker = myBottomItem;
+        }
+        if (worker == keep) {
+            // Raised everything else above it, take the next one up
+            worker = (worker != null) ? worker.previous : null;
+        }
+        return worker;
+    }
+
+    /**
+     * Trim the cache from the bottom of the stack until it's filled to toSize
+     * or less. Items marked as used get a second chance (see findVictim). The
+     * item put last is never trimmed here, it was just put.
+     */
+    public void trimCache(long toSize) {
 
         // Don't trim less than zero
         if (toSize < 0) {
             toSize = 0;
         }
         try {
-            ArrayList<V> purged = new ArrayList<V>();
-
+            LRUCacheItem<K, V> keep;
+            int[] chances = new int[1];
             synchronized (myLRULock) {
-                LRUCacheItem<K, V> current = myBottomItem;
-                while (current != null) {
-                    LRUCacheItem<K, V> worker = current;
-                    current = current.previous;
+                keep = myNewest;
+                chances[0] = myStackSize;
+            }
+            if (mySizer == null) {
+                ArrayList<V> purged = new ArrayList<V>();
 
-                    if (myStackSize > toSize) {
+                synchronized (myLRULock) {
+                    while (myStackSize > toSize) {
+                        LRUCacheItem<K, V> worker = findVictim(null, chances);
+                        if (worker == null) {
+                            break; // done
+                        }
                         purged.add(worker.item);
+                        evicting(worker.item);
                         remove(worker);
-                    } else {
-                        break; // done
                     }
                 }
-            }
 
-            // Notify on purged items outside of sync loop..
-            Iterator<V> i = purged.iterator();
-            while (i.hasNext()) {
-                trimmed(i.next());
+                // Notify on purged items outside of sync loop..
+                Iterator<V> i = purged.iterator();
+                while (i.hasNext()) {
+                    trimmed(i.next());
+                }
+            } else {
+
+                // The sizer only changes once listeners have dealt with
+                // an item, so trim and notify one at a time
+                while (mySizer.getFilledSize() > toSize) {
+                    V purged = null;
+                    synchronized (myLRULock) {
+                        LRUCacheItem<K, V> worker = findVictim(keep, chances);
+                        if (worker != null) {
+                            purged = worker.item;
+                            evicting(purged);
+                            remove(worker);
+                        }
+                    }
+                    if (purged == null) {
+                        break;
+                    }
+                    trimmed(purged);
+                }
             }
 
         } catch (Exception e) {
@@ -470,24 +1029,28 @@ public class LRUCache<K, V> {
             ArrayList<V> purged = new ArrayList<V>();
             synchronized (myLRULock) {
 
-                LRUCacheItem<K, V> current = myTopItem;
-                while (current != null) {
-                    LRUCacheItem<K, V> worker = current;
-                    current = current.next; // should be correct even after deleting current.
+                // The stack, then probation
+                for (int pass = 0; pass < 2; pass++) {
+                    LRUCacheItem<K, V> current = (pass == 0) ? myTopItem : myProbationTop;
+                    while (current != null) {
+                        LRUCacheItem<K, V> worker = current;
+                        current = current.next; // should be correct even after deleting current.
 
-                    if (compare.shouldDelete(worker.item)) {
-                        purged.add(worker.item);
-                        remove(worker);
+                        if (compare.shouldDelete(worker.item)) {
+                            purged.add(worker.item);
+                            evicting(worker.item);
+                            remove(worker);
+                        }
                     }
-
                 }
+            }
 
-                // Notify on purged items outside of sync loop..
-                Iterator<V> i = purged.iterator();
-                while (i.hasNext()) {
-                    trimmed(i.next());
-                }
+            // Notify on purged items outside of sync loop..
+            Iterator<V> i = purged.iterator();
+            while (i.hasNext()) {
+                trimmed(i.next());
             }
+            removed = purged.size();
         } catch (Exception e) {
             LOG.error("Exception purging cache for index " + e.toString());
         }
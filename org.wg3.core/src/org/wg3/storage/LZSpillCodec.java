@@ -0,0 +1,188 @@
+package org.wg3.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A fast byte oriented LZ77 codec for the spill store, laid out like an LZ4
+ * block. Each sequence is a token byte (literal count in the high nibble,
+ * match length - 4 in the low nibble, 15 meaning 'more bytes follow'), the
+ * literals, then a two byte match offset. The last sequence is literals only.
+ *
+ * Matches are found with a single hash table probe on 4 bytes, no chains,
+ * so it's quick but won't squeeze as hard as gzip.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class LZSpillCodec implements SpillCodec {
+
+    private static final int HASH_LOG = 13;
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+    /**
+     * Bytes at the end we leave as literals, so the match search never reads
+     * past the input
+     */
+    private static final int LAST_LITERALS = 12;
+    /**
+     * Per thread hash table, positions + 1 so zero is empty
+     */
+    private static final ThreadLocal<int[]> myTable = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1 << HASH_LOG];
+        }
+    };
+
+    @Override
+    public int getId() {
+        return 1;
+    }
+
+    @Override
+    public String getName() {
+        return "lz";
+    }
+
+    @Override
+    public ByteBuffer encode(ByteBuffer src) {
+        final int n = src.limit();
+        byte[] in = SpillCodecs.scratch(0, n);
+        byte[] out = SpillCodecs.scratch(1, n + (n / 255) + 16);
+        ByteBuffer from = src.duplicate();
+        from.rewind();
+        from.get(in, 0, n);
+
+        int[] table = myTable.get();
+        Arrays.fill(table, 0);
+        int anchor = 0;
+        int ip = 0;
+        int op = 0;
+        final int limit = n - LAST_LITERALS;
+        while (ip < limit) {
+            int seq = readInt(in, ip);
+            int h = (seq * -1640531535) >>> (32 - HASH_LOG);
+            int ref = table[h] - 1;
+            table[h] = ip + 1;
+            if ((ref >= 0) && (ip - ref <= MAX_OFFSET) && (readInt(in, ref) == seq)) {
+                int match = MIN_MATCH;
+                while ((ip + match < limit) && (in[ref + match] == in[ip + match])) {
+                    match++;
+                }
+                op = writeSequence(out, op, in, anchor, ip - anchor, ip - ref, match);
+                ip += match;
+                anchor = ip;
+            } else {
+                ip++;
+            }
+        }
+        op = writeSequence(out, op, in, anchor, n - anchor, 0, 0);
+        return ByteBuffer.wrap(out, 0, op).slice();
+    }
+
+    @Override
+    public boolean decode(ByteBuffer src, ByteBuffer dst, int rawLength) {
+        ByteBuffer from = src.duplicate();
+        from.rewind();
+        final int n = from.remaining();
+        byte[] in = SpillCodecs.scratch(0, n);
+        byte[] out = SpillCodecs.scratch(1, rawLength);
+        from.get(in, 0, n);
+
+        int ip = 0;
+        int op = 0;
+        try {
+            while (ip < n) {
+                int token = in[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = in[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if ((op + literals > rawLength) || (ip + literals > n)) {
+                    return false;
+                }
+                System.arraycopy(in, ip, out, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip >= n) {
+                    break; // Last sequence is literals only
+                }
+                int offset = (in[ip] & 0xFF) | ((in[ip + 1] & 0xFF) << 8);
+                ip += 2;
+                int match = token & 0x0F;
+                if (match == 15) {
+                    int b;
+                    do {
+                        b = in[ip++] & 0xFF;
+                        match += b;
+                    } while (b == 255);
+                }
+                match += MIN_MATCH;
+                if ((offset == 0) || (offset > op) || (op + match > rawLength)) {
+                    return false;
+                }
+                // Byte at a time, matches can overlap what they copy
+                int from2 = op - offset;
+                for (int i = 0; i < match; i++) {
+                    out[op++] = out[from2++];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return false;
+        }
+        if (op != rawLength) {
+            return false;
+        }
+        ByteBuffer to = dst.duplicate();
+        to.clear();
+        to.put(out, 0, rawLength);
+        return true;
+    }
+
+    private static int readInt(byte[] b, int at) {
+        return (b[at] & 0xFF) | ((b[at + 1] & 0xFF) << 8)
+                | ((b[at + 2] & 0xFF) << 16) | ((b[at + 3] & 0xFF) << 24);
+    }
+
+    /**
+     * Write a length past 15 as a run of 255s and a remainder
+     */
+    private static int writeLength(byte[] out, int op, int length) {
+        while (length >= 255) {
+            out[op++] = (byte) 255;
+            length -= 255;
+        }
+        out[op++] = (byte) length;
+        return op;
+    }
+
+    /**
+     * Write a sequence, a match of 0 means literals only (the last one)
+     */
+    private static int writeSequence(byte[] out, int op, byte[] in, int start,
+            int literals, int offset, int match) {
+        int tokenAt = op++;
+        int token = Math.min(literals, 15) << 4;
+        if (literals >= 15) {
+            op = writeLength(out, op, literals - 15);
+        }
+        System.arraycopy(in, start, out, op, literals);
+        op += literals;
+        if (match > 0) {
+            out[op++] = (byte) offset;
+            out[op++] = (byte) (offset >>> 8);
+            int m = match - MIN_MATCH;
+            token |= Math.min(m, 15);
+            if (m >= 15) {
+                op = writeLength(out, op, m - 15);
+            }
+        }
+        out[tokenAt] = (byte) token;
+        return op;
+    }
+}
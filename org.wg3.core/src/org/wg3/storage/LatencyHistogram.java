@@ -0,0 +1,125 @@
+package org.wg3.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of operation times, used by DataManagerStats for
+ * spill store reads and writes.
+ *
+ * Buckets are powers of two in microseconds, bucket n holding times from
+ * 2^(n-1) up to 2^n us (bucket 0 is under 1 us). That's coarse, but plenty to
+ * tell a page cache hit from a real disk read, and recording is just an
+ * increment.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of buckets, the last one holds everything over ~1 second
+     */
+    public static final int BUCKETS = 22;
+    private final AtomicLongArray myBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong myCount = new AtomicLong();
+    private final AtomicLong myTotalNanos = new AtomicLong();
+    private final AtomicLong myMaxNanos = new AtomicLong();
+
+    /**
+     * Record one operation that took the given nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        if (bucket >= BUCKETS) {
+            bucket = BUCKETS - 1;
+        }
+        myBuckets.incrementAndGet(bucket);
+        myCount.incrementAndGet();
+        myTotalNanos.addAndGet(nanos);
+        long max = myMaxNanos.get();
+        while ((nanos > max) && !myMaxNanos.compareAndSet(max, nanos)) {
+            max = myMaxNanos.get();
+        }
+    }
+
+    public long getCount() {
+        return myCount.get();
+    }
+
+    /**
+     * Get the mean time in microseconds
+     */
+    public double getMeanMicros() {
+        long count = myCount.get();
+        return (count == 0) ? 0.0 : (myTotalNanos.get() / 1000.0) / count;
+    }
+
+    /**
+     * Get the longest time in microseconds
+     */
+    public double getMaxMicros() {
+        return myMaxNanos.get() / 1000.0;
+    }
+
+    /**
+     * Get the upper bound in microseconds of the bucket holding the given
+     * percentile (0-100). So 'at most this', to within a factor of two.
+     */
+    public long getPercentileMicros(double percentile) {
+        long count = myCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long wanted = (long) Math.ceil(count * (percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += myBuckets.get(i);
+            if (seen >= wanted) {
+                return getBucketLimitMicros(i);
+            }
+        }
+        return getBucketLimitMicros(BUCKETS - 1);
+    }
+
+    /**
+     * Get the upper bound of a bucket in microseconds
+     */
+    public static long getBucketLimitMicros(int bucket) {
+        return 1L << bucket;
+    }
+
+    /**
+     * Get a copy of the bucket counts
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = myBuckets.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * Zero everything
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            myBuckets.set(i, 0);
+        }
+        myCount.set(0);
+        myTotalNanos.set(0);
+        myMaxNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.1fus p50<=%dus p99<=%dus max=%.1fus",
+                getCount(), getMeanMicros(), getPercentileMicros(50),
+                getPercentileMicros(99), getMaxMicros());
+    }
+}
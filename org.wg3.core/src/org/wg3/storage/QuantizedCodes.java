@@ -0,0 +1,91 @@
+package org.wg3.storage;
+
+import java.util.Arrays;
+
+/**
+ * A flat run of 8 or 16 bit codes for a Quantizer, the storage behind the
+ * quantized arrays. Bytes for 8 bit codes, shorts for 16.
+ *
+ * @author Robert Toomey
+ *
+ */
+final class QuantizedCodes {
+
+    private final Quantizer myQuantizer;
+    private final byte[] myBytes;
+    private final short[] myShorts;
+
+    /**
+     * @param size number of codes
+     * @param background value every code starts as
+     */
+    QuantizedCodes(Quantizer q, int size, float background) {
+        myQuantizer = q;
+        final int code = q.encode(background);
+        if (q.getBits() == 8) {
+            myBytes = new byte[size];
+            myShorts = null;
+            if (code != 0) {
+                Arrays.fill(myBytes, (byte) code);
+            }
+        } else {
+            myBytes = null;
+            myShorts = new short[size];
+            if (code != 0) {
+                Arrays.fill(myShorts, (short) code);
+            }
+        }
+    }
+
+    float get(int i) {
+        if (myBytes != null) {
+            return myQuantizer.decode(myBytes[i]);
+        }
+        return myQuantizer.decode(myShorts[i]);
+    }
+
+    void set(int i, float value) {
+        final int code = myQuantizer.encode(value);
+        if (myBytes != null) {
+            myBytes[i] = (byte) code;
+        } else {
+            myShorts[i] = (short) code;
+        }
+    }
+
+    /**
+     * Decode count codes from at into dest
+     */
+    void get(int at, float[] dest, int offset, int count) {
+        final Quantizer q = myQuantizer;
+        if (myBytes != null) {
+            final byte[] codes = myBytes;
+            for (int i = 0; i < count; i++) {
+                dest[offset + i] = q.decode(codes[at + i]);
+            }
+        } else {
+            final short[] codes = myShorts;
+            for (int i = 0; i < count; i++) {
+                dest[offset + i] = q.decode(codes[at + i]);
+            }
+        }
+    }
+
+    /**
+     * Encode count values from src into the codes from at
+     */
+    void set(int at, float[] src, int offset, int count) {
+        final Quantizer q = myQuantizer;
+        if (myBytes != null) {
+            final byte[] codes = myBytes;
+            for (int i = 0; i < count; i++) {
+                codes[at + i] = (byte) q.encode(src[offset + i]);
+            }
+        } else {
+            final short[] codes = myShorts;
+            for (int i = 0; i < count; i++) {
+                codes[at + i] = (short) q.encode(src[offset + i]);
+            }
+        }
+    }
+}
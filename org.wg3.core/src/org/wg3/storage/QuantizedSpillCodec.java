@@ -0,0 +1,150 @@
+package org.wg3.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A spill codec that stores a tile as 8 or 16 bit Quantizer codes, a
+ * quarter or half the bytes of the floats. It's lossless: a tile with any
+ * value that doesn't come back exactly (off the quantizer's grid, or out of
+ * range) goes out with FloatXorSpillCodec instead, so pick a quantizer that
+ * matches the data (see DataType.createQuantizer) for the savings.
+ *
+ * Tiles hold values shifted by DataNode.toBackground, so the stored
+ * background (zero) and DataNode.STORED_ZERO are reserved on top of the
+ * quantizer's own special values.
+ *
+ * Layout is -bits (int), value count (int), scale, offset (floats), the
+ * reserved count (int) and values (floats), then a code per value. The
+ * quantizer travels with the data, so any instance decodes any tile. A
+ * FloatXor fallback starts with its value count, never negative, which is
+ * how decode tells them apart.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class QuantizedSpillCodec implements SpillCodec {
+
+    /**
+     * The quantizer we encode with, with the stored values reserved
+     */
+    private final Quantizer myQuantizer;
+    /**
+     * The quantizer of the last tile we decoded. Most tiles are decoded
+     * with the one they were encoded with, and building a 16 bit table
+     * isn't free
+     */
+    private volatile Quantizer myLastDecoder;
+
+    public QuantizedSpillCodec(Quantizer quantizer) {
+        float[] reserved = quantizer.getReserved();
+        float[] stored = new float[reserved.length + 2];
+        System.arraycopy(reserved, 0, stored, 0, reserved.length);
+        stored[reserved.length] = 0.0f;
+        stored[reserved.length + 1] = DataNode.STORED_ZERO;
+        myQuantizer = new Quantizer(quantizer.getBits(), quantizer.getScale(), quantizer.getOffset(), stored);
+        myLastDecoder = myQuantizer;
+    }
+
+    @Override
+    public int getId() {
+        return 3;
+    }
+
+    @Override
+    public String getName() {
+        return "quantized";
+    }
+
+    @Override
+    public ByteBuffer encode(ByteBuffer src) {
+        ByteBuffer from = SpillCodecs.nativeView(src);
+        final int count = from.limit() / 4;
+        final Quantizer q = myQuantizer;
+        final int bytesPer = q.getBits() / 8;
+        final float[] reserved = q.getReserved();
+        final int header = 20 + (reserved.length * 4);
+        byte[] out = SpillCodecs.scratch(1, header + (count * bytesPer));
+        int at = header;
+        for (int i = 0; i < count; i++) {
+            final int code = q.encodeExact(from.getFloat(i * 4));
+            if (code < 0) {
+                return SpillCodecs.FLOAT_XOR.encode(src);
+            }
+            out[at++] = (byte) code;
+            if (bytesPer == 2) {
+                out[at++] = (byte) (code >>> 8);
+            }
+        }
+        SpillCodecs.writeInt(out, 0, -q.getBits());
+        SpillCodecs.writeInt(out, 4, count);
+        SpillCodecs.writeInt(out, 8, Float.floatToIntBits(q.getScale()));
+        SpillCodecs.writeInt(out, 12, Float.floatToIntBits(q.getOffset()));
+        SpillCodecs.writeInt(out, 16, reserved.length);
+        for (int r = 0; r < reserved.length; r++) {
+            SpillCodecs.writeInt(out, 20 + (r * 4), Float.floatToIntBits(reserved[r]));
+        }
+        return ByteBuffer.wrap(out, 0, at).slice();
+    }
+
+    @Override
+    public boolean decode(ByteBuffer src, ByteBuffer dst, int rawLength) {
+        ByteBuffer from = src.duplicate();
+        from.rewind();
+        final int n = from.remaining();
+        if (n < 20) {
+            return SpillCodecs.FLOAT_XOR.decode(src, dst, rawLength);
+        }
+        byte[] in = SpillCodecs.scratch(0, n);
+        from.get(in, 0, n);
+        final int bits = -SpillCodecs.readInt(in, 0);
+        if (bits <= 0) {
+            return SpillCodecs.FLOAT_XOR.decode(src, dst, rawLength);
+        }
+        final int count = SpillCodecs.readInt(in, 4);
+        final int reservedCount = SpillCodecs.readInt(in, 16);
+        final int bytesPer = bits / 8;
+        if (((bits != 8) && (bits != 16)) || (count * 4 != rawLength)
+                || (reservedCount < 0) || (reservedCount > Quantizer.MAX_RESERVED)
+                || (20 + (reservedCount * 4) + (count * bytesPer) != n)) {
+            return false;
+        }
+        float[] reserved = new float[reservedCount];
+        for (int r = 0; r < reservedCount; r++) {
+            reserved[r] = Float.intBitsToFloat(SpillCodecs.readInt(in, 20 + (r * 4)));
+        }
+        final Quantizer q = getDecoder(bits, Float.intBitsToFloat(SpillCodecs.readInt(in, 8)),
+                Float.intBitsToFloat(SpillCodecs.readInt(in, 12)), reserved);
+        if (q == null) {
+            return false;
+        }
+        ByteBuffer to = SpillCodecs.nativeView(dst);
+        int at = 20 + (reservedCount * 4);
+        for (int i = 0; i < count; i++) {
+            int code = in[at++] & 0xFF;
+            if (bytesPer == 2) {
+                code |= (in[at++] & 0xFF) << 8;
+            }
+            to.putFloat(i * 4, q.decode(code));
+        }
+        return true;
+    }
+
+    /**
+     * The quantizer a tile was written with, the last one if it matches
+     *
+     * @return null if the header is bad
+     */
+    private Quantizer getDecoder(int bits, float scale, float offset, float[] reserved) {
+        Quantizer q = myLastDecoder;
+        if (q.matches(bits, scale, offset, reserved)) {
+            return q;
+        }
+        try {
+            q = new Quantizer(bits, scale, offset, reserved);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        myLastDecoder = q;
+        return q;
+    }
+}
@@ -0,0 +1,205 @@
+package org.wg3.storage;
+
+import java.util.Arrays;
+
+/**
+ * Maps floats to 8 or 16 bit codes and back, value = offset + code * scale.
+ * Radar moments only have so much precision (0.5 dBZ, 0.5 m/s), so storing
+ * them as short codes instead of floats loses nothing.
+ *
+ * A few special values (such as DataType.MissingData) can be reserved, they
+ * get the top codes and always come back exactly. Data codes are the rest,
+ * from 0 up. Decoding is a table lookup, so it's the table that says what a
+ * code means, and a value round trips exactly if it's in the table (see
+ * isExact). Values already on the grid of offset + code * scale always are.
+ *
+ * Immutable, so shared freely between arrays and threads.
+ *
+ * @author Robert Toomey
+ *
+ */
+public final class Quantizer {
+
+    /**
+     * Most special values a quantizer can reserve
+     */
+    public static final int MAX_RESERVED = 32;
+
+    /**
+     * Codes are this many bits, 8 or 16
+     */
+    private final int myBits;
+    private final float myScale;
+    private final float myOffset;
+    /**
+     * The special values, reserved[i] has code myMaxCode - i
+     */
+    private final float[] myReserved;
+    /**
+     * Codes for data are 0 to myDataCodes - 1
+     */
+    private final int myDataCodes;
+    /**
+     * The biggest code, all bits set
+     */
+    private final int myMaxCode;
+    /**
+     * Value of every code
+     */
+    private final float[] myTable;
+
+    /**
+     * @param bits 8 or 16
+     * @param scale the step between codes, such as 0.5
+     * @param offset the value of code 0
+     * @param reserved special values to store exactly, at most MAX_RESERVED
+     */
+    public Quantizer(int bits, float scale, float offset, float... reserved) {
+        if ((bits != 8) && (bits != 16)) {
+            throw new IllegalArgumentException("Quantizer needs 8 or 16 bits, not " + bits);
+        }
+        if (!(scale > 0.0f) || Float.isInfinite(scale) || Float.isNaN(offset) || Float.isInfinite(offset)) {
+            throw new IllegalArgumentException("Bad quantizer scale " + scale + " or offset " + offset);
+        }
+        if (reserved.length > MAX_RESERVED) {
+            throw new IllegalArgumentException("At most " + MAX_RESERVED + " reserved values, not " + reserved.length);
+        }
+        myBits = bits;
+        myScale = scale;
+        myOffset = offset;
+        myReserved = reserved.clone();
+        myMaxCode = (1 << bits) - 1;
+        myDataCodes = myMaxCode + 1 - myReserved.length;
+        myTable = new float[myMaxCode + 1];
+        for (int code = 0; code < myDataCodes; code++) {
+            myTable[code] = myOffset + (code * myScale);
+        }
+        for (int i = 0; i < myReserved.length; i++) {
+            myTable[myMaxCode - i] = myReserved[i];
+        }
+    }
+
+    public int getBits() {
+        return myBits;
+    }
+
+    public float getScale() {
+        return myScale;
+    }
+
+    public float getOffset() {
+        return myOffset;
+    }
+
+    /**
+     * The special values, copied
+     */
+    public float[] getReserved() {
+        return myReserved.clone();
+    }
+
+    /**
+     * Smallest data value
+     */
+    public float getMinimum() {
+        return myTable[0];
+    }
+
+    /**
+     * Biggest data value
+     */
+    public float getMaximum() {
+        return myTable[myDataCodes - 1];
+    }
+
+    /**
+     * The code for value. Reserved values get their own code, anything else
+     * the nearest data code, clamped to the range. NaN gets the first
+     * reserved code, or code 0 without any
+     */
+    public int encode(float value) {
+        final int bits = Float.floatToIntBits(value);
+        final int code = nearestCode(value);
+        if (Float.floatToIntBits(myTable[code]) == bits) {
+            return code; // On the grid, most values
+        }
+        for (int i = 0; i < myReserved.length; i++) {
+            if (Float.floatToIntBits(myReserved[i]) == bits) {
+                return myMaxCode - i;
+            }
+        }
+        if (Float.isNaN(value)) {
+            return (myReserved.length > 0) ? myMaxCode : 0;
+        }
+        return code;
+    }
+
+    /**
+     * The nearest data code, clamped to the range
+     */
+    private int nearestCode(float value) {
+        final double code = Math.rint((value - (double) myOffset) / myScale);
+        if (!(code > 0.0)) {
+            return 0; // NaN too
+        }
+        if (code >= myDataCodes - 1) {
+            return myDataCodes - 1;
+        }
+        return (int) code;
+    }
+
+    /**
+     * The code for value if it comes back exactly (same bits), else -1
+     */
+    public int encodeExact(float value) {
+        final int code = encode(value);
+        if (Float.floatToIntBits(myTable[code]) != Float.floatToIntBits(value)) {
+            return -1;
+        }
+        return code;
+    }
+
+    /**
+     * Does value come back exactly?
+     */
+    public boolean isExact(float value) {
+        return encodeExact(value) >= 0;
+    }
+
+    /**
+     * The value of a code. Only the low bits count, so a signed byte or
+     * short can be passed as is
+     */
+    public float decode(int code) {
+        return myTable[code & myMaxCode];
+    }
+
+    /**
+     * Is this the quantizer these would make? Cheaper than making it
+     */
+    boolean matches(int bits, float scale, float offset, float[] reserved) {
+        return (bits == myBits) && (Float.floatToIntBits(scale) == Float.floatToIntBits(myScale))
+                && (Float.floatToIntBits(offset) == Float.floatToIntBits(myOffset))
+                && Arrays.equals(reserved, myReserved);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Quantizer)) {
+            return false;
+        }
+        Quantizer q = (Quantizer) o;
+        return q.matches(myBits, myScale, myOffset, myReserved);
+    }
+
+    @Override
+    public int hashCode() {
+        return (((myBits * 31) + Float.floatToIntBits(myScale)) * 31 + Float.floatToIntBits(myOffset)) * 31
+                + Arrays.hashCode(myReserved);
+    }
+
+    @Override
+    public String toString() {
+        return myBits + " bit, " + myOffset + " + code * " + myScale + ", " + myReserved.length + " reserved";
+    }
+}
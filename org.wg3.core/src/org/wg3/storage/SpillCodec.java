@@ -0,0 +1,48 @@
+package org.wg3.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A codec for DataNode data going to and from the spill store. The raw data
+ * is a tile's direct buffer, native order floats already shifted by
+ * DataNode.toBackground, so background values are stored as zero.
+ *
+ * The id of the codec is saved with the spilled data, so a tile always
+ * decodes with the codec it was written with, even if the codec for its
+ * array has changed since. See SpillCodecs for the available codecs.
+ *
+ * Codecs are shared between threads and must not keep per call state in
+ * fields.
+ *
+ * @author Robert Toomey
+ *
+ */
+public interface SpillCodec {
+
+    /**
+     * Small unique number saved with the encoded data
+     */
+    int getId();
+
+    /**
+     * Name for logging/GUI
+     */
+    String getName();
+
+    /**
+     * Encode the raw bytes from 0 to limit of src.
+     *
+     * @return buffer holding the encoded bytes from 0 to limit. This may be
+     * src itself or a buffer reused by the calling thread, so it is only good
+     * until the thread's next encode
+     */
+    ByteBuffer encode(ByteBuffer src);
+
+    /**
+     * Decode the encoded bytes from 0 to limit of src into the start of dst,
+     * which is rawLength bytes long.
+     *
+     * @return true if the data decoded to exactly rawLength bytes
+     */
+    boolean decode(ByteBuffer src, ByteBuffer dst, int rawLength);
+}
@@ -0,0 +1,141 @@
+package org.wg3.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The SpillCodecs we know about, and some buffer helpers they share.
+ *
+ * NONE is a straight copy. Fastest, no saving on disk.
+ * LZ is a byte oriented LZ77 (LZ4 style), good on runs and repeats.
+ * FLOAT_XOR XORs each float with the one before it and stores only the
+ * bytes that changed. Very good on smooth or quantized radar fields, and on
+ * sparse tiles where most values are the (zero stored) background.
+ * QUANTIZED stores 16 bit codes of 0.5 steps from -16384, falling back to
+ * FLOAT_XOR for tiles off that grid. Arrays that know their data should use
+ * a QuantizedSpillCodec of their own quantizer instead.
+ *
+ * @author Robert Toomey
+ *
+ */
+public final class SpillCodecs {
+
+    public static final SpillCodec NONE = new RawSpillCodec();
+    public static final SpillCodec LZ = new LZSpillCodec();
+    public static final SpillCodec FLOAT_XOR = new FloatXorSpillCodec();
+    public static final SpillCodec QUANTIZED = new QuantizedSpillCodec(new Quantizer(16, 0.5f, -16384.0f));
+    /**
+     * All the codecs, by id.  Every QuantizedSpillCodec shares an id, any of
+     * them decodes the others' tiles
+     */
+    private static final SpillCodec[] myCodecs = {NONE, LZ, FLOAT_XOR, QUANTIZED};
+    /**
+     * Per thread scratch space for encoding/decoding
+     */
+    private static final ThreadLocal<byte[][]> myScratch = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[2][];
+        }
+    };
+
+    private SpillCodecs() {
+    }
+
+    /**
+     * Get a codec by its id, or null if we don't know it
+     */
+    public static SpillCodec forId(int id) {
+        if ((id >= 0) && (id < myCodecs.length)) {
+            return myCodecs[id];
+        }
+        return null;
+    }
+
+    /**
+     * Get a codec by its name, or null if we don't know it
+     */
+    public static SpillCodec forName(String name) {
+        for (int i = 0; i < myCodecs.length; i++) {
+            if (myCodecs[i].getName().equalsIgnoreCase(name)) {
+                return myCodecs[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get a scratch array of at least the given size for this thread. Which
+     * picks one of two, so a codec can have an input and an output array.
+     */
+    static byte[] scratch(int which, int size) {
+        byte[][] s = myScratch.get();
+        if ((s[which] == null) || (s[which].length < size)) {
+            s[which] = new byte[size];
+        }
+        return s[which];
+    }
+
+    /**
+     * A native order view of the buffer from 0 to its limit. Views like
+     * duplicate() reset the order, and the float codec cares.
+     */
+    static ByteBuffer nativeView(ByteBuffer b) {
+        ByteBuffer v = b.duplicate();
+        v.rewind();
+        v.order(ByteOrder.nativeOrder());
+        return v;
+    }
+
+    /**
+     * Write an int little endian into b
+     */
+    static void writeInt(byte[] b, int at, int v) {
+        b[at] = (byte) v;
+        b[at + 1] = (byte) (v >>> 8);
+        b[at + 2] = (byte) (v >>> 16);
+        b[at + 3] = (byte) (v >>> 24);
+    }
+
+    /**
+     * Read a little endian int from b
+     */
+    static int readInt(byte[] b, int at) {
+        return (b[at] & 0xFF) | ((b[at + 1] & 0xFF) << 8)
+                | ((b[at + 2] & 0xFF) << 16) | ((b[at + 3] & 0xFF) << 24);
+    }
+
+    /**
+     * The straight copy codec
+     */
+    private static class RawSpillCodec implements SpillCodec {
+
+        @Override
+        public int getId() {
+            return 0;
+        }
+
+        @Override
+        public String getName() {
+            return "none";
+        }
+
+        @Override
+        public ByteBuffer encode(ByteBuffer src) {
+            return src;
+        }
+
+        @Override
+        public boolean decode(ByteBuffer src, ByteBuffer dst, int rawLength) {
+            ByteBuffer from = src.duplicate();
+            from.rewind();
+            if (from.remaining() != rawLength) {
+                return false;
+            }
+            ByteBuffer to = dst.duplicate();
+            to.clear();
+            to.put(from);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.wg3.storage;
+
+/**
+ * The shape of the tiles of an Array2DfloatAsTiles, and how values and
+ * tiles are laid out.
+ *
+ * Tiles can be square (good all round, and for panning around a grid in the
+ * GUI), wide (long runs along x, for code that scans x fastest) or tall (for
+ * scanning y fastest, such as paging a table a column at a time). A scan
+ * along the long side of a tile crosses fewer tiles.
+ *
+ * Inside a tile values are normally stored x fastest, y * width + x. With
+ * Morton elements they're stored in Z-order instead (the bits of x and y
+ * interleaved), so values near each other in 2D are near each other in the
+ * buffer whichever way you go. Morton tiles need power of two sides.
+ *
+ * With Morton tiles the tile keys are given out in Z-order too, so tiles
+ * next to each other in 2D get keys close together. The keys are just
+ * numbers to the cache, what it changes is the order a full traversal
+ * (reduceTiles) and the spill store see tiles in. A Z-order range needs a
+ * few more keys than there are tiles, see getKeyCount.
+ *
+ * @author Robert Toomey
+ *
+ */
+public final class TileGeometry {
+
+    /**
+     * Side of the default square tile, 40000 floats
+     */
+    public static final int DEFAULT_SIDE = 200;
+    /**
+     * What Array2DfloatAsTiles uses when not told otherwise
+     */
+    public static final TileGeometry DEFAULT = square(DEFAULT_SIDE);
+    /**
+     * Values along x in a tile
+     */
+    private final int myWidth;
+    /**
+     * Values along y in a tile
+     */
+    private final int myHeight;
+    private final boolean myMortonElements;
+    private final boolean myMortonTiles;
+    /**
+     * For Morton elements, bits of the shorter side. The longer side's
+     * extra bits go on top
+     */
+    private final int myElementBits;
+
+    private TileGeometry(int width, int height, boolean mortonElements, boolean mortonTiles) {
+        if ((width < 1) || (height < 1) || ((long) width * height > Integer.MAX_VALUE / 4)) {
+            throw new IllegalArgumentException("Bad tile size " + width + "x" + height);
+        }
+        if (mortonElements && (!isPowerOfTwo(width) || !isPowerOfTwo(height))) {
+            throw new IllegalArgumentException("Morton tiles need power of two sides, not "
+                    + width + "x" + height);
+        }
+        myWidth = width;
+        myHeight = height;
+        myMortonElements = mortonElements;
+        myMortonTiles = mortonTiles;
+        myElementBits = Integer.numberOfTrailingZeros(Math.min(width, height));
+    }
+
+    /**
+     * Square tiles of side by side values
+     */
+    public static TileGeometry square(int side) {
+        return new TileGeometry(side, side, false, false);
+    }
+
+    /**
+     * Tiles of width values along x by height along y. Wide tiles (width
+     * more than height) suit scans along x, tall ones scans along y.
+     */
+    public static TileGeometry of(int width, int height) {
+        return new TileGeometry(width, height, false, false);
+    }
+
+    /**
+     * The biggest square tile holding at most floats values, such as
+     * DataManager.getRecommendedNodeSize()
+     */
+    public static TileGeometry forNodeSize(int floats) {
+        return square(Math.max(1, (int) Math.floor(Math.sqrt(floats))));
+    }
+
+    /**
+     * The same shape with values stored in Z-order within each tile
+     */
+    public TileGeometry withMortonElements() {
+        return new TileGeometry(myWidth, myHeight, true, myMortonTiles);
+    }
+
+    /**
+     * The same shape with tile keys given out in Z-order
+     */
+    public TileGeometry withMortonTiles() {
+        return new TileGeometry(myWidth, myHeight, myMortonElements, true);
+    }
+
+    public int getWidth() {
+        return myWidth;
+    }
+
+    public int getHeight() {
+        return myHeight;
+    }
+
+    /**
+     * Number of floats in a tile
+     */
+    public int getSize() {
+        return myWidth * myHeight;
+    }
+
+    public boolean isMortonElements() {
+        return myMortonElements;
+    }
+
+    public boolean isMortonTiles() {
+        return myMortonTiles;
+    }
+
+    /**
+     * Where local x, y is stored in a tile
+     */
+    public int index(int x, int y) {
+        if (!myMortonElements) {
+            return (y * myWidth) + x;
+        }
+        return zOrder(x, y, myElementBits, myWidth > myHeight);
+    }
+
+    /**
+     * Key of a tile counted from the base key of the array
+     *
+     * @param numberX tiles across the array
+     * @param numberY tiles down the array
+     */
+    public int tileKey(int tileX, int tileY, int numberX, int numberY) {
+        if (!myMortonTiles) {
+            return (tileY * numberX) + tileX;
+        }
+        return zOrder(tileX, tileY, tileBits(numberX, numberY), numberX > numberY);
+    }
+
+    /**
+     * Number of keys an array of numberX by numberY tiles needs. Z-order is
+     * increasing in x and y, so it's one past the last tile's key
+     */
+    public int getKeyCount(int numberX, int numberY) {
+        return tileKey(numberX - 1, numberY - 1, numberX, numberY) + 1;
+    }
+
+    /**
+     * Bits of Z-order for a grid of tiles, enough to cover the shorter side
+     */
+    private static int tileBits(int numberX, int numberY) {
+        int shorter = Math.min(numberX, numberY);
+        return 32 - Integer.numberOfLeadingZeros(shorter - 1);
+    }
+
+    /**
+     * Z-order of x, y: the low bits of x and y interleaved (x in the even
+     * bits), then the rest of the longer side on top. Increasing in both x
+     * and y
+     *
+     * @param bits number of low bits interleaved, the shorter side must fit
+     * @param xLonger is x the longer side?
+     */
+    static int zOrder(int x, int y, int bits, boolean xLonger) {
+        int mask = (1 << bits) - 1;
+        int low = spread(x & mask) | (spread(y & mask) << 1);
+        int high = xLonger ? (x >>> bits) : (y >>> bits);
+        return low | (high << (2 * bits));
+    }
+
+    /**
+     * Spread the low 16 bits of v out to the even bits
+     */
+    private static int spread(int v) {
+        v &= 0x0000FFFF;
+        v = (v | (v << 8)) & 0x00FF00FF;
+        v = (v | (v << 4)) & 0x0F0F0F0F;
+        v = (v | (v << 2)) & 0x33333333;
+        v = (v | (v << 1)) & 0x55555555;
+        return v;
+    }
+
+    private static boolean isPowerOfTwo(int v) {
+        return (v & (v - 1)) == 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TileGeometry)) {
+            return false;
+        }
+        TileGeometry g = (TileGeometry) o;
+        return (g.myWidth == myWidth) && (g.myHeight == myHeight)
+                && (g.myMortonElements == myMortonElements) && (g.myMortonTiles == myMortonTiles);
+    }
+
+    @Override
+    public int hashCode() {
+        return (((myWidth * 31) + myHeight) * 4) + (myMortonElements ? 2 : 0) + (myMortonTiles ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return myWidth + "x" + myHeight + (myMortonElements ? " morton" : "")
+                + (myMortonTiles ? " z-keys" : "");
+    }
+}
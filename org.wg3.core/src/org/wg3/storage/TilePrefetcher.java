@@ -0,0 +1,152 @@
+package org.wg3.storage;
+
+/**
+ * Watches the order a tiled array touches its tiles and asks the DataManager
+ * to load the tiles it expects next, before they are needed.
+ *
+ * Tiles are numbered tileY * numberX + tileX (usually key order), so a scan along
+ * a row of tiles is a step of 1 (wrapping to the next row of tiles on its
+ * own), a scan down a column a step of numberX, and any other fixed stride
+ * is just some other step. Once the same step is seen twice in a row we
+ * trust it, and each new tile asks for the next few tiles along it.
+ *
+ * Calls for the same tile as last time return right away, so this can sit in
+ * a get/set path. Unsynchronized reads of the last tile are ok here, the
+ * worst a race can do is a missed or an extra prefetch.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class TilePrefetcher {
+
+    /**
+     * How many tiles ahead of the current one we ask for
+     */
+    public static final int DEFAULT_DEPTH = 2;
+    /**
+     * The DataManager partition the array's tiles are in
+     */
+    private final DataManager myManager;
+    /**
+     * The base key of the array's tiles
+     */
+    private final int myKeyBase;
+    /**
+     * The number of tiles the array has
+     */
+    private final int myTileCount;
+    /**
+     * Tile size in floats, passed on to the DataManager
+     */
+    private final int myTileSize;
+    /**
+     * The background of the array, passed on to the DataManager
+     */
+    private final float myBackground;
+    /**
+     * How many tiles ahead we prefetch
+     */
+    private final int myDepth;
+    /**
+     * The tile touched last
+     */
+    private volatile int myLastTile = -1;
+    /**
+     * The step between the last two tiles
+     */
+    private int myLastStep = 0;
+    /**
+     * Has myLastStep repeated? If so we follow it
+     */
+    private boolean myConfident = false;
+    /**
+     * Furthest tile we have asked for along the current step. Keeps us from
+     * asking for the same tiles over and over
+     */
+    private int myFurthestRequested = -1;
+
+    public TilePrefetcher(int keyBase, int tileCount, int tileSize, float background) {
+        this(DataManager.getInstance(), keyBase, tileCount, tileSize, background, DEFAULT_DEPTH);
+    }
+
+    public TilePrefetcher(int keyBase, int tileCount, int tileSize, float background, int depth) {
+        this(DataManager.getInstance(), keyBase, tileCount, tileSize, background, depth);
+    }
+
+    public TilePrefetcher(DataManager manager, int keyBase, int tileCount, int tileSize, float background) {
+        this(manager, keyBase, tileCount, tileSize, background, DEFAULT_DEPTH);
+    }
+
+    public TilePrefetcher(DataManager manager, int keyBase, int tileCount, int tileSize, float background, int depth) {
+        myManager = manager;
+        myKeyBase = keyBase;
+        myTileCount = tileCount;
+        myTileSize = tileSize;
+        myBackground = background;
+        myDepth = depth;
+    }
+
+    /**
+     * Tell the prefetcher a tile is being touched.
+     *
+     * @param tile the tile number, tileY * numberX + tileX
+     */
+    public void access(int tile) {
+        if (tile == myLastTile) {
+            return;
+        }
+        synchronized (this) {
+            int last = myLastTile;
+            myLastTile = tile;
+            if (last < 0) {
+                return;
+            }
+            int step = tile - last;
+            if (step != myLastStep) {
+                myLastStep = step;
+                myConfident = false;
+                myFurthestRequested = -1;
+                return;
+            }
+            myConfident = true;
+
+            // Ask for the tiles ahead we haven't asked for yet...
+            for (int i = 1; i <= myDepth; i++) {
+                int ahead = tile + (step * i);
+                if ((ahead < 0) || (ahead >= myTileCount)) {
+                    break;
+                }
+                if (alreadyRequested(ahead, step)) {
+                    continue;
+                }
+                myManager.prefetchTile(getKey(ahead), myTileSize, myBackground);
+                myFurthestRequested = ahead;
+            }
+        }
+    }
+
+    /**
+     * Get the key of a tile number. Tiles are keyed in number order unless
+     * the array says otherwise
+     */
+    protected int getKey(int tile) {
+        return myKeyBase + tile;
+    }
+
+    /**
+     * Have we asked for this tile already along the current step?
+     */
+    private boolean alreadyRequested(int tile, int step) {
+        if (myFurthestRequested < 0) {
+            return false;
+        }
+        return (step > 0) ? (tile <= myFurthestRequested) : (tile >= myFurthestRequested);
+    }
+
+    /**
+     * Are we currently following a detected pattern?
+     */
+    public synchronized boolean isFollowing() {
+        return myConfident;
+    }
+}
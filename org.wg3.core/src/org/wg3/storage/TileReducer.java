@@ -0,0 +1,24 @@
+package org.wg3.storage;
+
+/**
+ * A reduction over the tiles of a tiled array, see
+ * Array2DfloatAsTiles.reduceTiles. Each tile gives a result, and results are
+ * combined pairwise into one. Both methods are called from several threads,
+ * so keep state in the results, not in the reducer.
+ *
+ * @author Robert Toomey
+ *
+ * @param <R> the result type
+ */
+public interface TileReducer<R> {
+
+    /**
+     * Reduce one tile. Null means nothing to add
+     */
+    R visit(ArrayTile tile);
+
+    /**
+     * Combine two results. Neither is null
+     */
+    R combine(R a, R b);
+}
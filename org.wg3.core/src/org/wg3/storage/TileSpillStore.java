@@ -0,0 +1,842 @@
+package org.wg3.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.wg3.log.Logger;
+import org.wg3.log.LoggerFactory;
+
+/**
+ * The spill store is where DataNodes go when they are pushed out of RAM.
+ *
+ * Instead of a file per tile (a create, open and close per eviction) we keep a
+ * few large segment files and hand out fixed size 'slots' from them. By
+ * default a tile goes to its slot with a positional FileChannel write
+ * straight from its direct buffer, and comes back with a positional read
+ * straight into one, no streams and no extra copies. A mapped store maps the
+ * segments instead, then offloading is a copy into the mapped region and
+ * the OS pages the segments to disk on its own schedule.
+ *
+ * Slots come in size classes. A class is the byte size of a tile rounded up
+ * to a 4 KB page, so all the 200x200 tiles of an Array2DfloatAsTiles share a
+ * class, a radial array of 1000 gates another, etc. Each class owns its own
+ * segment files and a free slot stack, so freeing and reusing a slot is O(1)
+ * and there is never any fragmentation within a class.
+ *
+ * Each slot remembers the id of the SpillCodec its bytes were encoded with.
+ * The slot starts with a header of the key, length, codec and a checksum of
+ * the bytes, checked on every read. A short or corrupt read is tried once
+ * more, then the read fails, so the caller never sees garbage. The key is
+ * kept, so a later read can try again and its data never turns into
+ * background without anybody knowing.
+ *
+ * A store can be persistent (see TileStoreIndex), then its segment files are
+ * kept at exit and its slots can be listed and restored.
+ *
+ * Copies happen outside the store lock. This is safe since a slot belongs to
+ * exactly one key, and the node for that key already serializes its own
+ * reads and writes.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class TileSpillStore {
+
+    private final static Logger LOG = LoggerFactory.getLogger(TileSpillStore.class);
+    /**
+     * Slots are rounded up to this many bytes (one page)
+     */
+    private static final int PAGE_BYTES = 4096;
+    /**
+     * Default size in bytes we try to make each segment file. Classes with
+     * slots bigger than this get one slot per segment
+     */
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    /**
+     * Segment files are named this, then slot size and number
+     */
+    public static final String SEGMENT_PREFIX = "spill-";
+    /**
+     * Bytes of the header at the start of each slot: magic, key, length,
+     * codec and checksum
+     */
+    static final int HEADER_BYTES = 20;
+    private static final int SLOT_MAGIC = 0x57475331; // WGS1
+    /**
+     * Returned by read for a key whose stored bytes didn't check out
+     */
+    public static final int CORRUPT = -2;
+
+    /**
+     * Where a key's data is, for saving and restoring a persistent store
+     */
+    static class SlotRecord {
+
+        final int key;
+        final int slotBytes;
+        final int index;
+        final int length;
+        final int codec;
+
+        SlotRecord(int k, int b, int i, int l, int c) {
+            key = k;
+            slotBytes = b;
+            index = i;
+            length = l;
+            codec = c;
+        }
+    }
+
+    /**
+     * Where a key's data currently lives in the store
+     */
+    private static class Slot {
+
+        /**
+         * The size class the slot belongs to
+         */
+        final SizeClass sizeClass;
+        /**
+         * The slot number within the size class (across all segments)
+         */
+        final int index;
+        /**
+         * Number of bytes actually stored in the slot
+         */
+        int length;
+        /**
+         * Id of the codec the bytes were encoded with
+         */
+        int codec;
+
+        Slot(SizeClass c, int i) {
+            sizeClass = c;
+            index = i;
+        }
+    }
+
+    /**
+     * A size class, a group of segment files all cut into slots of the same
+     * byte size
+     */
+    private class SizeClass {
+
+        /**
+         * Bytes in each slot
+         */
+        final int slotBytes;
+        /**
+         * Slots we put in a single segment file
+         */
+        final int slotsPerSegment;
+        /**
+         * The mapped segments, in slot order. Empty unless mapped
+         */
+        final ArrayList<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+        /**
+         * The channels of the segment files, in slot order
+         */
+        final ArrayList<FileChannel> channels = new ArrayList<FileChannel>();
+        /**
+         * The segment files, in slot order
+         */
+        final ArrayList<File> files = new ArrayList<File>();
+        /**
+         * Stack of freed slot numbers ready for reuse
+         */
+        int[] freeSlots = new int[16];
+        int freeCount = 0;
+        /**
+         * Next never used slot number
+         */
+        int nextSlot = 0;
+
+        SizeClass(int bytes) {
+            slotBytes = bytes;
+            slotsPerSegment = Math.max(1, mySegmentBytes / bytes);
+        }
+
+        /**
+         * Get a slot number, reusing a freed one if we can. Store lock held
+         */
+        int allocate() throws IOException {
+            if (freeCount > 0) {
+                return freeSlots[--freeCount];
+            }
+            int slot = nextSlot;
+            if (slot / slotsPerSegment >= files.size()) {
+                addSegment(this);
+            }
+            nextSlot++;
+            return slot;
+        }
+
+        /**
+         * Give a slot number back to the class. Store lock held
+         */
+        void free(int slot) {
+            if (freeCount == freeSlots.length) {
+                int[] bigger = new int[freeSlots.length * 2];
+                System.arraycopy(freeSlots, 0, bigger, 0, freeCount);
+                freeSlots = bigger;
+            }
+            freeSlots[freeCount++] = slot;
+        }
+
+        /**
+         * Get a private view of the mapped bytes for a slot, from 0 to
+         * length. The slice keeps position/limit changes away from other
+         * threads
+         */
+        ByteBuffer view(int slot, int length) {
+            ByteBuffer segment;
+            synchronized (myStoreLock) {
+                segment = segments.get(slot / slotsPerSegment).duplicate();
+            }
+            int start = (slot % slotsPerSegment) * slotBytes;
+            segment.limit(start + length);
+            segment.position(start);
+            return segment.slice();
+        }
+
+        /**
+         * The channel of the segment file holding a slot
+         */
+        FileChannel channel(int slot) {
+            synchronized (myStoreLock) {
+                return channels.get(slot / slotsPerSegment);
+            }
+        }
+
+        /**
+         * Where a slot starts in its segment file
+         */
+        long position(int slot) {
+            return (long) (slot % slotsPerSegment) * slotBytes;
+        }
+    }
+    /**
+     * Lock for the slot lookup and the size classes
+     */
+    private final Object myStoreLock = new Object();
+    /**
+     * The directory holding our segment files
+     */
+    private final File myDirectory;
+    /**
+     * The target byte size of a segment file
+     */
+    private final int mySegmentBytes;
+    /**
+     * Size classes by slot byte size
+     */
+    private final HashMap<Integer, SizeClass> myClasses = new HashMap<Integer, SizeClass>();
+    /**
+     * The slot each spilled key is stored in
+     */
+    private final HashMap<Integer, Slot> mySlots = new HashMap<Integer, Slot>();
+    /**
+     * Open files behind the segments by path, closed on close()
+     */
+    private final HashMap<File, RandomAccessFile> myFiles = new HashMap<File, RandomAccessFile>();
+    /**
+     * Do the segment files outlive us?
+     */
+    private final boolean myPersistent;
+    /**
+     * Are the segments mapped, or read and written through their channels?
+     */
+    private final boolean myMapped;
+    /**
+     * Reads that failed their check even after a retry
+     */
+    private final AtomicLong myCorruptReads = new AtomicLong();
+    /**
+     * Per thread buffer for reading stored bytes through a channel
+     */
+    private final ThreadLocal<ByteBuffer> myReadBuffer = new ThreadLocal<ByteBuffer>();
+
+    public TileSpillStore(File directory) {
+        this(directory, DEFAULT_SEGMENT_BYTES, false);
+    }
+
+    public TileSpillStore(File directory, int segmentBytes) {
+        this(directory, segmentBytes, false);
+    }
+
+    public TileSpillStore(File directory, int segmentBytes, boolean persistent) {
+        this(directory, segmentBytes, persistent, false);
+    }
+
+    /**
+     * @param mapped map the segments instead of using positional reads and
+     * writes
+     */
+    public TileSpillStore(File directory, int segmentBytes, boolean persistent, boolean mapped) {
+        myDirectory = directory;
+        mySegmentBytes = segmentBytes;
+        myPersistent = persistent;
+        myMapped = mapped;
+    }
+
+    /**
+     * Create (and map if we map) the next segment file for a size class.
+     * Store lock held
+     */
+    private void addSegment(SizeClass c) throws IOException {
+        File f = new File(myDirectory, SEGMENT_PREFIX + c.slotBytes + "-" + c.files.size() + ".seg");
+        long bytes = (long) c.slotBytes * c.slotsPerSegment;
+        RandomAccessFile file = new RandomAccessFile(f, "rw");
+        if (!myPersistent) {
+            f.deleteOnExit();
+        }
+        try {
+            if (file.length() < bytes) {
+                file.setLength(bytes);
+            }
+            if (myMapped) {
+                c.segments.add(file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes));
+            }
+            myFiles.put(f, file);
+            c.channels.add(file.getChannel());
+            c.files.add(f);
+            LOG.info((myMapped ? "Mapped" : "Opened") + " spill segment " + f.getName() + " (" + (bytes / 1024) + " KB)");
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Round a byte size up to the slot size of its class
+     */
+    private static int toSlotBytes(int length) {
+        int pages = (length + PAGE_BYTES - 1) / PAGE_BYTES;
+        return Math.max(1, pages) * PAGE_BYTES;
+    }
+
+    /**
+     * Store the raw bytes from 0 to limit of data under the given key
+     */
+    public boolean write(int key, ByteBuffer data) {
+        return write(key, data, SpillCodecs.NONE.getId());
+    }
+
+    /**
+     * Store the bytes from 0 to limit of data under the given key, replacing
+     * anything stored for that key already. The data buffer's position is
+     * not changed.
+     *
+     * @param codec the id of the SpillCodec data was encoded with
+     * @return true if stored. If not, nothing is stored for the key any more
+     */
+    public boolean write(int key, ByteBuffer data, int codec) {
+        final int length = data.limit();
+        final int slotBytes = toSlotBytes(length + HEADER_BYTES);
+        Slot slot;
+        Slot old = null;
+        boolean newSlot = false;
+        try {
+            synchronized (myStoreLock) {
+                slot = mySlots.get(key);
+                if ((slot == null) || (slot.sizeClass.slotBytes != slotBytes)) {
+                    old = slot;
+                    SizeClass c = myClasses.get(slotBytes);
+                    if (c == null) {
+                        c = new SizeClass(slotBytes);
+                        myClasses.put(slotBytes, c);
+                    }
+                    slot = new Slot(c, c.allocate());
+                    newSlot = true;
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Can't allocate spill slot for tile " + key + " " + e);
+            synchronized (myStoreLock) {
+                if ((old != null) && (mySlots.get(key) == old)) {
+                    mySlots.remove(key); // Stale now
+                    old.sizeClass.free(old.index);
+                }
+            }
+            return false;
+        }
+
+        // The copy itself, no lock needed since the slot is ours
+        ByteBuffer src = data.duplicate();
+        src.rewind();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(SLOT_MAGIC).putInt(key).putInt(length).putInt(codec).putInt(checksum(src));
+        header.flip();
+        try {
+            if (myMapped) {
+                ByteBuffer view = slot.sizeClass.view(slot.index, HEADER_BYTES + length);
+                view.put(header);
+                view.put(src);
+            } else {
+                // Bytes first, a torn write then fails the checksum
+                FileChannel channel = slot.sizeClass.channel(slot.index);
+                long at = slot.sizeClass.position(slot.index);
+                writeFully(channel, src, at + HEADER_BYTES);
+                writeFully(channel, header, at);
+            }
+        } catch (IOException e) {
+            LOG.error("Can't write spill slot for tile " + key + " " + e);
+            synchronized (myStoreLock) {
+                // The stored copy is stale (or half written over), so the
+                // key goes too and a read finds nothing rather than old data
+                Slot stored = newSlot ? old : slot;
+                if ((stored != null) && (mySlots.get(key) == stored)) {
+                    mySlots.remove(key);
+                    stored.sizeClass.free(stored.index);
+                }
+                if (newSlot) {
+                    slot.sizeClass.free(slot.index);
+                }
+            }
+            return false;
+        }
+
+        synchronized (myStoreLock) {
+            slot.length = length;
+            slot.codec = codec;
+            if (newSlot) {
+                mySlots.put(key, slot);
+                if (old != null) {
+                    old.sizeClass.free(old.index);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy the bytes stored for a key into the start of the given buffer,
+     * which must hold them all.
+     *
+     * @return number of bytes read, -1 if nothing stored for the key, or
+     * CORRUPT if the bytes didn't check out
+     */
+    public int read(int key, ByteBuffer into) {
+        Slot slot;
+        synchronized (myStoreLock) {
+            slot = mySlots.get(key);
+            if (slot == null) {
+                return -1;
+            }
+        }
+        if (slot.length > into.capacity()) {
+            LOG.error("Stored tile " + key + " is " + slot.length + " bytes, more than " + into.capacity());
+            return CORRUPT;
+        }
+        ByteBuffer dst = into.duplicate();
+        dst.clear();
+        dst.limit(slot.length);
+        if ((readChecked(key, slot, dst) != null) || (readChecked(key, slot, dst) != null)) {
+            return slot.length;
+        }
+        badRead(key);
+        return CORRUPT;
+    }
+
+    /**
+     * Get the bytes stored for a key, from 0 to limit. For a mapped store
+     * this is a view of the slot, only good until the key is written or
+     * removed again. Otherwise it's read into a buffer kept by the calling
+     * thread, only good until the thread's next getStored.
+     *
+     * @return the bytes, or null if nothing is stored for the key or the
+     * bytes didn't check out
+     */
+    public ByteBuffer getStored(int key) {
+        Slot slot;
+        synchronized (myStoreLock) {
+            slot = mySlots.get(key);
+            if (slot == null) {
+                return null;
+            }
+        }
+        ByteBuffer dst = null;
+        if (!myMapped) {
+            dst = myReadBuffer.get();
+            if ((dst == null) || (dst.capacity() < slot.length)) {
+                dst = ByteBuffer.allocateDirect(toSlotBytes(slot.length));
+                myReadBuffer.set(dst);
+            }
+            dst.clear();
+            dst.limit(slot.length);
+        }
+        ByteBuffer stored = readChecked(key, slot, dst);
+        if (stored == null) {
+            stored = readChecked(key, slot, dst);
+        }
+        if (stored == null) {
+            badRead(key);
+        }
+        return stored;
+    }
+
+    /**
+     * Read a slot's bytes into dst, from 0 to its limit (the stored
+     * length), and check them against the slot header. A mapped store can
+     * pass a null dst to check the slot's own bytes.
+     *
+     * @return the checked bytes from 0 to limit, or null if they're bad
+     */
+    private ByteBuffer readChecked(int key, Slot slot, ByteBuffer dst) {
+        ByteBuffer header;
+        ByteBuffer bytes;
+        try {
+            if (myMapped) {
+                ByteBuffer view = slot.sizeClass.view(slot.index, HEADER_BYTES + slot.length);
+                view.limit(HEADER_BYTES);
+                header = view.slice();
+                view.limit(HEADER_BYTES + slot.length);
+                view.position(HEADER_BYTES);
+                bytes = view.slice();
+                if (dst != null) {
+                    dst.clear();
+                    dst.put(bytes);
+                    bytes = dst;
+                }
+            } else {
+                FileChannel channel = slot.sizeClass.channel(slot.index);
+                long at = slot.sizeClass.position(slot.index);
+                header = ByteBuffer.allocate(HEADER_BYTES);
+                readFully(channel, header, at);
+                dst.rewind();
+                readFully(channel, dst, at + HEADER_BYTES);
+                bytes = dst;
+            }
+        } catch (IOException e) {
+            LOG.error("Can't read spill slot for tile " + key + " " + e);
+            return null;
+        }
+        header.rewind();
+        bytes.rewind();
+        if ((header.getInt() != SLOT_MAGIC) || (header.getInt() != key)
+                || (header.getInt() != slot.length) || (header.getInt() != slot.codec)) {
+            LOG.error("Spill slot header doesn't match tile " + key);
+            return null;
+        }
+        if (header.getInt() != checksum(bytes)) {
+            LOG.error("Spill slot checksum is wrong for tile " + key);
+            return null;
+        }
+        return bytes;
+    }
+
+    /**
+     * Count a read that failed its check twice. The key keeps its slot
+     * until written or removed
+     */
+    private void badRead(int key) {
+        myCorruptReads.incrementAndGet();
+        LOG.error("Spilled data for tile " + key + " is corrupt or unreadable");
+    }
+
+    /**
+     * Write all of src at a position, a channel write can stop short
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        long at = position;
+        while (src.hasRemaining()) {
+            at += channel.write(src, at);
+        }
+    }
+
+    /**
+     * Read dst full from a position
+     *
+     * @throws IOException if the file ends first
+     */
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        long at = position;
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, at);
+            if (n < 0) {
+                throw new IOException("short read at " + at);
+            }
+            at += n;
+        }
+    }
+
+    /**
+     * A checksum of the bytes from 0 to limit, a long at a time. Java 6's
+     * CRC32 only takes arrays, this works on direct and mapped buffers
+     * without a copy
+     */
+    static int checksum(ByteBuffer b) {
+        final ByteBuffer v = b.duplicate();
+        v.order(ByteOrder.LITTLE_ENDIAN);
+        final int length = v.limit();
+        long h = 0x9E3779B97F4A7C15L ^ length;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            h ^= v.getLong(i);
+            h *= 0xC2B2AE3D27D4EB4FL;
+            h ^= h >>> 31;
+        }
+        for (; i < length; i++) {
+            h ^= v.get(i) & 0xFF;
+            h *= 0xC2B2AE3D27D4EB4FL;
+        }
+        h ^= h >>> 33;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Number of reads that failed their check even after a retry
+     */
+    public long getCorruptReads() {
+        return myCorruptReads.get();
+    }
+
+    /**
+     * Get the id of the codec the bytes for a key were written with, or -1 if
+     * nothing stored for the key
+     */
+    public int getStoredCodec(int key) {
+        synchronized (myStoreLock) {
+            Slot slot = mySlots.get(key);
+            return (slot == null) ? -1 : slot.codec;
+        }
+    }
+
+    /**
+     * Is anything stored for this key?
+     */
+    public boolean contains(int key) {
+        synchronized (myStoreLock) {
+            return mySlots.containsKey(key);
+        }
+    }
+
+    /**
+     * Forget a key and give its slot back for reuse
+     */
+    public void remove(int key) {
+        synchronized (myStoreLock) {
+            Slot slot = mySlots.remove(key);
+            if (slot != null) {
+                slot.sizeClass.free(slot.index);
+            }
+        }
+    }
+
+    /**
+     * Delete the segment files of size classes with nothing stored in them,
+     * after a big remove such as a released array. Not done on every remove,
+     * a class that empties and fills again would keep making files.
+     *
+     * The mappings aren't unmapped by hand, a reader could still be copying
+     * out of one, they go when the GC collects them. Until then the disk
+     * space is only reclaimed where the OS allows deleting a mapped file.
+     *
+     * @return number of files deleted
+     */
+    public int dropEmptyClasses() {
+        ArrayList<File> dropped = new ArrayList<File>();
+        synchronized (myStoreLock) {
+            Iterator<SizeClass> i = myClasses.values().iterator();
+            while (i.hasNext()) {
+                SizeClass c = i.next();
+                if ((c.freeCount == c.nextSlot) && !c.files.isEmpty()) {
+                    for (File f : c.files) {
+                        RandomAccessFile file = myFiles.remove(f);
+                        try {
+                            if (file != null) {
+                                file.close();
+                            }
+                        } catch (IOException e) {
+                            LOG.error("Error closing spill segment " + e);
+                        }
+                        dropped.add(f);
+                    }
+                    i.remove();
+                }
+            }
+        }
+        int deleted = 0;
+        for (File f : dropped) {
+            if (f.delete()) {
+                deleted++;
+            } else {
+                f.deleteOnExit();
+            }
+        }
+        if (deleted > 0) {
+            LOG.info("Deleted " + deleted + " empty spill segments");
+        }
+        return deleted;
+    }
+
+    /**
+     * Number of keys currently stored
+     */
+    public int getStoredCount() {
+        synchronized (myStoreLock) {
+            return mySlots.size();
+        }
+    }
+
+    /**
+     * Total bytes of segment files we have, mapped or not
+     */
+    public long getMappedBytes() {
+        long total = 0;
+        synchronized (myStoreLock) {
+            Iterator<SizeClass> i = myClasses.values().iterator();
+            while (i.hasNext()) {
+                SizeClass c = i.next();
+                total += (long) c.files.size() * c.slotsPerSegment * c.slotBytes;
+            }
+        }
+        return total;
+    }
+
+    public int getSegmentBytes() {
+        return mySegmentBytes;
+    }
+
+    public boolean isPersistent() {
+        return myPersistent;
+    }
+
+    /**
+     * List where every stored key is, for saving a persistent store
+     */
+    List<SlotRecord> getSlots() {
+        ArrayList<SlotRecord> list = new ArrayList<SlotRecord>();
+        synchronized (myStoreLock) {
+            Iterator<Map.Entry<Integer, Slot>> i = mySlots.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<Integer, Slot> e = i.next();
+                Slot s = e.getValue();
+                list.add(new SlotRecord(e.getKey(), s.sizeClass.slotBytes, s.index, s.length, s.codec));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Put back the slots saved by a persistent store, mapping the segment
+     * files they're in. Slots not listed are free for reuse. Call on an
+     * empty store only.
+     */
+    void restore(List<SlotRecord> slots) throws IOException {
+        synchronized (myStoreLock) {
+            // Check it all before touching anything
+            HashMap<Integer, Integer> highest = new HashMap<Integer, Integer>();
+            for (SlotRecord r : slots) {
+                if ((r.slotBytes != toSlotBytes(r.slotBytes)) || (r.index < 0)
+                        || (r.length < 0) || (r.length + HEADER_BYTES > r.slotBytes)) {
+                    throw new IOException("bad slot for tile " + r.key);
+                }
+                Integer h = highest.get(r.slotBytes);
+                if ((h == null) || (r.index > h)) {
+                    highest.put(r.slotBytes, r.index);
+                }
+            }
+            HashMap<Integer, boolean[]> used = new HashMap<Integer, boolean[]>();
+            Iterator<Map.Entry<Integer, Integer>> i = highest.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<Integer, Integer> e = i.next();
+                used.put(e.getKey(), new boolean[e.getValue() + 1]);
+            }
+            for (SlotRecord r : slots) {
+                boolean[] u = used.get(r.slotBytes);
+                if (u[r.index]) {
+                    throw new IOException("slot used twice by tile " + r.key);
+                }
+                u[r.index] = true;
+            }
+
+            // Map each class far enough for its highest slot
+            Iterator<Map.Entry<Integer, boolean[]>> ui = used.entrySet().iterator();
+            while (ui.hasNext()) {
+                Map.Entry<Integer, boolean[]> e = ui.next();
+                SizeClass c = new SizeClass(e.getKey());
+                c.nextSlot = e.getValue().length;
+                int segments = (c.nextSlot + c.slotsPerSegment - 1) / c.slotsPerSegment;
+                while (c.files.size() < segments) {
+                    addSegment(c);
+                }
+                myClasses.put(c.slotBytes, c);
+            }
+            for (SlotRecord r : slots) {
+                SizeClass c = myClasses.get(r.slotBytes);
+                Slot s = new Slot(c, r.index);
+                s.length = r.length;
+                s.codec = r.codec;
+                mySlots.put(r.key, s);
+            }
+
+            // Gaps left by slots we didn't keep are free
+            Iterator<SizeClass> ci = myClasses.values().iterator();
+            while (ci.hasNext()) {
+                SizeClass c = ci.next();
+                boolean[] u = used.get(c.slotBytes);
+                for (int s = u.length - 1; s >= 0; s--) {
+                    if (!u[s]) {
+                        c.free(s);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Make sure everything written so far is on disk
+     */
+    public void force() {
+        synchronized (myStoreLock) {
+            Iterator<SizeClass> i = myClasses.values().iterator();
+            while (i.hasNext()) {
+                SizeClass c = i.next();
+                for (MappedByteBuffer b : c.segments) {
+                    b.force();
+                }
+                if (!myMapped) {
+                    for (FileChannel channel : c.channels) {
+                        try {
+                            channel.force(false);
+                        } catch (IOException e) {
+                            LOG.error("Can't force spill segment " + e);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Close all segment files and forget every key. The store starts over
+     * empty if used again
+     */
+    public void close() {
+        synchronized (myStoreLock) {
+            Iterator<RandomAccessFile> i = myFiles.values().iterator();
+            while (i.hasNext()) {
+                try {
+                    i.next().close();
+                } catch (IOException e) {
+                    LOG.error("Error closing spill segment " + e);
+                }
+            }
+            myFiles.clear();
+            myClasses.clear();
+            mySlots.clear();
+        }
+    }
+}
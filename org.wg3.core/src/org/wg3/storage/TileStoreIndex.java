@@ -0,0 +1,440 @@
+package org.wg3.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.wg3.log.Logger;
+import org.wg3.log.LoggerFactory;
+
+/**
+ * The index of a persistent TileSpillStore, so spilled tiles survive a
+ * restart.
+ *
+ * Tiles are normally keyed by a counter that starts over every run, so
+ * nothing in the spill store means anything to the next run. A product that
+ * wants its tiles back asks DataManager for a key range by name
+ * (getTileKeyRange), the name being something that identifies the product
+ * across runs, such as its source file and field. The index remembers which
+ * range each name got, and which spill slot each key of those ranges is in.
+ *
+ * The index is written at a clean shutdown, along with the list of tiles
+ * that were in RAM at the time (the 'hot' tiles), which are loaded back in
+ * the background on the next start. The index file is deleted as soon as
+ * it's read, since slots get reused while running. So after a crash there's
+ * no index, and the segment files are thrown away instead of trusted.
+ *
+ * Only ranges marked complete by their owner are saved, a half filled
+ * product isn't worth coming back to. Ranges not asked for in maxAgeDays are
+ * dropped, so the store doesn't grow forever.
+ *
+ * The slots hold codec output in native byte order, so the store isn't
+ * meant to be shared between machines. The index remembers the byte order
+ * and is ignored if it changed.
+ *
+ * @author Robert Toomey
+ *
+ */
+public class TileStoreIndex {
+
+    private final static Logger LOG = LoggerFactory.getLogger(TileStoreIndex.class);
+    /**
+     * The index file in the store directory
+     */
+    public static final String INDEX_FILE = "tiles.idx";
+    /**
+     * Held locked while a DataManager uses the directory
+     */
+    public static final String LOCK_FILE = "store.lock";
+    private static final int MAGIC = 0x57473354; // WG3T
+    private static final int VERSION = 2;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    /**
+     * A named range of tile keys
+     */
+    static class KeyRange {
+
+        final String identity;
+        final int base;
+        final int count;
+        /**
+         * When the range was last asked for
+         */
+        long lastUsed;
+        /**
+         * Was the range restored from the last run?
+         */
+        boolean restored;
+        /**
+         * Has the owner filled the range, so it's worth saving?
+         */
+        boolean complete;
+
+        KeyRange(String id, int b, int c) {
+            identity = id;
+            base = b;
+            count = c;
+        }
+
+        boolean contains(int key) {
+            return (key >= base) && (key - base < count);
+        }
+    }
+
+    /**
+     * A tile that was in RAM at shutdown, enough to make its DataNode again
+     */
+    static class HotTile {
+
+        final int key;
+        final int size;
+        final float background;
+
+        HotTile(int k, int s, float b) {
+            key = k;
+            size = s;
+            background = b;
+        }
+    }
+    private final File myDirectory;
+    private final long myMaxAgeMillis;
+    /**
+     * Ranges by name
+     */
+    private final HashMap<String, KeyRange> myRanges = new HashMap<String, KeyRange>();
+    /**
+     * Ranges by first key, to find the range of a key
+     */
+    private final TreeMap<Integer, KeyRange> myRangesByBase = new TreeMap<Integer, KeyRange>();
+    /**
+     * The hot tiles from the last run, most recently used first
+     */
+    private final ArrayList<HotTile> myHotTiles = new ArrayList<HotTile>();
+    /**
+     * The first key after all the ranges we restored
+     */
+    private int myNextKey = Integer.MIN_VALUE;
+    private RandomAccessFile myLockFile;
+    private FileLock myLock;
+
+    public TileStoreIndex(File directory, int maxAgeDays) {
+        myDirectory = directory;
+        myMaxAgeMillis = maxAgeDays * DAY_MILLIS;
+    }
+
+    /**
+     * Lock the store directory for us, so two displays don't share it
+     *
+     * @return false if somebody else has it or it can't be made
+     */
+    public boolean lock() {
+        try {
+            if (!myDirectory.isDirectory() && !myDirectory.mkdirs()) {
+                LOG.error("Can't create tile store " + myDirectory.getAbsolutePath());
+                return false;
+            }
+            myLockFile = new RandomAccessFile(new File(myDirectory, LOCK_FILE), "rw");
+            myLock = myLockFile.getChannel().tryLock();
+            if (myLock == null) {
+                LOG.error("Tile store " + myDirectory.getAbsolutePath() + " is in use by another display");
+                myLockFile.close();
+                myLockFile = null;
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.error("Can't lock tile store " + myDirectory.getAbsolutePath() + " " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Let go of the store directory
+     */
+    public void unlock() {
+        try {
+            if (myLock != null) {
+                myLock.release();
+                myLock = null;
+            }
+            if (myLockFile != null) {
+                myLockFile.close();
+                myLockFile = null;
+            }
+        } catch (IOException e) {
+            LOG.error("Error unlocking tile store " + e);
+        }
+    }
+
+    public File getDirectory() {
+        return myDirectory;
+    }
+
+    /**
+     * Read the index left by the last clean shutdown into the store and
+     * delete it. With no good index the segment files are deleted instead,
+     * and we start empty.
+     *
+     * @param store an empty store on our directory
+     * @return number of tiles restored
+     */
+    public int load(TileSpillStore store) {
+        File f = new File(myDirectory, INDEX_FILE);
+        int restored = 0;
+        if (f.exists()) {
+            try {
+                restored = read(f, store);
+            } catch (IOException e) {
+                LOG.error("Tile store index " + f.getAbsolutePath() + " is bad, starting empty: " + e);
+                store.close();
+                restored = -1;
+            }
+            if (!f.delete()) {
+                LOG.error("Can't delete tile store index " + f.getAbsolutePath());
+            }
+        } else {
+            restored = -1;
+        }
+        if (restored < 0) {
+            clear();
+            deleteSegments();
+            restored = 0;
+        }
+        return restored;
+    }
+
+    private int read(File f, TileSpillStore store) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                throw new IOException("not a version " + VERSION + " index");
+            }
+            boolean bigEndian = in.readBoolean();
+            if (bigEndian != (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN)) {
+                throw new IOException("written with the other byte order");
+            }
+            if (in.readInt() != store.getSegmentBytes()) {
+                throw new IOException("segment size changed");
+            }
+            long now = System.currentTimeMillis();
+            int ranges = in.readInt();
+            for (int i = 0; i < ranges; i++) {
+                KeyRange r = new KeyRange(in.readUTF(), in.readInt(), in.readInt());
+                r.lastUsed = in.readLong();
+                r.restored = true;
+                r.complete = true;
+                if (now - r.lastUsed <= myMaxAgeMillis) {
+                    addRange(r);
+                }
+            }
+
+            // Only slots of ranges we kept come back, the rest become free
+            ArrayList<TileSpillStore.SlotRecord> slots = new ArrayList<TileSpillStore.SlotRecord>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                TileSpillStore.SlotRecord s = new TileSpillStore.SlotRecord(in.readInt(),
+                        in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                slots.add(s);
+            }
+            int hot = in.readInt();
+            for (int i = 0; i < hot; i++) {
+                HotTile h = new HotTile(in.readInt(), in.readInt(), in.readFloat());
+                if (getRange(h.key) != null) {
+                    myHotTiles.add(h);
+                }
+            }
+            ArrayList<TileSpillStore.SlotRecord> kept = new ArrayList<TileSpillStore.SlotRecord>();
+            Iterator<TileSpillStore.SlotRecord> i = slots.iterator();
+            while (i.hasNext()) {
+                TileSpillStore.SlotRecord s = i.next();
+                if (getRange(s.key) != null) {
+                    kept.add(s);
+                }
+            }
+            store.restore(kept);
+            LOG.info("Tile store restored " + myRanges.size() + " products, "
+                    + kept.size() + " tiles, " + myHotTiles.size() + " hot");
+            return kept.size();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the index for the next run. Only complete ranges and their slots
+     * are saved. The segments should be forced to disk first.
+     *
+     * @param hot tiles in RAM now, most recently used first
+     */
+    public boolean save(TileSpillStore store, List<HotTile> hot) {
+        File f = new File(myDirectory, INDEX_FILE);
+        File temp = new File(myDirectory, INDEX_FILE + ".tmp");
+        try {
+            ArrayList<KeyRange> ranges = new ArrayList<KeyRange>();
+            synchronized (this) {
+                Iterator<KeyRange> i = myRanges.values().iterator();
+                while (i.hasNext()) {
+                    KeyRange r = i.next();
+                    if (r.complete) {
+                        ranges.add(r);
+                    }
+                }
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            int slotCount = 0;
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeBoolean(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN);
+                out.writeInt(store.getSegmentBytes());
+                out.writeInt(ranges.size());
+                for (KeyRange r : ranges) {
+                    out.writeUTF(r.identity);
+                    out.writeInt(r.base);
+                    out.writeInt(r.count);
+                    out.writeLong(r.lastUsed);
+                }
+                ArrayList<TileSpillStore.SlotRecord> slots = new ArrayList<TileSpillStore.SlotRecord>();
+                Iterator<TileSpillStore.SlotRecord> s = store.getSlots().iterator();
+                while (s.hasNext()) {
+                    TileSpillStore.SlotRecord r = s.next();
+                    KeyRange range = getRange(r.key);
+                    if ((range != null) && range.complete) {
+                        slots.add(r);
+                    }
+                }
+                out.writeInt(slots.size());
+                for (TileSpillStore.SlotRecord r : slots) {
+                    out.writeInt(r.key);
+                    out.writeInt(r.slotBytes);
+                    out.writeInt(r.index);
+                    out.writeInt(r.length);
+                    out.writeInt(r.codec);
+                }
+                slotCount = slots.size();
+                ArrayList<HotTile> keep = new ArrayList<HotTile>();
+                for (HotTile h : hot) {
+                    KeyRange range = getRange(h.key);
+                    if ((range != null) && range.complete) {
+                        keep.add(h);
+                    }
+                }
+                out.writeInt(keep.size());
+                for (HotTile h : keep) {
+                    out.writeInt(h.key);
+                    out.writeInt(h.size);
+                    out.writeFloat(h.background);
+                }
+            } finally {
+                out.close();
+            }
+            if ((f.exists() && !f.delete()) || !temp.renameTo(f)) {
+                throw new IOException("can't replace " + f.getAbsolutePath());
+            }
+            LOG.info("Tile store saved " + ranges.size() + " products, " + slotCount + " tiles");
+            return true;
+        } catch (IOException e) {
+            LOG.error("Can't save tile store index, the store will start empty: " + e);
+            temp.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Get the range for a name, or null if we don't have one
+     */
+    synchronized KeyRange getRange(String identity) {
+        return myRanges.get(identity);
+    }
+
+    /**
+     * Get the range holding a key, or null if it's not in a named range
+     */
+    synchronized KeyRange getRange(int key) {
+        Map.Entry<Integer, KeyRange> e = myRangesByBase.floorEntry(key);
+        if ((e != null) && e.getValue().contains(key)) {
+            return e.getValue();
+        }
+        return null;
+    }
+
+    synchronized void addRange(KeyRange r) {
+        KeyRange old = myRanges.put(r.identity, r);
+        if (old != null) {
+            myRangesByBase.remove(old.base);
+        }
+        myRangesByBase.put(r.base, r);
+        int end = r.base + r.count;
+        if (end > myNextKey) {
+            myNextKey = end;
+        }
+    }
+
+    synchronized void removeRange(KeyRange r) {
+        if (myRanges.get(r.identity) == r) {
+            myRanges.remove(r.identity);
+            myRangesByBase.remove(r.base);
+        }
+    }
+
+    /**
+     * Get the first key past every restored range, new keys have to start
+     * here
+     */
+    public synchronized int getNextKey() {
+        return myNextKey;
+    }
+
+    /**
+     * Get the hot tiles from the last run, most recently used first
+     */
+    synchronized List<HotTile> getHotTiles() {
+        return new ArrayList<HotTile>(myHotTiles);
+    }
+
+    /**
+     * Forget the hot tiles, once they've been loaded
+     */
+    synchronized void clearHotTiles() {
+        myHotTiles.clear();
+    }
+
+    private synchronized void clear() {
+        myRanges.clear();
+        myRangesByBase.clear();
+        myHotTiles.clear();
+        myNextKey = Integer.MIN_VALUE;
+    }
+
+    /**
+     * Delete the segment files left in the directory
+     */
+    private void deleteSegments() {
+        File[] files = myDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.getName().startsWith(TileSpillStore.SEGMENT_PREFIX)) {
+                if (!f.delete()) {
+                    LOG.error("Can't delete old spill segment " + f.getAbsolutePath());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.wg3.storage;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs work over tiles numbered 0 to count-1 on several threads. Threads
+ * take the next tile number from a shared counter, so each tile is done
+ * exactly once, in about key order, and a slow tile doesn't hold up the rest.
+ * Each thread keeps its own running result and they're combined at the end.
+ *
+ * The calling thread works too, so a traversal started from inside a tile
+ * visit still finishes even if every pool thread is busy.
+ *
+ * @author Robert Toomey
+ *
+ */
+final class TileTraversal {
+
+    /**
+     * Work on one tile number
+     */
+    interface IndexReducer<R> {
+
+        R visit(int index);
+
+        R combine(R a, R b);
+    }
+    /**
+     * Shared by all traversals, made on first use
+     */
+    private static ExecutorService myPool;
+
+    private TileTraversal() {
+    }
+
+    /**
+     * Get the number of threads to use when the caller doesn't care
+     */
+    static int getDefaultThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (myPool == null) {
+            myPool = Executors.newCachedThreadPool(new DataManager.DaemonThreadFactory("TileTraversal"));
+        }
+        return myPool;
+    }
+
+    /**
+     * Reduce over count tiles with up to threads threads
+     *
+     * @return the combined result, or null if every visit gave null
+     */
+    static <R> R reduce(final int count, int threads, final IndexReducer<R> work) {
+        final AtomicInteger next = new AtomicInteger();
+        int helpers = Math.min(threads, count) - 1;
+        ArrayList<Future<R>> futures = new ArrayList<Future<R>>();
+        for (int i = 0; i < helpers; i++) {
+            futures.add(getPool().submit(new Callable<R>() {
+                @Override
+                public R call() {
+                    return drain(next, count, work);
+                }
+            }));
+        }
+        R result = drain(next, count, work);
+        RuntimeException failed = null;
+        for (Future<R> f : futures) {
+            try {
+                result = combine(result, f.get(), work);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                if (failed == null) {
+                    failed = (cause instanceof RuntimeException)
+                            ? (RuntimeException) cause : new RuntimeException(cause);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failed == null) {
+                    failed = new RuntimeException("Interrupted waiting on tile traversal", e);
+                }
+            }
+        }
+        if (failed != null) {
+            throw failed;
+        }
+        return result;
+    }
+
+    /**
+     * Take tile numbers until they're all gone
+     */
+    private static <R> R drain(AtomicInteger next, int count, IndexReducer<R> work) {
+        R partial = null;
+        int index;
+        while ((index = next.getAndIncrement()) < count) {
+            partial = combine(partial, work.visit(index), work);
+        }
+        return partial;
+    }
+
+    private static <R> R combine(R a, R b, IndexReducer<R> work) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        return work.combine(a, b);
+    }
+}
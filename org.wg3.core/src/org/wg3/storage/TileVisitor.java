@@ -0,0 +1,14 @@
+package org.wg3.storage;
+
+/**
+ * Work done on every tile of a tiled array, see
+ * Array2DfloatAsTiles.forEachTile. Called from several threads at once, each
+ * with a different tile, so any shared state has to be thread safe.
+ *
+ * @author Robert Toomey
+ *
+ */
+public interface TileVisitor {
+
+    void visit(ArrayTile tile);
+}
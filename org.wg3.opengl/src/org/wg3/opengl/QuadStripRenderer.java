@@ -15,6 +15,7 @@ import com.jogamp.opengl.GL2;
 import org.wg3.log.Logger;
 import org.wg3.log.LoggerFactory;
 import org.wg3.storage.Array1DOpenGL;
+import org.wg3.storage.DataManager;
 import org.wg3.storage.GrowList;
 
 /**
@@ -231,9 +232,14 @@ public class QuadStripRenderer {
     	GL2 gl = glin.getGL2();
         if (canDraw()) {
             final boolean b = isBatched;
+            final Array1DOpenGL drawColors = readoutMode ? readout : colors;
+
+            // Pin so the DataManager can't trim the buffers mid draw
+            verts.pin();
+            drawColors.pin();
             try {
                 Object lock1 = verts.getBufferLock();
-                Object lock2 = readoutMode ? readout.getBufferLock() : colors.getBufferLock();
+                Object lock2 = drawColors.getBufferLock();
                 // Nest ok, we always lock data before colors...
                 synchronized (lock1) {
                     synchronized (lock2) {
@@ -249,7 +255,7 @@ public class QuadStripRenderer {
                         }
 
                         FloatBuffer z = verts.getRawBuffer();
-                        FloatBuffer c = readoutMode ? readout.getRawBuffer() : colors.getRawBuffer();
+                        FloatBuffer c = drawColors.getRawBuffer();
 
                         // Only render if there is data to render
                         if ((z != null) && (z.capacity() > 0)) {
@@ -287,6 +293,8 @@ public class QuadStripRenderer {
                 if (!b) {
                     endBatch(gl);
                 }
+                drawColors.unpin();
+                verts.unpin();
             }
         }
     }
@@ -335,11 +343,16 @@ public class QuadStripRenderer {
      */
     public boolean allocate(int counter, int ccounter) {
         // The opengl thread can draw anytime..
-        verts = new Array1DOpenGL(counter, 0.0f);
-        colors = new Array1DOpenGL(ccounter / 4, 0.0f); // use one 'float' per color...
+        // Render buffers get their own partition, so loading data can't
+        // trim out what's on screen. Its budget comes out of the shared
+        // wg3.datamanager.maxbytes (an eighth unless
+        // wg3.datamanager.render.maxbytes says otherwise), it doesn't add one
+        DataManager render = DataManager.getPartition(DataManager.RENDER_PARTITION);
+        verts = new Array1DOpenGL(render, counter, 0.0f);
+        colors = new Array1DOpenGL(render, ccounter / 4, 0.0f); // use one 'float' per color...
 
         // READOUT
-        readout = new Array1DOpenGL(ccounter / 4, 0.0f);  // use one 'float' per color...
+        readout = new Array1DOpenGL(render, ccounter / 4, 0.0f);  // use one 'float' per color...
 
         myOffsets = new GrowList<Integer>();
         return true;